@@ -0,0 +1,664 @@
+package sos;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * This class is an optional execution engine for the {@link CPU}. It
+ * translates hot, straight-line runs of guest instructions ("basic blocks")
+ * into JVM classes at runtime so that HotSpot can compile them like any other
+ * Java code. Cold code, and any instruction the translator does not handle, is
+ * left to the CPU's interpreter.
+ *
+ * A block starts at a physical address, never crosses a page boundary, and
+ * ends with (and includes) a BRANCH, BNE or BLT, or ends just before an
+ * instruction that needs the interpreter (memory access, DIV, TRAP, or any
+ * instruction that names a register other than R0-R4). Since a block only
+ * ever uses the register values it is handed at runtime, the same block
+ * remains valid no matter which virtual address the page is mapped to.
+ *
+ * Translated blocks are keyed by physical address and are discarded when any
+ * word they were translated from is written (see {@link RAM.CodeCache}).
+ *
+ * A block is given the number of instructions it may run before the next
+ * clock interrupt and stops there if it is reached first, so blocks of any
+ * length run no matter how often the clock interrupts.
+ *
+ * @see CPU#setBlockTranslation
+ */
+public class BlockTranslator implements RAM.CodeCache {
+	// ======================================================================
+	// Constants
+	// ----------------------------------------------------------------------
+	public static final int DEFAULT_SIZE = 4096; // blocks
+	public static final int HOT_THRESHOLD = 50; // executions before translating
+	public static final int MAX_BLOCK_LENGTH = 64; // instructions
+
+	// JVM opcodes used by the code generator
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ILOAD_2 = 0x1c;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int IALOAD = 0x2e;
+	private static final int IASTORE = 0x4f;
+	private static final int IADD = 0x60;
+	private static final int ISUB = 0x64;
+	private static final int IMUL = 0x68;
+	private static final int IF_ICMPEQ = 0x9f;
+	private static final int IF_ICMPGE = 0xa2;
+	private static final int IF_ICMPGT = 0xa3;
+	private static final int IRETURN = 0xac;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+
+	// ======================================================================
+	// Member Variables
+	// ----------------------------------------------------------------------
+
+	/**
+	 * a reference to the system RAM that blocks are translated from
+	 */
+	private RAM m_RAM = null;
+
+	/**
+	 * the MMU used to find the physical address of the PC
+	 */
+	private MMU m_MMU = null;
+
+	/**
+	 * the physical address each slot's block starts at (-1 if empty). A slot
+	 * whose block is null records an address that cannot be translated.
+	 */
+	private int m_starts[];
+
+	/**
+	 * the physical address just past the end of each slot's block
+	 */
+	private int m_ends[];
+
+	/**
+	 * the translated code for each slot
+	 */
+	private Block m_blocks[];
+
+	/**
+	 * the physical address and execution count used to decide when an
+	 * untranslated address has become hot
+	 */
+	private int m_heatAddrs[];
+	private int m_heat[];
+
+	/**
+	 * mask used to select a slot from an address
+	 */
+	private int m_indexMask;
+
+	/**
+	 * one bit per word of RAM that some block was translated from, grouped by
+	 * page. A page's entry is null if no block was ever translated from it so
+	 * that writes to data pages are rejected with a single check.
+	 */
+	private long m_codeBits[][];
+
+	/**
+	 * scratch instruction buffer used while translating
+	 */
+	private int m_instr[] = new int[CPU.INSTRSIZE];
+
+	/**
+	 * statistics
+	 */
+	private long m_translated = 0;
+	private long m_invalidated = 0;
+	private long m_blockInstrs = 0;
+
+	// ======================================================================
+	// Methods
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the constructor allocates an empty block cache. The caller is
+	 * responsible for registering it with the RAM via
+	 * {@link RAM#addCodeCache}.
+	 *
+	 * @param ram
+	 *            the RAM to translate from
+	 * @param mmu
+	 *            the MMU that translates the CPU's virtual PC
+	 * @param size
+	 *            the number of blocks to cache. This is rounded down to a
+	 *            power of 2.
+	 */
+	public BlockTranslator(RAM ram, MMU mmu, int size) {
+		m_RAM = ram;
+		m_MMU = mmu;
+
+		int entries = 1;
+		while (entries * 2 <= size) {
+			entries *= 2;
+		}
+		m_indexMask = entries - 1;
+		m_starts = new int[entries];
+		m_ends = new int[entries];
+		m_blocks = new Block[entries];
+		m_heatAddrs = new int[entries];
+		m_heat = new int[entries];
+		Arrays.fill(m_starts, -1);
+		Arrays.fill(m_heatAddrs, -1);
+
+		int pageSize = mmu.getPageSize();
+		m_codeBits = new long[(ram.getSize() + pageSize - 1) / pageSize][];
+	}// ctor
+
+	/**
+	 * getBlocksTranslated
+	 *
+	 * @return the number of blocks that have been compiled
+	 */
+	public long getBlocksTranslated() {
+		return m_translated;
+	}
+
+	/**
+	 * getBlocksInvalidated
+	 *
+	 * @return the number of blocks discarded because their code was written
+	 */
+	public long getBlocksInvalidated() {
+		return m_invalidated;
+	}
+
+	/**
+	 * getInstructionsExecuted
+	 *
+	 * @return the number of guest instructions run by translated code
+	 */
+	public long getInstructionsExecuted() {
+		return m_blockInstrs;
+	}
+
+	/**
+	 * execute
+	 *
+	 * runs the translated block that starts at the given PC, if there is one.
+	 * Otherwise the execution is counted towards translating it. On return the
+	 * PC register holds the address of the next instruction to execute.
+	 *
+	 * @param pc
+	 *            the virtual address of the next instruction
+	 * @param regs
+	 *            the CPU's registers
+	 * @param budget
+	 *            the most instructions the block may execute (at least 1). A
+	 *            longer block stops after this many so that it can't run
+	 *            past a clock interrupt.
+	 * @return the number of instructions executed or 0 if the CPU must
+	 *         interpret the instruction at pc itself
+	 */
+	public int execute(int pc, int[] regs, int budget) {
+		int physPC = m_MMU.translate(pc);
+		int i = (physPC >>> 2) & m_indexMask;
+
+		if (m_starts[i] == physPC) {
+			Block block = m_blocks[i];
+			if (block == null) {
+				return 0; // not translatable
+			}
+			int count = block.run(regs, budget);
+			m_blockInstrs += count;
+			return count;
+		}
+
+		// Not translated yet. Translate once it's hot.
+		if (m_heatAddrs[i] != physPC) {
+			m_heatAddrs[i] = physPC;
+			m_heat[i] = 0;
+		}
+		if (++m_heat[i] >= HOT_THRESHOLD) {
+			m_heatAddrs[i] = -1;
+			translate(physPC, i);
+		}
+
+		return 0;
+	}// execute
+
+	/**
+	 * invalidate
+	 *
+	 * discards every block that was translated from the given word
+	 *
+	 * @param addr
+	 *            the physical address that was written
+	 */
+	public void invalidate(int addr) {
+		int page = addr >>> m_MMU.getOffsetSize();
+		long bits[] = m_codeBits[page];
+		if (bits == null) {
+			return;
+		}
+		int offset = addr & m_MMU.getOffsetMask();
+		if ((bits[offset >>> 6] & (1L << offset)) == 0) {
+			return;
+		}
+
+		// Drop the blocks that cover this word and then rebuild the page's
+		// bitmap from the blocks that are left
+		int pageStart = page << m_MMU.getOffsetSize();
+		int pageEnd = pageStart + m_MMU.getPageSize();
+		Arrays.fill(bits, 0);
+		for (int i = 0; i < m_starts.length; i++) {
+			if ((m_starts[i] < pageStart) || (m_starts[i] >= pageEnd)) {
+				continue;
+			}
+			if ((addr >= m_starts[i]) && (addr < m_ends[i])) {
+				m_starts[i] = -1;
+				m_blocks[i] = null;
+				m_invalidated++;
+			} else {
+				markCode(m_starts[i], m_ends[i]);
+			}
+		}// for
+	}// invalidate
+
+	/**
+	 * markCode
+	 *
+	 * records that the words in [start, end) have been translated
+	 */
+	private void markCode(int start, int end) {
+		for (int addr = start; addr < end; addr++) {
+			int page = addr >>> m_MMU.getOffsetSize();
+			if (m_codeBits[page] == null) {
+				m_codeBits[page] = new long[(m_MMU.getPageSize() + 63) / 64];
+			}
+			int offset = addr & m_MMU.getOffsetMask();
+			m_codeBits[page][offset >>> 6] |= (1L << offset);
+		}
+	}// markCode
+
+	/**
+	 * isGeneralRegister
+	 *
+	 * @return true if r names one of the registers a block may use
+	 */
+	private static boolean isGeneralRegister(int r) {
+		return (r >= 0) && (r < CPU.NUMGENREG);
+	}
+
+	/**
+	 * translate
+	 *
+	 * decodes the block that starts at the given address and, if it contains
+	 * at least one instruction, compiles it into the given slot. Addresses
+	 * that can't be translated are recorded with a null block so they aren't
+	 * retried until their code changes.
+	 *
+	 * @param physPC
+	 *            the physical address of the first instruction
+	 * @param slot
+	 *            the slot to store the block in
+	 */
+	private void translate(int physPC, int slot) {
+		int pageEnd = (physPC | m_MMU.getOffsetMask()) + 1;
+		int pc = physPC;
+		int length = 0;
+		boolean terminated = false;
+		CodeWriter code = new CodeWriter();
+
+		while (!terminated && (length < MAX_BLOCK_LENGTH)
+		        && (pc + CPU.INSTRSIZE <= pageEnd)
+		        && (pc + CPU.INSTRSIZE <= m_RAM.getSize())) {
+			m_RAM.fetch(pc, m_instr);
+			int op = m_instr[0];
+			int a = m_instr[1];
+			int b = m_instr[2];
+			int c = m_instr[3];
+
+			// Every instruction after the first is only run if the budget
+			// allows it
+			if ((op == CPU.SET) && isGeneralRegister(a)) {
+				code.budgetCheck(length);
+				code.storeConst(a, b);
+			} else if (((op == CPU.ADD) || (op == CPU.SUB) || (op == CPU.MUL))
+			        && isGeneralRegister(a) && isGeneralRegister(b)
+			        && isGeneralRegister(c)) {
+				code.budgetCheck(length);
+				code.arith(op, a, b, c);
+			} else if ((op == CPU.COPY) && isGeneralRegister(a)
+			        && isGeneralRegister(b)) {
+				code.budgetCheck(length);
+				code.copy(a, b);
+			} else if ((op == CPU.BRANCH) && (a >= 0)) {
+				code.budgetCheck(length);
+				length++;
+				code.jump(a, length);
+				terminated = true;
+				break;
+			} else if (((op == CPU.BNE) || (op == CPU.BLT))
+			        && isGeneralRegister(a) && isGeneralRegister(b) && (c >= 0)) {
+				code.budgetCheck(length);
+				length++;
+				code.conditionalJump(op, a, b, c, length);
+				terminated = true;
+				break;
+			} else {
+				// The interpreter has to handle this one
+				break;
+			}
+
+			length++;
+			pc += CPU.INSTRSIZE;
+		}// while
+
+		if (!terminated) {
+			code.fallThrough(length);
+		}
+
+		m_starts[slot] = physPC;
+		m_ends[slot] = physPC + Math.max(length, 1) * CPU.INSTRSIZE;
+		m_blocks[slot] = null;
+		markCode(m_starts[slot], m_ends[slot]);
+
+		if (length > 0) {
+			try {
+				m_blocks[slot] = code.define();
+				m_translated++;
+			} catch (Throwable t) {
+				// Leave the slot marked untranslatable; the interpreter
+				// will run this code
+				System.out.println("ERROR: block translation failed at "
+				        + physPC + ": " + t);
+			}
+		}
+	}// translate
+
+	// ======================================================================
+	// Inner Classes
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Block
+	 *
+	 * This interface is implemented by every translated block.
+	 */
+	public interface Block {
+		/**
+		 * run
+		 *
+		 * executes the block, or as much of it as the budget allows, and
+		 * leaves the address of the next instruction in the PC register
+		 *
+		 * @param regs
+		 *            the CPU's registers
+		 * @param budget
+		 *            the most instructions to execute (at least 1)
+		 * @return the number of instructions executed
+		 */
+		int run(int[] regs, int budget);
+	};// interface Block
+
+	/**
+	 * class CodeWriter
+	 *
+	 * This class emits the body of a block's run method and wraps it in a
+	 * minimal class file. The class file uses version 49 so that the JVM
+	 * verifies it by type inference and no stack map frames are needed.
+	 */
+	private static class CodeWriter {
+		/** the body of the run method */
+		private ByteArrayOutputStream m_code = new ByteArrayOutputStream();
+
+		/** Integer constants that don't fit in a sipush */
+		private Vector<Integer> m_ints = new Vector<Integer>();
+
+		/** the constant pool index of the first Integer constant */
+		private static final int FIRST_INT_CONST = 14;
+
+		/**
+		 * pushInt
+		 *
+		 * emits the shortest instruction that pushes v onto the stack
+		 */
+		private void pushInt(int v) {
+			if ((v >= -1) && (v <= 5)) {
+				m_code.write(ICONST_0 + v);
+			} else if ((v >= Byte.MIN_VALUE) && (v <= Byte.MAX_VALUE)) {
+				m_code.write(BIPUSH);
+				m_code.write(v);
+			} else if ((v >= Short.MIN_VALUE) && (v <= Short.MAX_VALUE)) {
+				m_code.write(SIPUSH);
+				m_code.write(v >> 8);
+				m_code.write(v);
+			} else {
+				int idx = FIRST_INT_CONST + m_ints.size();
+				m_ints.add(v);
+				m_code.write(LDC_W);
+				m_code.write(idx >> 8);
+				m_code.write(idx);
+			}
+		}// pushInt
+
+		/** emits code that pushes regs[r] */
+		private void loadReg(int r) {
+			m_code.write(ALOAD_1);
+			pushInt(r);
+			m_code.write(IALOAD);
+		}
+
+		/** SET: regs[d] = v */
+		public void storeConst(int d, int v) {
+			m_code.write(ALOAD_1);
+			pushInt(d);
+			pushInt(v);
+			m_code.write(IASTORE);
+		}
+
+		/** ADD/SUB/MUL: regs[d] = regs[a] op regs[b] */
+		public void arith(int op, int d, int a, int b) {
+			m_code.write(ALOAD_1);
+			pushInt(d);
+			loadReg(a);
+			loadReg(b);
+			if (op == CPU.ADD) {
+				m_code.write(IADD);
+			} else if (op == CPU.SUB) {
+				m_code.write(ISUB);
+			} else {
+				m_code.write(IMUL);
+			}
+			m_code.write(IASTORE);
+		}
+
+		/** COPY: regs[d] = regs[a] */
+		public void copy(int d, int a) {
+			m_code.write(ALOAD_1);
+			pushInt(d);
+			loadReg(a);
+			m_code.write(IASTORE);
+		}
+
+		/**
+		 * branchForward
+		 *
+		 * emits a branch whose target is filled in by {@link #patchBranch}
+		 *
+		 * @return the position of the branch
+		 */
+		private int branchForward(int opcode) {
+			int branchPos = m_code.size();
+			m_code.write(opcode);
+			m_code.write(0);
+			m_code.write(0);
+			return branchPos;
+		}
+
+		/** makes the branch at branchPos jump to the next code emitted */
+		private void patchBranch(int branchPos) {
+			int offset = m_code.size() - branchPos;
+			byte body[] = m_code.toByteArray();
+			body[branchPos + 1] = (byte) (offset >> 8);
+			body[branchPos + 2] = (byte) offset;
+			m_code.reset();
+			m_code.write(body, 0, body.length);
+		}
+
+		/**
+		 * budgetCheck
+		 *
+		 * emits code that ends the block if the budget is used up by the
+		 * instructions before this point
+		 *
+		 * @param done
+		 *            the number of instructions before this point. Nothing is
+		 *            emitted for the first instruction.
+		 */
+		public void budgetCheck(int done) {
+			if (done == 0) {
+				return;
+			}
+			m_code.write(ILOAD_2);
+			pushInt(done);
+			int branchPos = branchForward(IF_ICMPGT);
+			fallThrough(done);
+			patchBranch(branchPos);
+		}
+
+		/** BRANCH: PC = target + BASE, having run length instructions */
+		public void jump(int target, int length) {
+			m_code.write(ALOAD_1);
+			pushInt(CPU.PC);
+			pushInt(target);
+			loadReg(CPU.BASE);
+			m_code.write(IADD);
+			m_code.write(IASTORE);
+			pushInt(length);
+			m_code.write(IRETURN);
+		}
+
+		/** end of block without a branch: PC += length instructions */
+		public void fallThrough(int length) {
+			m_code.write(ALOAD_1);
+			pushInt(CPU.PC);
+			loadReg(CPU.PC);
+			pushInt(length * CPU.INSTRSIZE);
+			m_code.write(IADD);
+			m_code.write(IASTORE);
+			pushInt(length);
+			m_code.write(IRETURN);
+		}
+
+		/** BNE/BLT: jump if the condition holds, else fall through */
+		public void conditionalJump(int op, int a, int b, int target,
+		        int length) {
+			loadReg(a);
+			loadReg(b);
+			// Skip the taken path when the condition is false
+			int branchPos = branchForward((op == CPU.BNE) ? IF_ICMPEQ
+			        : IF_ICMPGE);
+			jump(target, length);
+			patchBranch(branchPos);
+			fallThrough(length);
+		}
+
+		/**
+		 * define
+		 *
+		 * assembles the class file and loads it as a hidden class
+		 *
+		 * @return an instance of the new class
+		 */
+		public Block define() throws Throwable {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0); // minor version
+			out.writeShort(49); // major version
+
+			// Constant pool
+			out.writeShort(FIRST_INT_CONST + m_ints.size());
+			out.writeByte(1); // #1
+			out.writeUTF("sos/TranslatedBlock");
+			out.writeByte(7); // #2
+			out.writeShort(1);
+			out.writeByte(1); // #3
+			out.writeUTF("java/lang/Object");
+			out.writeByte(7); // #4
+			out.writeShort(3);
+			out.writeByte(1); // #5
+			out.writeUTF("sos/BlockTranslator$Block");
+			out.writeByte(7); // #6
+			out.writeShort(5);
+			out.writeByte(1); // #7
+			out.writeUTF("<init>");
+			out.writeByte(1); // #8
+			out.writeUTF("()V");
+			out.writeByte(12); // #9
+			out.writeShort(7);
+			out.writeShort(8);
+			out.writeByte(10); // #10
+			out.writeShort(4);
+			out.writeShort(9);
+			out.writeByte(1); // #11
+			out.writeUTF("run");
+			out.writeByte(1); // #12
+			out.writeUTF("([II)I");
+			out.writeByte(1); // #13
+			out.writeUTF("Code");
+			for (Integer v : m_ints) {
+				out.writeByte(3);
+				out.writeInt(v);
+			}
+
+			out.writeShort(0x0031); // public final super
+			out.writeShort(2); // this class
+			out.writeShort(4); // super class
+			out.writeShort(1); // interfaces
+			out.writeShort(6);
+			out.writeShort(0); // fields
+
+			out.writeShort(2); // methods
+			byte init[] = { ALOAD_0, (byte) INVOKESPECIAL, 0, 10,
+			        (byte) RETURN };
+			writeMethod(out, 7, 8, 1, 1, init);
+			writeMethod(out, 11, 12, 6, 3, m_code.toByteArray());
+
+			out.writeShort(0); // class attributes
+			out.flush();
+
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+			        .defineHiddenClass(bytes.toByteArray(), true);
+			return (Block) lookup.findConstructor(lookup.lookupClass(),
+			        MethodType.methodType(void.class)).invoke();
+		}// define
+
+		/**
+		 * writeMethod
+		 *
+		 * writes a public method with a Code attribute
+		 */
+		private static void writeMethod(DataOutputStream out, int name,
+		        int desc, int maxStack, int maxLocals, byte[] code)
+		        throws IOException {
+			out.writeShort(0x0001); // public
+			out.writeShort(name);
+			out.writeShort(desc);
+			out.writeShort(1); // attributes
+			out.writeShort(13); // "Code"
+			out.writeInt(12 + code.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		}// writeMethod
+
+	}// class CodeWriter
+
+}// class BlockTranslator
@@ -0,0 +1,198 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This class is a buddy allocator that hands out RAM in blocks of a power of
+ * two pages. A request is rounded up to the next power of two and served
+ * from the smallest free block that is big enough, splitting it in half
+ * (into two "buddies") until it is the right size. When a block is freed it
+ * is merged with its buddy if that is free too, and so on up. Both take
+ * O(log n) time for n pages, and freeing never needs a sorted scan of the
+ * free blocks.
+ * 
+ * The price is internal fragmentation: a process that needs 5 pages is
+ * given 8. The memory managed doesn't have to be a power of two pages; it is
+ * carved into the largest aligned blocks that fit when the allocator is
+ * created.
+ * 
+ * @see MemoryAllocator
+ */
+public class BuddyAllocator implements MemoryAllocator {
+	// ======================================================================
+	// Member Variables
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the address of the first page managed, the page size and the number of
+	 * pages managed
+	 */
+	private int m_base;
+	private int m_pageSize;
+	private int m_numPages;
+
+	/**
+	 * the free blocks of each order (a block of order k is 2^k pages), as
+	 * page offsets from m_base
+	 */
+	private ArrayList<TreeSet<Integer>> m_free = null;
+
+	/**
+	 * the order of the block allocated at each page offset (-1 if no
+	 * allocated block starts there)
+	 */
+	private int m_allocOrder[] = null;
+
+	/**
+	 * the number of free pages
+	 */
+	private int m_freePages = 0;
+
+	// ======================================================================
+	// Methods
+	// ----------------------------------------------------------------------
+
+	/**
+	 * constructor
+	 * 
+	 * @param base
+	 *            the address of the memory to manage (a page boundary)
+	 * @param size
+	 *            the number of words to manage (any part of a page at the end
+	 *            is left unused)
+	 * @param pageSize
+	 *            the size of a page
+	 */
+	public BuddyAllocator(int base, int size, int pageSize) {
+		m_base = base;
+		m_pageSize = pageSize;
+		m_numPages = size / pageSize;
+		m_freePages = m_numPages;
+		m_allocOrder = new int[m_numPages];
+		Arrays.fill(m_allocOrder, -1);
+
+		int numOrders = 32 - Integer.numberOfLeadingZeros(m_numPages);
+		m_free = new ArrayList<TreeSet<Integer>>();
+		for (int i = 0; i < numOrders; i++) {
+			m_free.add(new TreeSet<Integer>());
+		}
+
+		// Carve the pages into the largest aligned blocks that fit
+		int offset = 0;
+		while (offset < m_numPages) {
+			int order = numOrders - 1;
+			while (((offset & ((1 << order) - 1)) != 0)
+			        || (offset + (1 << order) > m_numPages)) {
+				order--;
+			}
+			m_free.get(order).add(offset);
+			offset += 1 << order;
+		}
+	}// ctor
+
+	/**
+	 * alloc
+	 * 
+	 * splits the smallest free block that is big enough down to the size
+	 * needed
+	 */
+	public int alloc(int size) {
+		int pages = Math.max(1, (size + m_pageSize - 1) / m_pageSize);
+		int order = 32 - Integer.numberOfLeadingZeros(pages - 1);
+
+		// Find the smallest free block that is big enough
+		int k = order;
+		while ((k < m_free.size()) && m_free.get(k).isEmpty()) {
+			k++;
+		}
+		if (k >= m_free.size()) {
+			return -1;
+		}
+
+		// Split it, freeing the upper half each time
+		int offset = m_free.get(k).pollFirst();
+		while (k > order) {
+			k--;
+			m_free.get(k).add(offset + (1 << k));
+		}
+
+		m_allocOrder[offset] = order;
+		m_freePages -= 1 << order;
+		return m_base + offset * m_pageSize;
+	}// alloc
+
+	/**
+	 * free
+	 * 
+	 * frees a block and merges it with its buddy for as long as the buddy is
+	 * free too
+	 */
+	public void free(int addr, int size) {
+		int offset = (addr - m_base) / m_pageSize;
+		int order = m_allocOrder[offset];
+		if (order < 0) {
+			throw new IllegalArgumentException("no block allocated at " + addr);
+		}
+		m_allocOrder[offset] = -1;
+		m_freePages += 1 << order;
+
+		// A buddy that falls off the end of the memory is never free
+		while (order < m_free.size() - 1) {
+			int buddy = offset ^ (1 << order);
+			if (!m_free.get(order).remove(buddy)) {
+				break;
+			}
+			offset = Math.min(offset, buddy);
+			order++;
+		}
+		m_free.get(order).add(offset);
+	}// free
+
+	/**
+	 * getFreeSize
+	 * 
+	 * @return the total number of free words
+	 */
+	public int getFreeSize() {
+		return m_freePages * m_pageSize;
+	}
+
+	/**
+	 * getLargestFreeBlock
+	 * 
+	 * @return the size of the largest free block
+	 */
+	public int getLargestFreeBlock() {
+		for (int k = m_free.size() - 1; k >= 0; k--) {
+			if (!m_free.get(k).isEmpty()) {
+				return (1 << k) * m_pageSize;
+			}
+		}
+		return 0;
+	}// getLargestFreeBlock
+
+	/**
+	 * getAllocatedSize
+	 * 
+	 * @return the total number of words in allocated blocks
+	 */
+	public int getAllocatedSize() {
+		return (m_numPages - m_freePages) * m_pageSize;
+	}
+
+	/**
+	 * getFreeBlocks
+	 * 
+	 * @return the address and size of each free block
+	 */
+	public SortedMap<Integer, Integer> getFreeBlocks() {
+		TreeMap<Integer, Integer> blocks = new TreeMap<Integer, Integer>();
+		for (int k = 0; k < m_free.size(); k++) {
+			for (int offset : m_free.get(k)) {
+				blocks.put(m_base + offset * m_pageSize, (1 << k) * m_pageSize);
+			}
+		}
+		return blocks;
+	}// getFreeBlocks
+
+}// class BuddyAllocator
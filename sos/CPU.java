@@ -1,6 +1,7 @@
 package sos;
 
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 /**
  * This class is the centerpiece of a simulation of the essential hardware of a
@@ -57,7 +58,8 @@ public class CPU implements Runnable {
 	public static final int SP = 6; // stack pointer
 	public static final int BASE = 7; // bottom of currently accessible RAM
 	public static final int LIM = 8; // top of accessible RAM
-	public static final int NUMREG = 9; // number of registers
+	public static final int PTBR = 9; // address of the page table
+	public static final int NUMREG = 10; // number of registers
 
 	// Misc constants
 	public static final int NUMGENREG = PC; // the number of general registers
@@ -65,6 +67,8 @@ public class CPU implements Runnable {
 	// args. (Set to a fixed value for simplicity.)
 	public static final int CLOCK_FREQ = 5; // Number of cycles between clock
 											// interrupts
+	public static final int MAX_INT_BATCH = 8; // Most I/O interrupts serviced
+												// per check
 
 	// ======================================================================
 	// Member variables
@@ -98,6 +102,97 @@ public class CPU implements Runnable {
 	 */
 	private MMU m_MMU = null;
 
+	/**
+	 * The instruction register. {@link #run} decodes every instruction into
+	 * this array so that the fetch/execute loop does not allocate.
+	 */
+	private int m_instr[] = new int[INSTRSIZE];
+
+	/**
+	 * Interrupts taken from the interrupt controller are copied here so that
+	 * checking for them does not allocate.
+	 */
+	private int m_intData[] = new int[MAX_INT_BATCH
+	        * InterruptController.INT_SIZE];
+
+	/**
+	 * The optional engine that runs hot code as translated JVM classes. This
+	 * is null if the CPU only interprets.
+	 * 
+	 * @see BlockTranslator
+	 */
+	private BlockTranslator m_translator = null;
+
+	/**
+	 * Device completions scheduled on this CPU's clock in discrete-event mode
+	 * (null if devices run in real time)
+	 * 
+	 * @see EventQueue
+	 */
+	private EventQueue m_events = null;
+
+	/**
+	 * If not null, every I/O interrupt serviced is recorded here
+	 * 
+	 * @see InterruptTrace
+	 */
+	private InterruptTrace m_trace = null;
+
+	/**
+	 * Set while the CPU is halted because the OS has nothing for it to run.
+	 * A halted CPU executes nothing until an interrupt arrives or
+	 * {@link #wakeUp} is called.
+	 */
+	private volatile boolean m_halted = false;
+
+	/**
+	 * Set by {@link #wakeUp} to end the current halt
+	 */
+	private volatile boolean m_wakeUp = false;
+
+	/**
+	 * The thread running this CPU (so that it can be woken up)
+	 */
+	private volatile Thread m_thread = null;
+
+	/**
+	 * The number of times the CPU has halted and, in discrete-event mode, the
+	 * number of ticks it skipped while halted
+	 */
+	private long m_halts = 0;
+	private long m_haltedTicks = 0;
+
+	/**
+	 * In tickless mode the clock doesn't interrupt every CLOCK_FREQ ticks;
+	 * it only interrupts when the timer the OS sets runs out (see
+	 * {@link #setTimer})
+	 */
+	private boolean m_tickless = false;
+
+	/**
+	 * The tick the timer runs out at in tickless mode (Integer.MAX_VALUE if
+	 * the timer isn't set)
+	 */
+	private int m_timerDeadline = Integer.MAX_VALUE;
+
+	/**
+	 * The next clock interrupt is raised once the tick count reaches this
+	 */
+	private int m_clockDeadline = CLOCK_FREQ;
+
+	/**
+	 * The number of clock interrupts raised
+	 */
+	private long m_clockInterrupts = 0;
+
+	/**
+	 * True if RAM latency is charged to the simulated clock
+	 * (RAM.LATENCY_SIMULATED), in which case m_stallNanos is the stall time
+	 * that is too short to make up a whole tick yet
+	 */
+	private boolean m_chargeStall = false;
+	private long m_stallNanos = 0;
+
 	// ======================================================================
 	// Methods
 	// ----------------------------------------------------------------------
@@ -105,7 +200,8 @@ public class CPU implements Runnable {
 	/**
 	 * CPU ctor
 	 * 
-	 * Intializes all member variables.
+	 * Intializes all member variables. The interrupt controller may be null
+	 * for a CPU that doesn't take I/O interrupts (a secondary core).
 	 */
 	public CPU(RAM ram, InterruptController initIC, MMU mmu) {
 		m_registers = new int[NUMREG];
@@ -115,6 +211,11 @@ public class CPU implements Runnable {
 		m_RAM = ram;
 		m_IC = initIC;
 		m_MMU = mmu;
+		m_chargeStall = (ram.getLatencyMode() == RAM.LATENCY_SIMULATED)
+		        && (ram.getLatency() > 0);
+
+		// The MMU finds the page table with the PTBR register
+		m_MMU.setRegisters(m_registers);
 
 	}// CPU ctor
 
@@ -154,6 +255,15 @@ public class CPU implements Runnable {
 		return m_registers[LIM];
 	}
 
+	/**
+	 * getPTBR
+	 * 
+	 * @return the value of the page table base register
+	 */
+	public int getPTBR() {
+		return m_registers[PTBR];
+	}
+
 	/**
 	 * getRegisters
 	 * 
@@ -212,6 +322,229 @@ public class CPU implements Runnable {
 		m_registers[LIM] = v;
 	}
 
+	/**
+	 * setPTBR
+	 * 
+	 * switches to another address space. The MMU's TLB keeps the entries of
+	 * every address space apart, so it doesn't need to be flushed.
+	 * 
+	 * @param v
+	 *            the physical address of the page table
+	 */
+	public void setPTBR(int v) {
+		m_registers[PTBR] = v;
+	}
+
+	/**
+	 * getBlockTranslator
+	 * 
+	 * @return the block translator used by this CPU or null if it only
+	 *         interprets
+	 */
+	public BlockTranslator getBlockTranslator() {
+		return m_translator;
+	}
+
+	/**
+	 * setBlockTranslation
+	 * 
+	 * turns translation of hot basic blocks into JVM code on or off
+	 * 
+	 * @param enabled
+	 *            true to translate hot code, false to only interpret
+	 */
+	public void setBlockTranslation(boolean enabled) {
+		if (m_translator != null) {
+			m_RAM.removeCodeCache(m_translator);
+			m_translator = null;
+		}
+		if (enabled) {
+			m_translator = new BlockTranslator(m_RAM, m_MMU,
+			        BlockTranslator.DEFAULT_SIZE);
+			m_RAM.addCodeCache(m_translator);
+		}
+	}// setBlockTranslation
+
+	/**
+	 * getEventQueue
+	 * 
+	 * @return the queue of events scheduled on this CPU's clock or null if
+	 *         the simulation runs in real time
+	 */
+	public EventQueue getEventQueue() {
+		return m_events;
+	}
+
+	/**
+	 * setEventQueue
+	 * 
+	 * puts the CPU in discrete-event mode: before it checks for interrupts
+	 * each cycle it runs every event in the queue that has fallen due. (Events
+	 * can be up to a translated block late since blocks run as a unit.)
+	 * 
+	 * @param events
+	 *            the queue to run or null for real time
+	 */
+	public void setEventQueue(EventQueue events) {
+		m_events = events;
+	}
+
+	/**
+	 * setInterruptTrace
+	 * 
+	 * starts or stops recording the I/O interrupts this CPU services
+	 * 
+	 * @param trace
+	 *            the trace to record to or null to stop recording
+	 */
+	public void setInterruptTrace(InterruptTrace trace) {
+		m_trace = trace;
+	}
+
+	/**
+	 * isHalted
+	 * 
+	 * @return true if the CPU is halted
+	 */
+	public boolean isHalted() {
+		return m_halted;
+	}
+
+	/**
+	 * setHalted
+	 * 
+	 * halts the CPU or lets it run again. The OS halts the CPU from a trap
+	 * handler when it has no process to run. When the CPU is woken up it
+	 * services any pending interrupts and then raises a clock interrupt so
+	 * the OS can load a process and clear the halt. The CPU then resumes at
+	 * the instruction after the saved PC, just as after any other trap.
+	 * 
+	 * @param halted
+	 *            true to halt the CPU
+	 */
+	public void setHalted(boolean halted) {
+		if (halted && !m_halted) {
+			m_halts++;
+		}
+		m_halted = halted;
+	}// setHalted
+
+	/**
+	 * wakeUp
+	 * 
+	 * makes a halted CPU give its OS a clock interrupt even though no I/O
+	 * interrupt has arrived (e.g., because another core has made a process
+	 * ready). This may be called from any thread.
+	 */
+	public void wakeUp() {
+		m_wakeUp = true;
+		Thread t = m_thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}// wakeUp
+
+	/**
+	 * setTickless
+	 * 
+	 * turns tickless mode on or off. In tickless mode the CPU only raises a
+	 * clock interrupt when the timer set with {@link #setTimer} runs out,
+	 * instead of every CLOCK_FREQ ticks. The timer starts out not set.
+	 * 
+	 * @param tickless
+	 *            true for tickless mode
+	 */
+	public void setTickless(boolean tickless) {
+		m_tickless = tickless;
+		m_timerDeadline = Integer.MAX_VALUE;
+		updateClockDeadline();
+	}// setTickless
+
+	/**
+	 * isTickless
+	 * 
+	 * @return true if the CPU is in tickless mode
+	 */
+	public boolean isTickless() {
+		return m_tickless;
+	}
+
+	/**
+	 * setTimer
+	 * 
+	 * sets the timer in tickless mode: a clock interrupt is raised once the
+	 * given number of ticks have passed (after the instruction that uses up
+	 * the last of them). This replaces any time left on the timer. It has no
+	 * effect unless the CPU is tickless, and it must be called on the CPU's
+	 * own thread (i.e., from a trap handler).
+	 * 
+	 * @param ticks
+	 *            the ticks until the interrupt (at least one), or
+	 *            Integer.MAX_VALUE for no interrupt
+	 */
+	public void setTimer(int ticks) {
+		if (ticks == Integer.MAX_VALUE) {
+			m_timerDeadline = Integer.MAX_VALUE;
+		} else {
+			m_timerDeadline = m_ticks + Math.max(1, ticks);
+		}
+		updateClockDeadline();
+	}// setTimer
+
+	/**
+	 * updateClockDeadline
+	 * 
+	 * works out the tick of the next clock interrupt. This must be called
+	 * whenever the tick count jumps or a clock interrupt is raised.
+	 */
+	private void updateClockDeadline() {
+		if (m_tickless) {
+			m_clockDeadline = m_timerDeadline;
+		} else {
+			m_clockDeadline = (m_ticks / CLOCK_FREQ + 1) * CLOCK_FREQ;
+		}
+	}// updateClockDeadline
+
+	/**
+	 * raiseClockInterrupt
+	 * 
+	 * gives the OS a clock interrupt. In tickless mode this uses up the
+	 * timer.
+	 */
+	private void raiseClockInterrupt() {
+		m_clockInterrupts++;
+		m_timerDeadline = Integer.MAX_VALUE;
+		updateClockDeadline();
+		m_TH.interruptClock();
+	}// raiseClockInterrupt
+
+	/**
+	 * getClockInterrupts
+	 * 
+	 * @return the number of clock interrupts the CPU has raised
+	 */
+	public long getClockInterrupts() {
+		return m_clockInterrupts;
+	}
+
+	/**
+	 * getHalts
+	 * 
+	 * @return the number of times the CPU has halted
+	 */
+	public long getHalts() {
+		return m_halts;
+	}
+
+	/**
+	 * getHaltedTicks
+	 * 
+	 * @return the number of ticks skipped while halted in discrete-event mode
+	 */
+	public long getHaltedTicks() {
+		return m_haltedTicks;
+	}
+
 	/**
 	 * addTicks()
 	 * 
@@ -222,6 +555,21 @@ public class CPU implements Runnable {
 	 */
 	public void addTicks(int amount) {
 		m_ticks += amount;
+		updateClockDeadline();
+	}
+
+	/**
+	 * setTicks
+	 * 
+	 * sets the number of ticks that have passed (used to resume a
+	 * simulation from a snapshot)
+	 * 
+	 * @param ticks
+	 *            the new tick count
+	 */
+	public void setTicks(int ticks) {
+		m_ticks = ticks;
+		updateClockDeadline();
 	}
 
 	/**
@@ -237,6 +585,7 @@ public class CPU implements Runnable {
 		System.out.print("SP=" + m_registers[SP] + " ");
 		System.out.print("BASE=" + m_registers[BASE] + " ");
 		System.out.print("LIM=" + m_registers[LIM] + " ");
+		System.out.print("PTBR=" + m_registers[PTBR] + " ");
 		System.out.println("");
 	}// regDump
 
@@ -313,14 +662,33 @@ public class CPU implements Runnable {
 	 * 
 	 */
 	public void run() {
-		int[] instruction = new int[4];
+		m_thread = Thread.currentThread();
+		int[] instruction = m_instr;
 		while (true) {
 
+			// Let devices finish anything that is due by now
+			if ((m_events != null) && (m_ticks >= m_events.nextDue())) {
+				m_events.runDue(m_ticks);
+			}
+
+			// Don't execute anything while halted. A halted CPU checks for IO
+			// signals in runHalted, which schedules any process they make
+			// ready
+			if (m_halted) {
+				runHalted();
+				continue;
+			}
+
 			// Check the data bus for IO signals
 			checkForIOInterrupt();
 
+			// Run translated code if there is any for this PC
+			if ((m_translator != null) && runTranslatedBlock()) {
+				continue;
+			}
+
 			// fetch the program instruction from RAM using the PC
-			instruction = m_MMU.fetch(getPC());
+			m_MMU.fetch(getPC(), instruction);
 
 			if (m_verbose) {
 				regDump();
@@ -407,8 +775,11 @@ public class CPU implements Runnable {
 
 			// Increment the number of ticks and check for clock interrupts
 			m_ticks++;
-			if (m_ticks % CLOCK_FREQ == 0) {
-				m_TH.interruptClock();
+			if (m_chargeStall) {
+				chargeStall();
+			}
+			if (m_ticks >= m_clockDeadline) {
+				raiseClockInterrupt();
 			}
 
 			setPC(getPC() + 4);
@@ -417,6 +788,102 @@ public class CPU implements Runnable {
 
 	}
 
+	/**
+	 * runHalted
+	 * 
+	 * waits until an interrupt arrives or {@link #wakeUp} is called, services
+	 * any interrupts and then gives the OS a clock interrupt to load a
+	 * process. In real time the CPU's thread parks while it waits. In
+	 * discrete-event mode nothing can happen before the next event, so the
+	 * clock skips straight to it.
+	 */
+	private void runHalted() {
+		if (m_events != null) {
+			if (m_IC.isEmpty() && !m_wakeUp) {
+				long due = m_events.nextDue();
+				if (due == Long.MAX_VALUE) {
+					System.out.println("CPU ERROR: halted with no I/O pending");
+					System.exit(-1);
+				}
+				if (due > m_ticks) {
+					m_haltedTicks += due - m_ticks;
+					m_ticks = (int) due;
+					updateClockDeadline();
+				}
+				m_events.runDue(m_ticks);
+			}
+		} else {
+			if (m_IC != null) {
+				m_IC.setWaiter(m_thread);
+			}
+			while (!m_wakeUp && ((m_IC == null) || m_IC.isEmpty())) {
+				LockSupport.park(this);
+			}
+			if (m_IC != null) {
+				m_IC.setWaiter(null);
+			}
+		}
+		m_wakeUp = false;
+
+		checkForIOInterrupt();
+		raiseClockInterrupt();
+		if (!m_halted) {
+			setPC(getPC() + INSTRSIZE);
+		}
+	}// runHalted
+
+	/**
+	 * chargeStall
+	 * 
+	 * adds the time this CPU has spent waiting on RAM to the tick count, at
+	 * {@link EventQueue#DEFAULT_NANOS_PER_TICK} nanoseconds per tick. The
+	 * whole stall is charged at once. If it runs past the next clock
+	 * interrupt, the interrupt is raised as soon as the stalled instruction
+	 * is done and covers every clock period the stall crossed, just as a
+	 * halted CPU skips ahead in discrete-event mode.
+	 */
+	private void chargeStall() {
+		m_stallNanos += m_RAM.takeStallTime();
+		long ticks = m_stallNanos / EventQueue.DEFAULT_NANOS_PER_TICK;
+		m_ticks += (int) ticks;
+		m_stallNanos -= ticks * EventQueue.DEFAULT_NANOS_PER_TICK;
+	}// chargeStall
+
+	/**
+	 * runTranslatedBlock
+	 * 
+	 * runs the translated block at the PC, if any. The block is only allowed
+	 * to run up to the next clock interrupt (a CLOCK_FREQ boundary or, in
+	 * tickless mode, the timer running out) and its ticks are charged at once
+	 * when it returns. If it stopped at the interrupt, the interrupt is
+	 * delivered exactly as the interpreter would deliver it after the last
+	 * instruction the block ran.
+	 * 
+	 * @return true if a block was run, false if the interpreter must execute
+	 *         the instruction at the PC
+	 */
+	private boolean runTranslatedBlock() {
+		int count = m_translator.execute(getPC(), m_registers,
+		        m_clockDeadline - m_ticks);
+		if (count == 0) {
+			return false;
+		}
+
+		m_ticks += count;
+		if (m_chargeStall) {
+			chargeStall();
+		}
+		if (m_ticks >= m_clockDeadline) {
+			// The interpreter raises the clock interrupt before it advances
+			// the PC past the last instruction, so do the same here
+			setPC(getPC() - INSTRSIZE);
+			raiseClockInterrupt();
+			setPC(getPC() + INSTRSIZE);
+		}
+
+		return true;
+	}// runTranslatedBlock
+
 	/**
 	 * isValidAddress
 	 * 
@@ -480,34 +947,45 @@ public class CPU implements Runnable {
 	 * 
 	 */
 	private void checkForIOInterrupt() {
-		// If there is no interrupt to process, do nothing
-		if (m_IC.isEmpty()) {
+		// Secondary cores aren't wired to the interrupt controller
+		if (m_IC == null) {
 			return;
 		}
 
-		// Retreive the interrupt data
-		int[] intData = m_IC.getData();
+		// Retreive the pending interrupts (if there are none, do nothing)
+		int[] intData = m_intData;
+		int count = m_IC.drain(intData, MAX_INT_BATCH);
 
-		// Report the data if in verbose mode
-		if (m_verbose) {
-			System.out.println("CPU received interrupt: type=" + intData[0]
-			        + " dev=" + intData[1] + " addr=" + intData[2] + " data="
-			        + intData[3]);
-		}
+		for (int i = 0; i < count; i++) {
+			int base = i * InterruptController.INT_SIZE;
 
-		// Dispatch the interrupt to the OS
-		switch (intData[0]) {
-		case InterruptController.INT_READ_DONE:
-			m_TH.interruptIOReadComplete(intData[1], intData[2], intData[3]);
-			break;
-		case InterruptController.INT_WRITE_DONE:
-			m_TH.interruptIOWriteComplete(intData[1], intData[2]);
-			break;
-		default:
-			System.out.println("CPU ERROR:  Illegal Interrupt Received.");
-			System.exit(-1);
-			break;
-		}// switch
+			// Report the data if in verbose mode
+			if (m_verbose) {
+				System.out.println("CPU received interrupt: type="
+				        + intData[base] + " dev=" + intData[base + 1] + " addr="
+				        + intData[base + 2] + " data=" + intData[base + 3]);
+			}
+			if (m_trace != null) {
+				m_trace.record(m_ticks, intData[base], intData[base + 1],
+				        intData[base + 2], intData[base + 3]);
+			}
+
+			// Dispatch the interrupt to the OS
+			switch (intData[base]) {
+			case InterruptController.INT_READ_DONE:
+				m_TH.interruptIOReadComplete(intData[base + 1],
+				        intData[base + 2], intData[base + 3]);
+				break;
+			case InterruptController.INT_WRITE_DONE:
+				m_TH.interruptIOWriteComplete(intData[base + 1],
+				        intData[base + 2]);
+				break;
+			default:
+				System.out.println("CPU ERROR:  Illegal Interrupt Received.");
+				System.exit(-1);
+				break;
+			}// switch
+		}// for
 
 	}// checkForIOInterrupt
 
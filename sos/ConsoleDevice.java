@@ -1,6 +1,7 @@
 package sos;
 
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class simulates a simple, sharable write-only device.
@@ -14,11 +15,24 @@ public class ConsoleDevice implements Device, Runnable {
 	private int m_maxLatency = 1000; // maximum latency in ns
 	private int m_minLatency = 500; // minimum latnecy in ns
 	private int m_Id = -999; // the OS assigned device ID
-	private boolean m_request = false; // is the device currently processing a
-									   // request?
+	private volatile boolean m_request = false; // is the device currently
+												// processing a request?
+	private volatile Thread m_thread = null; // the thread running this device
 	private int m_addr = 0; // address to write to
 	private int m_data = 0; // data associated with the current request
 	private InterruptController m_IC; // reference to the interrupt controller
+	private Device.Scheduler m_scheduler = null; // shared scheduler (null if
+												 // the device has a thread)
+	private Random m_random = new Random(); // source of latencies
+
+	/**
+	 * finishes the current request when the device is run by a scheduler
+	 */
+	private Runnable m_completion = new Runnable() {
+		public void run() {
+			complete();
+		}
+	};
 
 	/**
 	 * This constructor uses the default values for latency)
@@ -103,6 +117,30 @@ public class ConsoleDevice implements Device, Runnable {
 		return true;
 	}
 
+	/**
+	 * setScheduler
+	 * 
+	 * @param scheduler
+	 *            the shared scheduler to time requests with or null to use a
+	 *            thread running {@link #run}
+	 */
+	public void setScheduler(Device.Scheduler scheduler) {
+		m_scheduler = scheduler;
+	}
+
+	/**
+	 * setSeed
+	 * 
+	 * seeds this device's random numbers so that a simulation can be
+	 * repeated exactly
+	 * 
+	 * @param seed
+	 *            the seed
+	 */
+	public void setSeed(long seed) {
+		m_random.setSeed(seed);
+	}
+
 	/**
 	 * read
 	 * 
@@ -126,14 +164,57 @@ public class ConsoleDevice implements Device, Runnable {
 		m_addr = addr;
 		m_data = data;
 		m_request = true;
+
+		if (m_scheduler != null) {
+			// Finish the request once the latency has passed
+			m_scheduler.schedule(m_completion, latencyNanos());
+		} else {
+			// Wake up the device if it is waiting for work
+			LockSupport.unpark(m_thread);
+		}
 	}
 
+	/**
+	 * latencyNanos
+	 * 
+	 * @return a random delay for one request in nanoseconds (the same delay
+	 *         the device has always slept for, i.e., Thread.sleep(latency /
+	 *         1000, latency % 1000))
+	 */
+	private long latencyNanos() {
+		int rn = (int) (m_random.nextDouble() * 2147483647); // random #
+		int latency = (rn % (m_maxLatency - m_minLatency)) + m_minLatency;
+		return (latency / 1000) * 1000000L + (latency % 1000);
+	}// latencyNanos
+
+	/**
+	 * complete
+	 * 
+	 * finishes the current request: prints the data and tells the CPU that
+	 * the write is done
+	 */
+	private void complete() {
+		int addr = m_addr;
+
+		// print the data
+		System.out.println("\nCONSOLE: " + m_data);
+
+		// Make the device available for another request. This must
+		// happen before the CPU hears about the completed operation since
+		// the OS may hand us the next request as soon as it does.
+		m_request = false;
+
+		// Notify the CPU of completed operation
+		m_IC.putData(InterruptController.INT_WRITE_DONE, m_Id, addr, -999);
+	}// complete
+
 	/**
 	 * run
 	 * 
 	 * This method represents the device + controller. It watches for reqeusts
 	 * (via m_request and m_data) and handles them. It also inserts a random
-	 * latency to simulate the amount of time required.
+	 * latency to simulate the amount of time required. While there is no
+	 * request the thread is parked, so an idle device uses no CPU.
 	 * 
 	 * (I have no idea whether the default latency setting (500-1000 ns) is at
 	 * all realistic and, of course, the time spent calling System.out.println
@@ -141,31 +222,24 @@ public class ConsoleDevice implements Device, Runnable {
 	 * video latencies I will change this code to reflect that data.)
 	 */
 	public void run() {
+		m_thread = Thread.currentThread();
+
 		// Device runs until program ends
 		while (true) {
-			// While there is no request to process, yield the CPU to another
-			// thread
+			// While there is no request to process, sleep until write() wakes
+			// us up
 			while (!m_request) {
-				Thread.yield();
+				LockSupport.park(this);
 			}
 
 			// We've received a request. Sleep to simulate the latency
 			try {
-				int rn = (int) (Math.random() * 2147483647); // random #
-				int latency = (rn % (m_maxLatency - m_minLatency))
-				        + m_minLatency;
-				Thread.sleep(latency / 1000, latency % 1000);
+				long latency = latencyNanos();
+				Thread.sleep(latency / 1000000, (int) (latency % 1000000));
 			} catch (InterruptedException e) {
 			} // should never happen
 
-			// print the data
-			System.out.println("\nCONSOLE: " + m_data);
-
-			// Notify the CPU of completed operation
-			m_IC.putData(InterruptController.INT_WRITE_DONE, m_Id, m_addr, -999);
-
-			// Make the device available for another request
-			m_request = false;
+			complete();
 		}// while
 	}// run
 
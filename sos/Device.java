@@ -75,4 +75,38 @@ public interface Device {
 	 */
 	public void write(int addr, int data);
 
+	/**
+	 * setScheduler
+	 * 
+	 * makes the device time its requests with a shared scheduler instead of
+	 * running on a thread of its own. Once a scheduler is set the device's
+	 * run() method should not be started.
+	 * 
+	 * @param scheduler
+	 *            the scheduler to use or null to go back to a dedicated thread
+	 */
+	public void setScheduler(Scheduler scheduler);
+
+	// ======================================================================
+	// Callback Interface
+	// ----------------------------------------------------------------------
+	/**
+	 * Scheduler
+	 * 
+	 * This interface is implemented by anything that can run a device's
+	 * completion code after a delay. Many devices can share one scheduler, so
+	 * a simulation doesn't need a thread for every device.
+	 */
+	public interface Scheduler {
+		/**
+		 * schedule
+		 * 
+		 * @param task
+		 *            the code to run
+		 * @param delayNanos
+		 *            how long to wait before running it, in nanoseconds
+		 */
+		void schedule(Runnable task, long delayNanos);
+	};// interface Scheduler
+
 };// interface Device
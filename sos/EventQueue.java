@@ -0,0 +1,252 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This class is the heart of the discrete-event simulation mode. Instead of
+ * devices sleeping on their own threads, each device schedules its completion
+ * as an event on the CPU's tick timeline. The CPU runs every event that has
+ * fallen due before it checks the interrupt controller, so a completion is
+ * delivered at the tick it was scheduled for no matter how fast or loaded the
+ * host is. Because everything then happens on the CPU's thread, a run with
+ * seeded random numbers is completely deterministic.
+ * 
+ * Events are kept in a binary heap ordered by due tick. Events due on the
+ * same tick run in the order they were scheduled.
+ * 
+ * @see CPU#setEventQueue
+ * @see Device.Scheduler
+ */
+public class EventQueue implements Device.Scheduler {
+	// ======================================================================
+	// Constants
+	// ----------------------------------------------------------------------
+
+	// By default one CPU tick (one instruction) stands for a microsecond
+	public static final int DEFAULT_NANOS_PER_TICK = 1000;
+
+	// Initial number of events the heap has room for (it grows as needed)
+	private static final int INITIAL_CAPACITY = 64;
+
+	// ======================================================================
+	// Member Variables
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the CPU whose ticks this queue's events are scheduled on
+	 */
+	private CPU m_CPU = null;
+
+	/**
+	 * how many nanoseconds of device latency one tick represents
+	 */
+	private int m_nanosPerTick;
+
+	/**
+	 * the heap: due tick, order of scheduling (to break ties) and the code to
+	 * run for each event
+	 */
+	private long m_due[] = new long[INITIAL_CAPACITY];
+	private long m_order[] = new long[INITIAL_CAPACITY];
+	private Runnable m_tasks[] = new Runnable[INITIAL_CAPACITY];
+
+	/**
+	 * the number of events in the heap
+	 */
+	private int m_size = 0;
+
+	/**
+	 * the number of events scheduled so far
+	 */
+	private long m_scheduled = 0;
+
+	// ======================================================================
+	// Methods
+	// ----------------------------------------------------------------------
+
+	/**
+	 * constructor
+	 * 
+	 * @param cpu
+	 *            the CPU whose tick count is the simulation's clock
+	 * @param nanosPerTick
+	 *            how many nanoseconds of device latency one tick represents
+	 */
+	public EventQueue(CPU cpu, int nanosPerTick) {
+		m_CPU = cpu;
+		m_nanosPerTick = nanosPerTick;
+	}// ctor
+
+	/**
+	 * getNanosPerTick
+	 * 
+	 * @return how many nanoseconds of device latency one tick represents
+	 */
+	public int getNanosPerTick() {
+		return m_nanosPerTick;
+	}
+
+	/**
+	 * getTicks
+	 * 
+	 * @return the current tick on the CPU's clock
+	 */
+	public long getTicks() {
+		return m_CPU.getTicks();
+	}
+
+	/**
+	 * isEmpty
+	 * 
+	 * @return true if no events are waiting
+	 */
+	public boolean isEmpty() {
+		return m_size == 0;
+	}
+
+	/**
+	 * nextDue
+	 * 
+	 * @return the tick the earliest event is due at, or Long.MAX_VALUE if
+	 *         there are none
+	 */
+	public long nextDue() {
+		return (m_size == 0) ? Long.MAX_VALUE : m_due[0];
+	}
+
+	/**
+	 * schedule
+	 * 
+	 * schedules a task to run once the given delay has passed on the CPU's
+	 * clock. The delay is rounded up to a whole number of ticks and is always
+	 * at least one tick, so a task never runs during the instruction that
+	 * scheduled it.
+	 * 
+	 * @param task
+	 *            the code to run
+	 * @param delayNanos
+	 *            how long to wait before running it, in nanoseconds
+	 */
+	public void schedule(Runnable task, long delayNanos) {
+		long delayTicks = Math.max(1, (delayNanos + m_nanosPerTick - 1)
+		        / m_nanosPerTick);
+		scheduleAt(m_CPU.getTicks() + delayTicks, task);
+	}// schedule
+
+	/**
+	 * scheduleAt
+	 * 
+	 * schedules a task to run at a given tick
+	 * 
+	 * @param tick
+	 *            the tick to run the task at (if it has already passed the
+	 *            task runs at the next opportunity)
+	 * @param task
+	 *            the code to run
+	 */
+	public void scheduleAt(long tick, Runnable task) {
+		if (m_size == m_due.length) {
+			m_due = Arrays.copyOf(m_due, m_size * 2);
+			m_order = Arrays.copyOf(m_order, m_size * 2);
+			m_tasks = Arrays.copyOf(m_tasks, m_size * 2);
+		}
+
+		// Sift the new event up from the bottom of the heap
+		long order = m_scheduled++;
+		int i = m_size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(tick, order, m_due[parent], m_order[parent])) {
+				break;
+			}
+			move(parent, i);
+			i = parent;
+		}
+		m_due[i] = tick;
+		m_order[i] = order;
+		m_tasks[i] = task;
+	}// scheduleAt
+
+	/**
+	 * runDue
+	 * 
+	 * runs every event that is due at or before the given tick, earliest
+	 * first. Events scheduled by those events are run too if they are also
+	 * due.
+	 * 
+	 * @param now
+	 *            the current tick
+	 * @return the number of events run
+	 */
+	public int runDue(long now) {
+		int count = 0;
+		while ((m_size > 0) && (m_due[0] <= now)) {
+			Runnable task = m_tasks[0];
+			removeFirst();
+			task.run();
+			count++;
+		}
+
+		return count;
+	}// runDue
+
+	/**
+	 * removeFirst
+	 * 
+	 * removes the earliest event from the heap
+	 */
+	private void removeFirst() {
+		m_size--;
+		long tick = m_due[m_size];
+		long order = m_order[m_size];
+		Runnable task = m_tasks[m_size];
+		m_tasks[m_size] = null;
+
+		// Sift the last event down from the top of the heap
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= m_size) {
+				break;
+			}
+			if ((child + 1 < m_size)
+			        && before(m_due[child + 1], m_order[child + 1], m_due[child],
+			                m_order[child])) {
+				child++;
+			}
+			if (!before(m_due[child], m_order[child], tick, order)) {
+				break;
+			}
+			move(child, i);
+			i = child;
+		}
+		if (m_size > 0) {
+			m_due[i] = tick;
+			m_order[i] = order;
+			m_tasks[i] = task;
+		}
+	}// removeFirst
+
+	/**
+	 * before
+	 * 
+	 * @return true if an event (tick, order) must run before another event
+	 *         (otherTick, otherOrder)
+	 */
+	private static boolean before(long tick, long order, long otherTick,
+	        long otherOrder) {
+		return (tick < otherTick) || ((tick == otherTick) && (order < otherOrder));
+	}
+
+	/**
+	 * move
+	 * 
+	 * copies the event in one slot of the heap to another
+	 */
+	private void move(int from, int to) {
+		m_due[to] = m_due[from];
+		m_order[to] = m_order[from];
+		m_tasks[to] = m_tasks[from];
+	}
+
+};// class EventQueue
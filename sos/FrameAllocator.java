@@ -0,0 +1,138 @@
+package sos;
+
+/**
+ * This class keeps track of which frames of physical RAM are free with a
+ * bitmap, one bit per frame (set if the frame is free). A free frame is found
+ * by skipping whole words of the bitmap that have no bit set and then using
+ * {@link Long#numberOfTrailingZeros} on the first one that does, so finding a
+ * frame only looks at one bit in 64. The search starts at the lowest word
+ * that might have a free frame.
+ * 
+ * Any free frame will do for any page, so memory allocated a frame at a time
+ * never needs to be compacted.
+ * 
+ * @see SOS#ALLOC_PAGED
+ */
+public class FrameAllocator {
+	// ======================================================================
+	// Member Variables
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the bitmap: bit (f % 64) of word (f / 64) is set if frame f is free
+	 */
+	private long m_free[] = null;
+
+	/**
+	 * the number of frames and how many of them are free
+	 */
+	private int m_numFrames = 0;
+	private int m_numFree = 0;
+
+	/**
+	 * no word of the bitmap before this one has a free frame
+	 */
+	private int m_hint = 0;
+
+	// ======================================================================
+	// Methods
+	// ----------------------------------------------------------------------
+
+	/**
+	 * constructor
+	 * 
+	 * @param numFrames
+	 *            the number of frames of RAM, all of which start out free
+	 */
+	public FrameAllocator(int numFrames) {
+		m_numFrames = numFrames;
+		m_numFree = numFrames;
+		m_free = new long[(numFrames + 63) / 64];
+		for (int f = 0; f < numFrames; f++) {
+			m_free[f >>> 6] |= 1L << f;
+		}
+	}// ctor
+
+	/**
+	 * alloc
+	 * 
+	 * @return the lowest free frame, which is now allocated -OR- -1 if every
+	 *         frame is in use
+	 */
+	public int alloc() {
+		while (m_hint < m_free.length) {
+			long word = m_free[m_hint];
+			if (word != 0) {
+				int frame = (m_hint << 6) + Long.numberOfTrailingZeros(word);
+				m_free[m_hint] = word & (word - 1);
+				m_numFree--;
+				return frame;
+			}
+			m_hint++;
+		}
+		return -1;
+	}// alloc
+
+	/**
+	 * reserve
+	 * 
+	 * marks a frame as allocated (e.g., because it holds the page table)
+	 * 
+	 * @param frame
+	 *            the frame, which must be free
+	 */
+	public void reserve(int frame) {
+		if (!isFree(frame)) {
+			throw new IllegalArgumentException("frame " + frame
+			        + " isn't free");
+		}
+		m_free[frame >>> 6] &= ~(1L << frame);
+		m_numFree--;
+	}// reserve
+
+	/**
+	 * free
+	 * 
+	 * gives back an allocated frame
+	 * 
+	 * @param frame
+	 *            the frame
+	 */
+	public void free(int frame) {
+		if ((frame < 0) || (frame >= m_numFrames) || isFree(frame)) {
+			throw new IllegalArgumentException("frame " + frame
+			        + " isn't allocated");
+		}
+		m_free[frame >>> 6] |= 1L << frame;
+		m_numFree++;
+		m_hint = Math.min(m_hint, frame >>> 6);
+	}// free
+
+	/**
+	 * isFree
+	 * 
+	 * @return true if the given frame is free
+	 */
+	public boolean isFree(int frame) {
+		return (m_free[frame >>> 6] & (1L << frame)) != 0;
+	}
+
+	/**
+	 * getNumFrames
+	 * 
+	 * @return the number of frames
+	 */
+	public int getNumFrames() {
+		return m_numFrames;
+	}
+
+	/**
+	 * getNumFree
+	 * 
+	 * @return the number of free frames
+	 */
+	public int getNumFree() {
+		return m_numFree;
+	}
+
+}// class FrameAllocator
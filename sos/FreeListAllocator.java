@@ -0,0 +1,271 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This class hands out memory from a list of free blocks, carving each
+ * allocation off the low end of a free block. The free blocks are indexed
+ * twice: by address, so that a freed block is merged with its neighbors in
+ * O(log n) time, and by size, so that the smallest block that fits can be
+ * found in O(log n) time. It supports three policies:
+ * 
+ * FIRST_FIT takes the free block with the lowest address that is big enough.
+ * BEST_FIT takes the smallest free block that is big enough (the lowest
+ * addressed one if there are several). NEXT_FIT is first fit starting from
+ * where the last allocation ended, wrapping around.
+ * 
+ * First and next fit may still have to look at every free block, but they
+ * give up at once if even the largest free block is too small.
+ * 
+ * This allocator doesn't keep track of the blocks it has handed out, so SOS
+ * may compact memory by moving the processes (see {@link #reset}).
+ * 
+ * @see RelocatableAllocator
+ */
+public class FreeListAllocator implements RelocatableAllocator {
+	// ======================================================================
+	// Constants
+	// ----------------------------------------------------------------------
+
+	// Allocation policies
+	public static final int FIRST_FIT = 0;
+	public static final int BEST_FIT = 1;
+	public static final int NEXT_FIT = 2;
+
+	// ======================================================================
+	// Member Variables
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the allocation policy
+	 */
+	private int m_policy;
+
+	/**
+	 * the memory managed: from m_base up to (but not including) m_end
+	 */
+	private int m_base;
+	private int m_end;
+
+	/**
+	 * the size of each free block, by address
+	 */
+	private TreeMap<Integer, Integer> m_byAddr = new TreeMap<Integer, Integer>();
+
+	/**
+	 * the addresses of the free blocks of each size
+	 */
+	private TreeMap<Integer, TreeSet<Integer>> m_bySize = new TreeMap<Integer, TreeSet<Integer>>();
+
+	/**
+	 * the total number of free words
+	 */
+	private int m_freeSize = 0;
+
+	/**
+	 * where the next next fit search starts
+	 */
+	private int m_rover;
+
+	// ======================================================================
+	// Methods
+	// ----------------------------------------------------------------------
+
+	/**
+	 * constructor
+	 * 
+	 * @param policy
+	 *            FIRST_FIT, BEST_FIT or NEXT_FIT
+	 * @param base
+	 *            the address of the memory to manage
+	 * @param size
+	 *            the number of words to manage
+	 */
+	public FreeListAllocator(int policy, int base, int size) {
+		m_policy = policy;
+		m_base = base;
+		m_end = base + size;
+		reset(base);
+	}// ctor
+
+	/**
+	 * alloc
+	 * 
+	 * finds a free block with the allocation policy and carves the memory
+	 * off its low end
+	 */
+	public int alloc(int size) {
+		if (m_bySize.isEmpty() || (m_bySize.lastKey() < size)) {
+			return -1;
+		}
+
+		int addr;
+		if (m_policy == BEST_FIT) {
+			addr = m_bySize.ceilingEntry(size).getValue().first();
+		} else {
+			int start = (m_policy == NEXT_FIT) ? m_rover : m_base;
+			addr = findFirst(m_byAddr.tailMap(start, true), size);
+			if (addr == -1) {
+				addr = findFirst(m_byAddr.headMap(start, false), size);
+			}
+		}
+
+		// Give back what's left of the block
+		int blockSize = m_byAddr.get(addr);
+		removeFree(addr, blockSize);
+		if (blockSize > size) {
+			addFree(addr + size, blockSize - size);
+		}
+		m_rover = addr + size;
+
+		return addr;
+	}// alloc
+
+	/**
+	 * findFirst
+	 * 
+	 * @param blocks
+	 *            free blocks by address
+	 * @param size
+	 *            the number of words needed
+	 * @return the address of the first of the blocks that is big enough -OR-
+	 *         -1 if there isn't one
+	 */
+	private int findFirst(SortedMap<Integer, Integer> blocks, int size) {
+		for (Map.Entry<Integer, Integer> e : blocks.entrySet()) {
+			if (e.getValue() >= size) {
+				return e.getKey();
+			}
+		}
+		return -1;
+	}// findFirst
+
+	/**
+	 * free
+	 * 
+	 * frees a block, merging it with the free blocks on either side of it
+	 */
+	public void free(int addr, int size) {
+		Map.Entry<Integer, Integer> lower = m_byAddr.lowerEntry(addr);
+		if ((lower != null) && (lower.getKey() + lower.getValue() == addr)) {
+			removeFree(lower.getKey(), lower.getValue());
+			addr = lower.getKey();
+			size += lower.getValue();
+		}
+
+		Integer higherSize = m_byAddr.get(addr + size);
+		if (higherSize != null) {
+			removeFree(addr + size, higherSize);
+			size += higherSize;
+		}
+
+		addFree(addr, size);
+	}// free
+
+	/**
+	 * addFree
+	 * 
+	 * adds a block to both indexes
+	 */
+	private void addFree(int addr, int size) {
+		m_byAddr.put(addr, size);
+		TreeSet<Integer> addrs = m_bySize.get(size);
+		if (addrs == null) {
+			addrs = new TreeSet<Integer>();
+			m_bySize.put(size, addrs);
+		}
+		addrs.add(addr);
+		m_freeSize += size;
+	}// addFree
+
+	/**
+	 * removeFree
+	 * 
+	 * removes a block from both indexes
+	 */
+	private void removeFree(int addr, int size) {
+		m_byAddr.remove(addr);
+		TreeSet<Integer> addrs = m_bySize.get(size);
+		addrs.remove(addr);
+		if (addrs.isEmpty()) {
+			m_bySize.remove(size);
+		}
+		m_freeSize -= size;
+	}// removeFree
+
+	/**
+	 * reset
+	 * 
+	 * leaves a single free block from the given address to the end
+	 */
+	public void reset(int freeAddr) {
+		m_byAddr.clear();
+		m_bySize.clear();
+		m_freeSize = 0;
+		if (freeAddr < m_end) {
+			addFree(freeAddr, m_end - freeAddr);
+		}
+		m_rover = freeAddr;
+	}// reset
+
+	/**
+	 * reserve
+	 * 
+	 * carves the block out of the free block that contains it
+	 */
+	public void reserve(int addr, int size) {
+		Map.Entry<Integer, Integer> block = m_byAddr.floorEntry(addr);
+		if ((block == null)
+		        || (block.getKey() + block.getValue() < addr + size)) {
+			throw new IllegalArgumentException(size + " words at " + addr
+			        + " aren't free");
+		}
+
+		int blockAddr = block.getKey();
+		int blockSize = block.getValue();
+		removeFree(blockAddr, blockSize);
+		if (addr > blockAddr) {
+			addFree(blockAddr, addr - blockAddr);
+		}
+		if (blockAddr + blockSize > addr + size) {
+			addFree(addr + size, blockAddr + blockSize - addr - size);
+		}
+	}// reserve
+
+	/**
+	 * getFreeSize
+	 * 
+	 * @return the total number of free words
+	 */
+	public int getFreeSize() {
+		return m_freeSize;
+	}
+
+	/**
+	 * getLargestFreeBlock
+	 * 
+	 * @return the size of the largest free block
+	 */
+	public int getLargestFreeBlock() {
+		return m_bySize.isEmpty() ? 0 : m_bySize.lastKey();
+	}
+
+	/**
+	 * getAllocatedSize
+	 * 
+	 * @return the total number of words allocated
+	 */
+	public int getAllocatedSize() {
+		return m_end - m_base - m_freeSize;
+	}
+
+	/**
+	 * getFreeBlocks
+	 * 
+	 * @return the address and size of each free block
+	 */
+	public SortedMap<Integer, Integer> getFreeBlocks() {
+		return Collections.unmodifiableSortedMap(m_byAddr);
+	}
+
+}// class FreeListAllocator
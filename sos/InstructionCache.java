@@ -0,0 +1,179 @@
+package sos;
+
+/**
+ * This class simulates a decoded instruction cache. Each entry holds an
+ * instruction that has already been fetched from RAM, keyed by the physical
+ * address of its opcode, with the opcode and its arguments stored in separate
+ * primitive arrays so that a hit costs no RAM accesses and no allocation.
+ * 
+ * The cache is direct mapped. It registers itself with the {@link RAM} it
+ * caches so that any write to a word belonging to a cached instruction
+ * invalidates that instruction (this keeps self-modifying code and program
+ * loading correct).
+ * 
+ * @see MMU#fetch(int, int[])
+ * @see RAM#addCodeCache
+ */
+public class InstructionCache implements RAM.CodeCache {
+	// ======================================================================
+	// Constants
+	// ----------------------------------------------------------------------
+	public static final int DEFAULT_SIZE = 1024; // entries
+
+	// ======================================================================
+	// Member Variables
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the physical address of the instruction in each entry (-1 if invalid)
+	 */
+	private int m_tags[];
+
+	/**
+	 * the decoded instruction in each entry
+	 */
+	private int m_opcodes[];
+	private int m_arg1[];
+	private int m_arg2[];
+	private int m_arg3[];
+
+	/**
+	 * mask used to select an entry from an address
+	 */
+	private int m_indexMask;
+
+	/**
+	 * cache statistics
+	 */
+	private long m_hits = 0;
+	private long m_misses = 0;
+
+	// ======================================================================
+	// Methods
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the constructor allocates an empty cache
+	 * 
+	 * @param size
+	 *            the number of instructions to cache. This is rounded down to
+	 *            a power of 2.
+	 */
+	public InstructionCache(int size) {
+		int entries = 1;
+		while (entries * 2 <= size) {
+			entries *= 2;
+		}
+		m_indexMask = entries - 1;
+		m_tags = new int[entries];
+		m_opcodes = new int[entries];
+		m_arg1 = new int[entries];
+		m_arg2 = new int[entries];
+		m_arg3 = new int[entries];
+		flush();
+	}// ctor
+
+	/**
+	 * getSize
+	 * 
+	 * @return the number of instructions the cache can hold
+	 */
+	public int getSize() {
+		return m_tags.length;
+	}
+
+	/**
+	 * getHits
+	 * 
+	 * @return the number of fetches satisfied by the cache
+	 */
+	public long getHits() {
+		return m_hits;
+	}
+
+	/**
+	 * getMisses
+	 * 
+	 * @return the number of fetches that had to read RAM
+	 */
+	public long getMisses() {
+		return m_misses;
+	}
+
+	/**
+	 * lookup
+	 * 
+	 * copies a cached instruction into the given buffer
+	 * 
+	 * @param physPC
+	 *            the physical address of the instruction
+	 * @param instr
+	 *            receives the opcode followed by its arguments
+	 * @return true if the instruction was cached, false otherwise (in which
+	 *         case instr is unchanged)
+	 */
+	public boolean lookup(int physPC, int[] instr) {
+		int i = (physPC >>> 2) & m_indexMask;
+		if (m_tags[i] != physPC) {
+			m_misses++;
+			return false;
+		}
+
+		m_hits++;
+		instr[0] = m_opcodes[i];
+		instr[1] = m_arg1[i];
+		instr[2] = m_arg2[i];
+		instr[3] = m_arg3[i];
+		return true;
+	}// lookup
+
+	/**
+	 * fill
+	 * 
+	 * stores an instruction that was just read from RAM
+	 * 
+	 * @param physPC
+	 *            the physical address of the instruction
+	 * @param instr
+	 *            the opcode followed by its arguments
+	 */
+	public void fill(int physPC, int[] instr) {
+		int i = (physPC >>> 2) & m_indexMask;
+		m_tags[i] = physPC;
+		m_opcodes[i] = instr[0];
+		m_arg1[i] = instr[1];
+		m_arg2[i] = instr[2];
+		m_arg3[i] = instr[3];
+	}// fill
+
+	/**
+	 * invalidate
+	 * 
+	 * drops any cached instruction that contains the given word. An
+	 * instruction starting at any of the {@link CPU#INSTRSIZE} addresses at or
+	 * below addr covers it.
+	 * 
+	 * @param addr
+	 *            the physical address that was written
+	 */
+	public void invalidate(int addr) {
+		for (int pc = addr - CPU.INSTRSIZE + 1; pc <= addr; pc++) {
+			int i = (pc >>> 2) & m_indexMask;
+			if (m_tags[i] == pc) {
+				m_tags[i] = -1;
+			}
+		}
+	}// invalidate
+
+	/**
+	 * flush
+	 * 
+	 * invalidates every entry in the cache
+	 */
+	public void flush() {
+		for (int i = 0; i < m_tags.length; i++) {
+			m_tags[i] = -1;
+		}
+	}// flush
+
+}// class InstructionCache
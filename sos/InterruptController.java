@@ -1,13 +1,20 @@
 package sos;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /**
  * This class represents the CPU's interrupt controller. More abstractly is the
  * container object between a producer (device(s)) and consumer (CPU).
  * 
- * Adapted from an example in the Concurrent Programming Tutorial written by Sun
- * Microsystems Inc.
+ * Pending interrupts are kept in a bounded ring buffer that any number of
+ * devices can post to and that only the CPU takes from. Neither side ever
+ * takes a lock: each slot carries a sequence number that says whether it is
+ * free for the producer at a given position or full for the consumer at a
+ * given position (see Dmitry Vyukov's bounded MPMC queue). Devices claim a
+ * slot by advancing the tail with a compare-and-set, fill it in and then
+ * publish it by bumping its sequence number.
  * 
  * @see Device
  * @see CPU
@@ -21,84 +28,198 @@ public class InterruptController {
 	public static final int INT_READ_DONE = 100;
 	public static final int INT_WRITE_DONE = 101;
 
+	// Number of ints that describe one interrupt (operation, device, address
+	// and data)
+	public static final int INT_SIZE = 4;
+
+	// Number of interrupts that can be pending at once by default
+	public static final int DEFAULT_CAPACITY = 64;
+
 	// ======================================================================
 	// Variables
 	// ----------------------------------------------------------------------
-	private int m_operation = 0; // What interrupt is to be generated?
-	private int m_devNum = 0; // the id of the device that has data
-	private int m_addr = 0; // the address where data was read/wrote
-	private int m_data = 0; // the data
-	private boolean m_empty = true; // whether or not there is an interrupt
+	private int m_capacity; // number of slots (a power of 2)
+	private int m_mask; // m_capacity - 1
+	private int m_slots[]; // INT_SIZE ints per slot
+	private AtomicLongArray m_seq; // per-slot sequence numbers
+	private AtomicLong m_tail = new AtomicLong(); // next position to post to
+	private long m_head = 0; // next position to take (only used by the CPU)
+	private volatile Thread m_waiter = null; // halted CPU thread to unpark
 
 	// ======================================================================
 	// Methods
 	// ----------------------------------------------------------------------
 
 	/**
-	 * the constructor does nothing
+	 * the constructor creates a controller with room for
+	 * {@link #DEFAULT_CAPACITY} pending interrupts
 	 * 
 	 */
 	public InterruptController() {
+		this(DEFAULT_CAPACITY);
 	}
 
 	/**
-	 * Is there data available to take?
+	 * constructor
+	 * 
+	 * @param capacity
+	 *            the number of interrupts that can be pending at once. This
+	 *            is rounded up to a power of 2.
+	 */
+	public InterruptController(int capacity) {
+		m_capacity = 1;
+		while (m_capacity < capacity) {
+			m_capacity <<= 1;
+		}
+		m_mask = m_capacity - 1;
+		m_slots = new int[m_capacity * INT_SIZE];
+
+		// Slot i is free for the producer at position i
+		m_seq = new AtomicLongArray(m_capacity);
+		for (int i = 0; i < m_capacity; i++) {
+			m_seq.set(i, i);
+		}
+	}// ctor
+
+	/**
+	 * Is there data available to take? This must only be called by the
+	 * consumer (the CPU).
 	 * 
 	 */
 	public boolean isEmpty() {
-		return m_empty;
+		return m_seq.get((int) (m_head & m_mask)) != m_head + 1;
 	}
 
 	/**
-	 * getData
+	 * setWaiter
 	 * 
-	 * is used by the CPU to retrieve the data associated with the interrupt.
+	 * is used by a halted CPU to be unparked when the next interrupt is
+	 * posted. The CPU must check {@link #isEmpty} after setting itself as
+	 * the waiter and before parking.
+	 * 
+	 * @param waiter
+	 *            the CPU's thread or null once it stops waiting
 	 */
-	public synchronized int[] getData() {
-		while (m_empty) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-			} // should never happen
-		}
-
-		// Fill an array with the device number and data
-		int[] retVal = new int[4];
-		retVal[0] = m_operation;
-		retVal[1] = m_devNum;
-		retVal[2] = m_addr;
-		retVal[3] = m_data;
+	public void setWaiter(Thread waiter) {
+		m_waiter = waiter;
+	}
 
-		// Make the interrupt controller available for other devices
-		m_empty = true;
-		notifyAll();
+	/**
+	 * getCapacity
+	 * 
+	 * @return the number of interrupts that can be pending at once
+	 */
+	public int getCapacity() {
+		return m_capacity;
+	}
 
-		return retVal;
+	/**
+	 * offer
+	 * 
+	 * is used by a device to signal that it has data for the CPU. This never
+	 * blocks.
+	 * 
+	 * @return true if the interrupt was posted or false if the controller is
+	 *         full
+	 */
+	public boolean offer(int operation, int devNum, int addr, int data) {
+		long pos = m_tail.get();
+		int idx;
+		while (true) {
+			idx = (int) (pos & m_mask);
+			long dif = m_seq.get(idx) - pos;
+			if (dif == 0) {
+				// The slot is free: try to claim it
+				if (m_tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = m_tail.get();
+			} else if (dif < 0) {
+				// The slot still holds an interrupt from a lap ago
+				return false;
+			} else {
+				// Another device claimed it first
+				pos = m_tail.get();
+			}
+		}// while
+
+		// Fill in the slot and then publish it to the CPU
+		int base = idx * INT_SIZE;
+		m_slots[base] = operation;
+		m_slots[base + 1] = devNum;
+		m_slots[base + 2] = addr;
+		m_slots[base + 3] = data;
+		m_seq.set(idx, pos + 1);
+
+		// Wake the CPU if it is halted
+		Thread waiter = m_waiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
 
-	}// getData
+		return true;
+	}// offer
 
 	/**
 	 * putData
 	 * 
-	 * is used by a device to signal that it has data for the CPU.
+	 * is used by a device to signal that it has data for the CPU. If the
+	 * controller is full this waits for the CPU to take an interrupt.
 	 */
-	public synchronized void putData(int operation, int devNum, int addr,
-	        int data) {
-		while (!m_empty) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-			} // should never happen
+	public void putData(int operation, int devNum, int addr, int data) {
+		while (!offer(operation, devNum, addr, data)) {
+			Thread.yield();
 		}
+	}// putData
 
-		// Make the data on the bus available to the CPU
-		m_empty = false;
-		m_devNum = devNum;
-		m_operation = operation;
-		m_addr = addr;
-		m_data = data;
-		notifyAll();
+	/**
+	 * drain
+	 * 
+	 * is used by the CPU to take pending interrupts without allocating. This
+	 * must only be called by the consumer (the CPU).
+	 * 
+	 * @param buf
+	 *            receives INT_SIZE ints per interrupt taken: the operation,
+	 *            device number, address and data
+	 * @param max
+	 *            the most interrupts to take (buf must hold max * INT_SIZE
+	 *            ints)
+	 * @return the number of interrupts taken (0 if there were none)
+	 */
+	public int drain(int[] buf, int max) {
+		int count = 0;
+		while (count < max) {
+			int idx = (int) (m_head & m_mask);
+			if (m_seq.get(idx) != m_head + 1) {
+				break; // nothing more has been published
+			}
+
+			// Copy out the interrupt and hand the slot back to the devices
+			System.arraycopy(m_slots, idx * INT_SIZE, buf, count * INT_SIZE,
+			        INT_SIZE);
+			m_seq.set(idx, m_head + m_capacity);
+			m_head++;
+			count++;
+		}// while
+
+		return count;
+	}// drain
 
-	}// putData
+	/**
+	 * getData
+	 * 
+	 * is used by the CPU to retrieve the data associated with the interrupt.
+	 * This waits until an interrupt is available and allocates a new array;
+	 * use {@link #drain} in the fetch/execute loop instead.
+	 */
+	public int[] getData() {
+		int[] retVal = new int[INT_SIZE];
+		while (drain(retVal, 1) == 0) {
+			Thread.yield();
+		}
+
+		return retVal;
+
+	}// getData
 
 };// class InterruptController
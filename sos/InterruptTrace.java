@@ -0,0 +1,315 @@
+package sos;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class records every I/O interrupt the CPU services, and the tick it was
+ * serviced at, to a compact binary trace file and loads such a trace back for
+ * replay. A replayed simulation (see {@link ReplayDevice}) sees exactly the
+ * same device data at the same ticks as the recorded one, so two versions of
+ * the scheduler or memory allocator can be compared against identical input
+ * even if the recording was made with real-time devices.
+ * 
+ * The file starts with a header (a magic number, the seed the simulation's
+ * random numbers were drawn from and a table of the devices with their
+ * capabilities). Each interrupt after that is stored as variable-length
+ * integers: the ticks since the previous interrupt, the interrupt type, the
+ * device id, the address and the data. Most interrupts take 4-10 bytes.
+ * 
+ * @see CPU#setInterruptTrace
+ * @see ReplayDevice
+ */
+public class InterruptTrace {
+	// ======================================================================
+	// Constants
+	// ----------------------------------------------------------------------
+	private static final int TRACE_MAGIC = 0x53495431; // "SIT1"
+
+	// Device capability flags stored in the header
+	public static final int DEV_READABLE = 1;
+	public static final int DEV_WRITEABLE = 2;
+	public static final int DEV_SHARABLE = 4;
+
+	// ======================================================================
+	// Member Variables
+	// ----------------------------------------------------------------------
+
+	/**
+	 * the trace file being recorded (null if this trace was loaded)
+	 */
+	private DataOutputStream m_out = null;
+
+	/**
+	 * the tick of the last interrupt recorded
+	 */
+	private long m_lastTick = 0;
+
+	/**
+	 * the seed of the recorded simulation
+	 */
+	private long m_seed = 0;
+
+	/**
+	 * the ids and capabilities of the recorded simulation's devices
+	 */
+	private int m_deviceIds[];
+	private int m_deviceFlags[];
+
+	/**
+	 * the interrupts in a loaded trace
+	 */
+	private int m_count = 0;
+	private long m_ticks[] = null;
+	private int m_types[] = null;
+	private int m_devices[] = null;
+	private int m_addrs[] = null;
+	private int m_data[] = null;
+
+	// ======================================================================
+	// Methods
+	// ----------------------------------------------------------------------
+
+	/**
+	 * this constructor starts recording a new trace
+	 * 
+	 * @param fileName
+	 *            the trace file to write
+	 * @param seed
+	 *            the seed the simulation's random numbers are drawn from
+	 * @param devices
+	 *            every device registered with the OS
+	 * @throws IOException
+	 *             if the file can't be created
+	 */
+	public InterruptTrace(String fileName, long seed, Device[] devices)
+	        throws IOException {
+		m_seed = seed;
+		m_deviceIds = new int[devices.length];
+		m_deviceFlags = new int[devices.length];
+
+		m_out = new DataOutputStream(new BufferedOutputStream(
+		        new FileOutputStream(fileName)));
+		m_out.writeInt(TRACE_MAGIC);
+		m_out.writeLong(seed);
+		writeVarLong(devices.length);
+		for (int i = 0; i < devices.length; i++) {
+			m_deviceIds[i] = devices[i].getId();
+			m_deviceFlags[i] = (devices[i].isReadable() ? DEV_READABLE : 0)
+			        | (devices[i].isWriteable() ? DEV_WRITEABLE : 0)
+			        | (devices[i].isSharable() ? DEV_SHARABLE : 0);
+			writeVarLong(m_deviceIds[i]);
+			m_out.writeByte(m_deviceFlags[i]);
+		}
+		m_out.flush();
+	}// ctor
+
+	/**
+	 * this constructor loads a recorded trace
+	 * 
+	 * @param fileName
+	 *            the trace file to read
+	 * @throws IOException
+	 *             if the file can't be read or isn't a trace
+	 */
+	public InterruptTrace(String fileName) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+		        new FileInputStream(fileName)));
+		try {
+			if (in.readInt() != TRACE_MAGIC) {
+				throw new IOException(fileName + " is not an interrupt trace");
+			}
+			m_seed = in.readLong();
+			int numDevices = (int) readVarLong(in);
+			m_deviceIds = new int[numDevices];
+			m_deviceFlags = new int[numDevices];
+			for (int i = 0; i < numDevices; i++) {
+				m_deviceIds[i] = (int) readVarLong(in);
+				m_deviceFlags[i] = in.readUnsignedByte();
+			}
+
+			m_ticks = new long[64];
+			m_types = new int[64];
+			m_devices = new int[64];
+			m_addrs = new int[64];
+			m_data = new int[64];
+			long tick = 0;
+			while (in.available() > 0) {
+				if (m_count == m_ticks.length) {
+					m_ticks = Arrays.copyOf(m_ticks, m_count * 2);
+					m_types = Arrays.copyOf(m_types, m_count * 2);
+					m_devices = Arrays.copyOf(m_devices, m_count * 2);
+					m_addrs = Arrays.copyOf(m_addrs, m_count * 2);
+					m_data = Arrays.copyOf(m_data, m_count * 2);
+				}
+				tick += readVarLong(in);
+				m_ticks[m_count] = tick;
+				m_types[m_count] = (int) readVarLong(in);
+				m_devices[m_count] = (int) readVarLong(in);
+				m_addrs[m_count] = unzigzag(readVarLong(in));
+				m_data[m_count] = unzigzag(readVarLong(in));
+				m_count++;
+			}// while
+		} catch (EOFException e) {
+			throw new IOException(fileName + " is truncated");
+		} finally {
+			in.close();
+		}
+	}// ctor
+
+	/**
+	 * record
+	 * 
+	 * appends an interrupt to a trace that is being recorded. Each interrupt
+	 * is flushed to the file at once so that the trace survives a simulation
+	 * that never finishes and is killed. If the trace can't be written an
+	 * error is printed and recording stops.
+	 * 
+	 * @param tick
+	 *            the tick the CPU serviced the interrupt at
+	 * @param type
+	 *            the interrupt (see the InterruptController constants)
+	 * @param devNum
+	 *            the id of the device that raised it
+	 * @param addr
+	 *            the address that was read or written
+	 * @param data
+	 *            the data that was read
+	 */
+	public void record(long tick, int type, int devNum, int addr, int data) {
+		if (m_out == null) {
+			return;
+		}
+
+		try {
+			writeVarLong(tick - m_lastTick);
+			writeVarLong(type);
+			writeVarLong(devNum);
+			writeVarLong(zigzag(addr));
+			writeVarLong(zigzag(data));
+			m_out.flush();
+			m_lastTick = tick;
+			m_count++;
+		} catch (IOException e) {
+			System.out.println("ERROR: could not write interrupt trace: " + e);
+			m_out = null;
+		}
+	}// record
+
+	/**
+	 * close
+	 * 
+	 * finishes recording a trace
+	 * 
+	 * @throws IOException
+	 *             if the end of the trace can't be written
+	 */
+	public void close() throws IOException {
+		if (m_out != null) {
+			m_out.close();
+			m_out = null;
+		}
+	}// close
+
+	/** @return the seed the recorded simulation used */
+	public long getSeed() {
+		return m_seed;
+	}
+
+	/** @return the number of devices in the recorded simulation */
+	public int getNumDevices() {
+		return m_deviceIds.length;
+	}
+
+	/** @return the id of one of the recorded simulation's devices */
+	public int getDeviceId(int i) {
+		return m_deviceIds[i];
+	}
+
+	/**
+	 * @return the capabilities (DEV flags) of one of the recorded
+	 *         simulation's devices
+	 */
+	public int getDeviceFlags(int i) {
+		return m_deviceFlags[i];
+	}
+
+	/** @return the number of interrupts in the trace */
+	public int size() {
+		return m_count;
+	}
+
+	/** accessors for the interrupts in a loaded trace */
+	public long getTick(int i) {
+		return m_ticks[i];
+	}
+
+	public int getType(int i) {
+		return m_types[i];
+	}
+
+	public int getDevice(int i) {
+		return m_devices[i];
+	}
+
+	public int getAddr(int i) {
+		return m_addrs[i];
+	}
+
+	public int getData(int i) {
+		return m_data[i];
+	}
+
+	/**
+	 * writeVarLong
+	 * 
+	 * writes a non-negative number 7 bits at a time, low bits first, with the
+	 * top bit of each byte set if more bytes follow
+	 */
+	private void writeVarLong(long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			m_out.writeByte((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		m_out.writeByte((int) v);
+	}// writeVarLong
+
+	/**
+	 * readVarLong
+	 * 
+	 * reads a number written by {@link #writeVarLong}
+	 */
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			v |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return v;
+	}// readVarLong
+
+	/**
+	 * zigzag
+	 * 
+	 * maps a signed int onto a non-negative number so that small negative
+	 * values (e.g., the -999 a console write reports) stay short
+	 */
+	private static long zigzag(int v) {
+		return ((long) ((v << 1) ^ (v >> 31))) & 0xffffffffL;
+	}
+
+	/**
+	 * unzigzag
+	 * 
+	 * undoes {@link #zigzag}
+	 */
+	private static int unzigzag(long v) {
+		int i = (int) v;
+		return (i >>> 1) ^ -(i & 1);
+	}
+
+};// class InterruptTrace
@@ -1,6 +1,7 @@
 package sos;
 
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class simulates a simple, non-sharable read-only device. It always
@@ -12,13 +13,27 @@ import java.util.*;
  */
 public class KeyboardDevice implements Device, Runnable {
 	private int m_Id = -1; // The OS assigned device ID
-	private boolean m_request = false; // is the device currently processing a
-									   // request?
+	private volatile boolean m_request = false; // is the device currently
+												// processing a request?
+	private volatile Thread m_thread = null; // the thread running this device
 	private int m_addr = 0; // address to read from
+	private int m_data = 0; // the number the current request will return
 	private int m_maxLatency = 10000; // maximum latency in ns
 	private int m_minLatency = 500; // minimum latnecy in ns
 	private InterruptController m_IC = null; // reference to the interrupt
 											 // controller
+	private Device.Scheduler m_scheduler = null; // shared scheduler (null if
+												 // the device has a thread)
+	private Random m_random = new Random(); // source of latencies and data
+
+	/**
+	 * finishes the current request when the device is run by a scheduler
+	 */
+	private Runnable m_completion = new Runnable() {
+		public void run() {
+			complete();
+		}
+	};
 
 	/**
 	 * Verbose mode generates helpful debugging printlns
@@ -106,6 +121,30 @@ public class KeyboardDevice implements Device, Runnable {
 		return false;
 	}
 
+	/**
+	 * setScheduler
+	 * 
+	 * @param scheduler
+	 *            the shared scheduler to time requests with or null to use a
+	 *            thread running {@link #run}
+	 */
+	public void setScheduler(Device.Scheduler scheduler) {
+		m_scheduler = scheduler;
+	}
+
+	/**
+	 * setSeed
+	 * 
+	 * seeds this device's random numbers so that a simulation can be
+	 * repeated exactly
+	 * 
+	 * @param seed
+	 *            the seed
+	 */
+	public void setSeed(long seed) {
+		m_random.setSeed(seed);
+	}
+
 	/**
 	 * read
 	 * 
@@ -114,8 +153,19 @@ public class KeyboardDevice implements Device, Runnable {
 	 */
 	public int read(int addr) {
 		m_addr = addr;
+
+		// generate a random multiple of 1000
+		m_data = (int) (m_random.nextDouble() * 999999) * 1000;
 		m_request = true;
 
+		if (m_scheduler != null) {
+			// Finish the request once the latency has passed
+			m_scheduler.schedule(m_completion, latencyNanos());
+		} else {
+			// Wake up the device if it is waiting for work
+			LockSupport.unpark(m_thread);
+		}
+
 		return -9999; // no longer used
 	}// read
 
@@ -128,43 +178,66 @@ public class KeyboardDevice implements Device, Runnable {
 		// This method should never be called
 	}
 
+	/**
+	 * latencyNanos
+	 * 
+	 * @return the delay for the current request in nanoseconds (the same
+	 *         delay the device has always slept for, i.e.,
+	 *         Thread.sleep(latency / 1000, latency % 1000))
+	 */
+	private long latencyNanos() {
+		int latency = (m_data % (m_maxLatency - m_minLatency)) + m_minLatency;
+		return (latency / 1000) * 1000000L + (latency % 1000);
+	}// latencyNanos
+
+	/**
+	 * complete
+	 * 
+	 * finishes the current request by putting the number on the data bus
+	 */
+	private void complete() {
+		int addr = m_addr;
+		int rn = m_data;
+
+		// Notify the interrupt controller of the available data
+		if (m_verbose) {
+			System.out.println("Keyboard puts '" + rn + "' on the data bus.");
+		}
+
+		// Make the device available for another request before the CPU
+		// hears about this one (the OS may issue the next read right away)
+		m_request = false;
+		m_IC.putData(InterruptController.INT_READ_DONE, m_Id, addr, rn);
+	}// complete
+
 	/**
 	 * run
 	 * 
 	 * This method represents the device + controller. It watches for reqeusts
 	 * (via m_request and m_data) and handles them. It also inserts a random
-	 * latency to simulate the amount of time required.
+	 * latency to simulate the amount of time required. While there is no
+	 * request the thread is parked, so an idle device uses no CPU.
 	 * 
 	 */
 	public void run() {
+		m_thread = Thread.currentThread();
+
 		// Device runs until program ends
 		while (true) {
-			// If there is no request to process, yield the CPU to another
-			// thread
+			// If there is no request to process, sleep until read() wakes us
+			// up
 			while (!m_request) {
-				Thread.yield();
+				LockSupport.park(this);
 			}
 
-			// generate a random multiple of 1000
-			int rn = (int) (Math.random() * 999999) * 1000;
-
 			// Sleep to simulate the latency
 			try {
-				int latency = (rn % (m_maxLatency - m_minLatency))
-				        + m_minLatency;
-				Thread.sleep(latency / 1000, latency % 1000);
+				long latency = latencyNanos();
+				Thread.sleep(latency / 1000000, (int) (latency % 1000000));
 			} catch (InterruptedException e) {
 			} // should never happen
 
-			// Notify the interrupt controller of the available data
-			if (m_verbose) {
-				System.out.println("Keyboard puts '" + rn
-				        + "' on the data bus.");
-			}
-			m_IC.putData(InterruptController.INT_READ_DONE, m_Id, m_addr, rn);
-
-			// Make the device available for another request
-			m_request = false;
+			complete();
 		}// while
 	}// run
 
@@ -7,11 +7,20 @@ import java.util.*;
  * chip as the CPU but it is logically distinct.
  * 
  * The operating system is responsible for initializing and maintaining a page
- * table for this MMU. The MMU assumes that the page table is stored in the
- * bottom of RAM so that page numbers correspond directly to the physical
- * address of the page table entry correponding to that page. Each entry should
- * contain a frame number (if valid) plus a state (see the constants defined
- * below).
+ * table for this MMU. The page table starts at the physical address held in
+ * the CPU's page table base register ({@link CPU#PTBR}), so the entry for a
+ * page is at PTBR + page number. Unless the OS gives each process a page
+ * table of its own the PTBR is 0, so the page table is stored in the bottom
+ * of RAM and page numbers correspond directly to the physical address of the
+ * page table entry correponding to that page. Each entry should contain a
+ * frame number (if valid) plus a state (see the constants defined below).
+ * 
+ * Translations are cached in a small set-associative translation lookaside
+ * buffer (TLB). Each TLB entry is tagged with the page table it came from so
+ * that changing the PTBR doesn't require a flush. The OS must call
+ * {@link #invalidatePage}, {@link #invalidateTable} or {@link #flushTLB}
+ * whenever it rewrites page table entries behind the MMU's back. Decoded
+ * instructions are cached by physical address in an {@link InstructionCache}.
  * 
  * @author Hailee Kenney
  * @author Fernando Freire
@@ -30,6 +39,13 @@ public class MMU {
 	public static final int DEFAULT_PAGE_SIZE = 256; // 8 bits
 	public static final int MINIMUM_PAGE_SIZE = 64; // 6 bits
 
+	// TLB defaults and replacement policies
+	public static final int DEFAULT_TLB_SIZE = 16; // entries
+	public static final int DEFAULT_TLB_ASSOC = 4; // ways per set
+	public static final int TLB_LRU = 0; // evict the least recently used way
+	public static final int TLB_FIFO = 1; // evict the oldest way
+	public static final int TLB_RANDOM = 2; // evict a random way
+
 	// ======================================================================
 	// Member Variables
 	// ----------------------------------------------------------------------
@@ -92,6 +108,70 @@ public class MMU {
 	 */
 	private CPU.TrapHandler m_TH = null;
 
+	/**
+	 * the registers of the CPU this MMU belongs to (only the PTBR is used)
+	 */
+	private int m_registers[] = new int[CPU.NUMREG];
+
+	/**
+	 * the page number cached in each TLB way (-1 if the way is invalid). Ways
+	 * are stored set by set, so set s occupies [s * m_tlbAssoc, (s + 1) *
+	 * m_tlbAssoc). This is null if the TLB is disabled.
+	 */
+	private int m_tlbPages[] = null;
+
+	/**
+	 * the page table entry cached in each TLB way
+	 */
+	private int m_tlbEntries[] = null;
+
+	/**
+	 * the page table (PTBR value) that each TLB way's entry came from
+	 */
+	private int m_tlbTables[] = null;
+
+	/**
+	 * the time stamp used by the LRU and FIFO replacement policies
+	 */
+	private long m_tlbStamps[] = null;
+
+	/**
+	 * the number of ways in each TLB set
+	 */
+	private int m_tlbAssoc = 0;
+
+	/**
+	 * mask used to select a TLB set from a page number
+	 */
+	private int m_tlbSetMask = 0;
+
+	/**
+	 * the TLB replacement policy (one of the TLB_* constants)
+	 */
+	private int m_tlbPolicy = TLB_LRU;
+
+	/**
+	 * logical clock used to stamp TLB ways
+	 */
+	private long m_tlbClock = 0;
+
+	/**
+	 * state of the xorshift generator used by the random replacement policy
+	 */
+	private int m_tlbRand = 0x2545F491;
+
+	/**
+	 * TLB statistics
+	 */
+	private long m_tlbHits = 0;
+	private long m_tlbMisses = 0;
+
+	/**
+	 * the cache of decoded instructions used by {@link #fetch(int, int[])}.
+	 * This is null if instruction caching is disabled.
+	 */
+	private InstructionCache m_icache = null;
+
 	// ======================================================================
 	// Constructors
 	// ----------------------------------------------------------------------
@@ -113,8 +193,16 @@ public class MMU {
 	 *            the number of integers ("words") in single page. If this
 	 *            number is not reasonable or not a power of 2 then it will
 	 *            adjusted
+	 * @param tlbSize
+	 *            the number of entries in the TLB. Use 0 to disable the TLB.
+	 * @param tlbAssoc
+	 *            the number of ways in each TLB set. If this is not between 1
+	 *            and tlbSize the TLB is made fully associative.
+	 * @param tlbPolicy
+	 *            the TLB replacement policy (TLB_LRU, TLB_FIFO or TLB_RANDOM)
 	 */
-	public MMU(RAM ram, int size, int pageSize) {
+	public MMU(RAM ram, int size, int pageSize, int tlbSize, int tlbAssoc,
+	        int tlbPolicy) {
 		m_RAM = ram;
 
 		// Make sure the virtual memory is at least as big as actual RAM
@@ -150,8 +238,44 @@ public class MMU {
 		m_numPages = size / m_pageSize;
 		m_size = m_numPages * m_pageSize;
 
+		// Build the TLB. The number of sets is rounded down to a power of 2
+		// so that a set can be selected with a mask.
+		if (tlbSize > 0) {
+			if ((tlbAssoc < 1) || (tlbAssoc > tlbSize)) {
+				tlbAssoc = tlbSize;
+			}
+			int numSets = 1;
+			while (numSets * 2 <= tlbSize / tlbAssoc) {
+				numSets *= 2;
+			}
+			m_tlbAssoc = tlbAssoc;
+			m_tlbSetMask = numSets - 1;
+			m_tlbPolicy = tlbPolicy;
+			m_tlbPages = new int[numSets * tlbAssoc];
+			m_tlbEntries = new int[numSets * tlbAssoc];
+			m_tlbTables = new int[numSets * tlbAssoc];
+			m_tlbStamps = new long[numSets * tlbAssoc];
+			flushTLB();
+		}
+
+		setInstructionCache(new InstructionCache(InstructionCache.DEFAULT_SIZE));
+
 	}// ctor
 
+	/**
+	 * This constructor uses the default TLB configuration.
+	 * 
+	 * @param ram
+	 *            a reference to the physical RAM
+	 * @param size
+	 *            the number of integers ("words") in virtual ram
+	 * @param pageSize
+	 *            the number of integers ("words") in single page
+	 */
+	public MMU(RAM ram, int size, int pageSize) {
+		this(ram, size, pageSize, DEFAULT_TLB_SIZE, DEFAULT_TLB_ASSOC, TLB_LRU);
+	}
+
 	/**
 	 * This constructor uses default values for pageSize and a virtual memory
 	 * size of quadruple the RAM's size.
@@ -230,6 +354,60 @@ public class MMU {
 		return m_pageMask;
 	}
 
+	/**
+	 * getInstructionCache
+	 * 
+	 * @return the cache of decoded instructions (null if disabled)
+	 */
+	public InstructionCache getInstructionCache() {
+		return m_icache;
+	}
+
+	/**
+	 * setInstructionCache
+	 * 
+	 * replaces the cache of decoded instructions used when fetching
+	 * 
+	 * @param icache
+	 *            the new cache or null to disable instruction caching
+	 */
+	public void setInstructionCache(InstructionCache icache) {
+		if (m_icache != null) {
+			m_RAM.removeCodeCache(m_icache);
+		}
+		m_icache = icache;
+		if (m_icache != null) {
+			m_RAM.addCodeCache(m_icache);
+		}
+	}// setInstructionCache
+
+	/**
+	 * getTLBSize
+	 * 
+	 * @return the number of entries in the TLB (0 if it is disabled)
+	 */
+	public int getTLBSize() {
+		return (m_tlbPages == null) ? 0 : m_tlbPages.length;
+	}
+
+	/**
+	 * getTLBHits
+	 * 
+	 * @return the number of translations satisfied by the TLB
+	 */
+	public long getTLBHits() {
+		return m_tlbHits;
+	}
+
+	/**
+	 * getTLBMisses
+	 * 
+	 * @return the number of translations that had to read the page table
+	 */
+	public long getTLBMisses() {
+		return m_tlbMisses;
+	}
+
 	// ======================================================================
 	// Methods
 	// ----------------------------------------------------------------------
@@ -258,7 +436,7 @@ public class MMU {
 		// Retrieve the entry in the page table corresponding to the
 		// given virtual address
 		int page = (virtAddr & m_pageMask) >> m_offsetSize;
-		int entry = m_RAM.read(page);
+		int entry = m_RAM.read(m_registers[CPU.PTBR] + page);
 
 		// Return the status
 		return entry & m_statusMask;
@@ -281,26 +459,164 @@ public class MMU {
 		// Retrieve the entry in the page table corresponding to the
 		// given virtual address
 		int page = (virtAddr & m_pageMask) >> m_offsetSize;
-		int oldEntry = m_RAM.read(page);
+		int oldEntry = m_RAM.read(m_registers[CPU.PTBR] + page);
 
 		// Construct the new value for this p5age table entry and write it to
 		// RAM
 		int newEntry = (oldEntry & m_pageMask) + newStatus;
-		m_RAM.write(page, newEntry);
+		m_RAM.write(m_registers[CPU.PTBR] + page, newEntry);
+		invalidatePage(page);
 	}// setStatus
 
+	/**
+	 * lookupEntry
+	 * 
+	 * finds the entry for a given page in the page table the PTBR points to,
+	 * consulting the TLB first and only reading the page table in RAM on a
+	 * miss.
+	 * 
+	 * @param pageNum
+	 *            the page to look up
+	 * @return the page table entry for that page
+	 */
+	private int lookupEntry(int pageNum) {
+		int table = m_registers[CPU.PTBR];
+
+		// No TLB so always walk the page table
+		if (m_tlbPages == null) {
+			return m_RAM.read(table + pageNum);
+		}
+
+		// Search every way in the set this page maps to
+		int first = (pageNum & m_tlbSetMask) * m_tlbAssoc;
+		int last = first + m_tlbAssoc;
+		for (int i = first; i < last; i++) {
+			if ((m_tlbPages[i] == pageNum) && (m_tlbTables[i] == table)) {
+				m_tlbHits++;
+				if (m_tlbPolicy == TLB_LRU) {
+					m_tlbStamps[i] = ++m_tlbClock;
+				}
+				return m_tlbEntries[i];
+			}
+		}// for
+
+		// Miss: read the page table and replace a way in the set
+		m_tlbMisses++;
+		int entry = m_RAM.read(table + pageNum);
+		int victim = first;
+		if (m_tlbPolicy == TLB_RANDOM) {
+			m_tlbRand ^= m_tlbRand << 13;
+			m_tlbRand ^= m_tlbRand >>> 17;
+			m_tlbRand ^= m_tlbRand << 5;
+			victim = first + ((m_tlbRand & 0x7fffffff) % m_tlbAssoc);
+		}
+		for (int i = first; i < last; i++) {
+			// Always prefer an invalid way
+			if (m_tlbPages[i] == -1) {
+				victim = i;
+				break;
+			}
+			if ((m_tlbPolicy != TLB_RANDOM)
+			        && (m_tlbStamps[i] < m_tlbStamps[victim])) {
+				victim = i;
+			}
+		}// for
+
+		m_tlbPages[victim] = pageNum;
+		m_tlbEntries[victim] = entry;
+		m_tlbTables[victim] = table;
+		m_tlbStamps[victim] = ++m_tlbClock;
+		return entry;
+	}// lookupEntry
+
+	/**
+	 * invalidatePage
+	 * 
+	 * removes any cached translation for the given page from the TLB, whatever
+	 * page table it came from. The OS must call this after it changes the
+	 * page table entry for a page.
+	 * 
+	 * @param pageNum
+	 *            the page whose entry was changed
+	 */
+	public void invalidatePage(int pageNum) {
+		if (m_tlbPages == null) {
+			return;
+		}
+
+		int first = (pageNum & m_tlbSetMask) * m_tlbAssoc;
+		for (int i = first; i < first + m_tlbAssoc; i++) {
+			if (m_tlbPages[i] == pageNum) {
+				m_tlbPages[i] = -1;
+			}
+		}
+	}// invalidatePage
+
+	/**
+	 * invalidateTable
+	 * 
+	 * removes every cached translation that came from the given page table
+	 * from the TLB. The OS must call this before it reuses the memory of a
+	 * page table it has freed.
+	 * 
+	 * @param pageTable
+	 *            the physical address of the page table (its PTBR value)
+	 */
+	public void invalidateTable(int pageTable) {
+		if (m_tlbPages == null) {
+			return;
+		}
+
+		for (int i = 0; i < m_tlbPages.length; i++) {
+			if (m_tlbTables[i] == pageTable) {
+				m_tlbPages[i] = -1;
+			}
+		}
+	}// invalidateTable
+
+	/**
+	 * flushTLB
+	 * 
+	 * invalidates every entry in the TLB. The OS must call this after it
+	 * rebuilds the page table.
+	 */
+	public void flushTLB() {
+		if (m_tlbPages == null) {
+			return;
+		}
+
+		for (int i = 0; i < m_tlbPages.length; i++) {
+			m_tlbPages[i] = -1;
+		}
+	}// flushTLB
+
+	/**
+	 * setRegisters
+	 * 
+	 * gives the MMU the registers of the CPU it belongs to so that it can
+	 * read the page table base register. The CPU calls this when it is
+	 * created.
+	 * 
+	 * @param registers
+	 *            the CPU's registers
+	 */
+	public void setRegisters(int[] registers) {
+		m_registers = registers;
+	}
+
 	/**
 	 * translate
 	 * 
-	 * TODO Calculate the page number and offset from the given virtual address.
+	 * Calculate the page number and offset from the given virtual address and
+	 * use them to find the corresponding physical address.
 	 * 
 	 * @param virtAddr
 	 *            the address to translate.
 	 * @return the physical address
 	 */
-	private int translate(int virtAddr) {
+	public int translate(int virtAddr) {
 		int pageNum = (virtAddr & m_pageMask) >>> m_offsetSize;
-		int frame = m_RAM.read(pageNum);
+		int frame = lookupEntry(pageNum);
 		int offset = virtAddr & m_offsetMask;
 
 		// Compose our physical address based on the offset and the frame
@@ -314,6 +630,25 @@ public class MMU {
 		return physAddr;
 	}// translate
 
+	/**
+	 * translate
+	 * 
+	 * translates an address in some other address space than the current
+	 * one. The page table is read directly, without the TLB. The OS uses this
+	 * to get at the memory of a process that isn't running.
+	 * 
+	 * @param pageTable
+	 *            the physical address of the page table (a PTBR value)
+	 * @param virtAddr
+	 *            the address to translate.
+	 * @return the physical address
+	 */
+	public int translate(int pageTable, int virtAddr) {
+		int pageNum = (virtAddr & m_pageMask) >>> m_offsetSize;
+		int frame = m_RAM.read(pageTable + pageNum);
+		return (frame << m_offsetSize) | (virtAddr & m_offsetMask);
+	}// translate
+
 	/**
 	 * write
 	 * 
@@ -331,6 +666,32 @@ public class MMU {
 		m_RAM.write(physAddr, data);
 	}// write
 
+	/**
+	 * write
+	 * 
+	 * writes a run of consecutive words starting at a given virtual address.
+	 * The run is split at page boundaries and each piece is written to RAM in
+	 * bulk.
+	 * 
+	 * @param virtAddr
+	 *            the virtual address of the first word
+	 * @param src
+	 *            the array holding the data to write
+	 * @param off
+	 *            the index in src of the first word
+	 * @param len
+	 *            the number of words to write
+	 */
+	public void write(int virtAddr, int[] src, int off, int len) {
+		while (len > 0) {
+			int inPage = Math.min(len, m_pageSize - (virtAddr & m_offsetMask));
+			m_RAM.write(translate(virtAddr), src, off, inPage);
+			virtAddr += inPage;
+			off += inPage;
+			len -= inPage;
+		}
+	}// write
+
 	/**
 	 * read
 	 * 
@@ -346,6 +707,32 @@ public class MMU {
 		return m_RAM.read(physAddr);
 	}// read
 
+	/**
+	 * read
+	 * 
+	 * reads a run of consecutive words starting at a given virtual address.
+	 * The run is split at page boundaries and each piece is read from RAM in
+	 * bulk.
+	 * 
+	 * @param virtAddr
+	 *            the virtual address of the first word
+	 * @param dst
+	 *            the array to copy the data into
+	 * @param off
+	 *            the index in dst of the first word
+	 * @param len
+	 *            the number of words to read
+	 */
+	public void read(int virtAddr, int[] dst, int off, int len) {
+		while (len > 0) {
+			int inPage = Math.min(len, m_pageSize - (virtAddr & m_offsetMask));
+			m_RAM.read(translate(virtAddr), dst, off, inPage);
+			virtAddr += inPage;
+			off += inPage;
+			len -= inPage;
+		}
+	}// read
+
 	/**
 	 * fetch
 	 * 
@@ -361,14 +748,44 @@ public class MMU {
 	 * @see CPU#INSTRSIZE
 	 */
 	public int[] fetch(int pc) {
-		int physPC = translate(pc);
 		int instr[] = new int[CPU.INSTRSIZE];
+		fetch(pc, instr);
+
+		return instr;
+
+	}// fetch
+
+	/**
+	 * fetch
+	 * 
+	 * retrieves an entire program instruction from the simulated RAM into a
+	 * buffer owned by the caller. This is the version used by
+	 * {@link CPU#run} since it does not allocate a new array every cycle.
+	 * Instructions found in the instruction cache do not touch RAM at all.
+	 * 
+	 * @param pc
+	 *            the virtual address to load the instruction from (program
+	 *            counter)
+	 * @param instr
+	 *            an array of at least {@link CPU#INSTRSIZE} ints. On return
+	 *            the first entry is the opcode followed by the arguments in
+	 *            order.
+	 * 
+	 * @see CPU#INSTRSIZE
+	 */
+	public void fetch(int pc, int[] instr) {
+		int physPC = translate(pc);
+		if ((m_icache != null) && m_icache.lookup(physPC, instr)) {
+			return;
+		}
+
 		for (int i = 0; i < CPU.INSTRSIZE; i++) {
 			instr[i] = m_RAM.read(physPC + i);
 		}
 
-		return instr;
-
+		if (m_icache != null) {
+			m_icache.fill(physPC, instr);
+		}
 	}// fetch
 
 }// class MMU
@@ -0,0 +1,68 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This interface defines a policy for handing out the RAM that SOS gives to
+ * processes. Each process gets one contiguous block of addresses.
+ * 
+ * @see SOS#allocBlock
+ * @see RelocatableAllocator
+ * @see FreeListAllocator
+ * @see BuddyAllocator
+ */
+public interface MemoryAllocator {
+	/**
+	 * alloc
+	 * 
+	 * allocates a block of memory
+	 * 
+	 * @param size
+	 *            the number of words needed
+	 * @return the address of the block -OR- -1 if no free block is big enough
+	 */
+	public int alloc(int size);
+
+	/**
+	 * free
+	 * 
+	 * gives back a block allocated by {@link #alloc}
+	 * 
+	 * @param addr
+	 *            the address alloc returned
+	 * @param size
+	 *            the size that was asked for
+	 */
+	public void free(int addr, int size);
+
+	/**
+	 * getFreeSize
+	 * 
+	 * @return the total number of free words
+	 */
+	public int getFreeSize();
+
+	/**
+	 * getLargestFreeBlock
+	 * 
+	 * @return the size of the largest block alloc could return right now
+	 */
+	public int getLargestFreeBlock();
+
+	/**
+	 * getAllocatedSize
+	 * 
+	 * @return the total number of words handed out, including any that were
+	 *         added to round up the sizes that were asked for
+	 */
+	public int getAllocatedSize();
+
+	/**
+	 * getFreeBlocks
+	 * 
+	 * @return the address and size of each free block, in address order
+	 *         (used for debugging output)
+	 */
+	public SortedMap<Integer, Integer> getFreeBlocks();
+
+}// interface MemoryAllocator
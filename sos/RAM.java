@@ -1,10 +1,24 @@
 package sos;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * This class simulates a random access memory for the CPU class.
  * 
+ * The memory itself is either an int array on the Java heap or a set of
+ * direct (off-heap) buffers. Off-heap storage keeps large simulated machines
+ * out of the garbage collector's way and is split into chunks so that no
+ * single buffer has to hold the whole RAM.
+ * 
+ * The RAM can also be backed by a memory-mapped image file. Mapping an image
+ * makes its contents available immediately (pages are brought in from the
+ * OS page cache as they are touched), so a machine saved with
+ * {@link #saveImage} can be restarted without reloading it word by word.
+ * 
  * @see CPU
  * @see SOS
  * @see Program
@@ -12,6 +26,23 @@ import java.util.*;
  * 
  */
 public class RAM {
+	// Ways of simulating RAM latency
+	public static final int LATENCY_SLEEP = 0; // sleep the calling thread
+	public static final int LATENCY_SIMULATED = 1; // charge a simulated clock
+
+	// Where the contents of the RAM are stored
+	public static final int STORAGE_HEAP = 0; // an int[] on the Java heap
+	public static final int STORAGE_DIRECT = 1; // direct (off-heap) buffers
+	public static final int STORAGE_MAPPED = 2; // a memory-mapped image file
+
+	// Off-heap storage is split into chunks of 2^CHUNK_BITS words
+	private static final int CHUNK_BITS = 26;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// Number of words copied at a time when saving an on-heap RAM image
+	private static final int SAVE_BUFFER_WORDS = 1 << 16;
+
 	// member variables
 	/**
 	 * The size of the RAM (expressed as a number of integers)
@@ -19,16 +50,74 @@ public class RAM {
 	private int m_size = 0;
 
 	/**
-	 * This array contains the simulated RAM itself
+	 * This array contains the simulated RAM itself (null if the RAM is
+	 * stored off-heap)
 	 **/
 	private int m_mem[] = null;
 
+	/**
+	 * These buffers contain the simulated RAM when it is stored off-heap
+	 * (null if it is stored on the heap)
+	 **/
+	private IntBuffer m_chunks[] = null;
+
+	/**
+	 * The byte buffers underneath m_chunks (null if the RAM is stored on the
+	 * heap)
+	 **/
+	private ByteBuffer m_buffers[] = null;
+
+	/**
+	 * Where the contents of the RAM are stored (one of the STORAGE
+	 * constants)
+	 **/
+	private int m_storage = STORAGE_HEAP;
+
+	/**
+	 * The image file this RAM is mapped from (null unless STORAGE_MAPPED)
+	 **/
+	private String m_imageFile = null;
+
+	/**
+	 * If true, writes to a mapped RAM are private to this RAM and never reach
+	 * the image file
+	 **/
+	private boolean m_copyOnWrite = false;
+
 	/**
 	 * This describes how long it takes the simulated RAM to retrieve a given
 	 * value.
 	 **/
 	private int m_latency;
 
+	/**
+	 * How RAM latency is simulated (LATENCY_SLEEP or LATENCY_SIMULATED)
+	 **/
+	private int m_latencyMode = LATENCY_SLEEP;
+
+	/**
+	 * The total simulated time (in nanoseconds) spent waiting for RAM when
+	 * the latency mode is LATENCY_SIMULATED. Every core adds to it.
+	 **/
+	private LongAdder m_stallTime = new LongAdder();
+
+	/**
+	 * The stall time (in nanoseconds) that each thread has run up and that
+	 * its CPU hasn't yet charged to the simulated clock (see
+	 * {@link #takeStallTime})
+	 **/
+	private ThreadLocal<long[]> m_pendingStall = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/**
+	 * Caches of code held in this RAM. Each is told about every write so it
+	 * can drop stale entries.
+	 **/
+	private CodeCache m_codeCaches[] = new CodeCache[0];
+
 	/**
 	 * the constructor does nothing special
 	 * 
@@ -36,14 +125,119 @@ public class RAM {
 	 *            number of integers ("words") in ram
 	 * @param latency
 	 *            the number of nanoseconds to delay for RAM latency
+	 * @param latencyMode
+	 *            LATENCY_SLEEP to actually put the calling thread to sleep on
+	 *            every access or LATENCY_SIMULATED to just add the latency to
+	 *            a simulated clock (see {@link #getStallTime})
+	 * @param storage
+	 *            STORAGE_HEAP to keep the contents in an int[] or
+	 *            STORAGE_DIRECT to keep them in off-heap buffers
 	 */
-	public RAM(int size, int latency) {
+	public RAM(int size, int latency, int latencyMode, int storage) {
 		m_size = size;
-		m_mem = new int[m_size];
-		for (int i = 0; i < m_size; i++) {
-			m_mem[i] = 0;
+		m_storage = storage;
+		if (storage == STORAGE_DIRECT) {
+			// Direct buffers are already zeroed
+			allocChunks();
+			for (int i = 0; i < m_chunks.length; i++) {
+				m_buffers[i] = ByteBuffer.allocateDirect(chunkWords(i) * 4);
+				m_chunks[i] = m_buffers[i].order(ByteOrder.nativeOrder())
+				        .asIntBuffer();
+			}
+		} else {
+			m_storage = STORAGE_HEAP;
+			m_mem = new int[m_size];
+			for (int i = 0; i < m_size; i++) {
+				m_mem[i] = 0;
+			}
 		}
 		m_latency = latency;
+		m_latencyMode = latencyMode;
+	}// ctor
+
+	/**
+	 * This constructor maps the RAM from an image file.
+	 * 
+	 * @param size
+	 *            number of integers ("words") in ram
+	 * @param latency
+	 *            the number of nanoseconds to delay for RAM latency
+	 * @param latencyMode
+	 *            LATENCY_SLEEP or LATENCY_SIMULATED
+	 * @param imageFile
+	 *            the image to map. The words are stored in the native byte
+	 *            order, as written by {@link #saveImage}.
+	 * @param copyOnWrite
+	 *            if true the image must already exist and is never modified:
+	 *            writes only change this RAM (use this to restore a
+	 *            snapshot). If false the image is created or extended as
+	 *            needed and every write goes through to the file.
+	 * @throws IOException
+	 *             if the image can't be opened or mapped, or is too small to
+	 *             restore from
+	 */
+	public RAM(int size, int latency, int latencyMode, String imageFile,
+	        boolean copyOnWrite) throws IOException {
+		m_size = size;
+		m_storage = STORAGE_MAPPED;
+		m_imageFile = imageFile;
+		m_copyOnWrite = copyOnWrite;
+		m_latency = latency;
+		m_latencyMode = latencyMode;
+
+		long bytes = (long) m_size * 4;
+		if (copyOnWrite && (new File(imageFile).length() < bytes)) {
+			throw new IOException("RAM image " + imageFile
+			        + " is missing or smaller than " + m_size + " words");
+		}
+
+		// A private mapping still needs a channel opened for writing
+		RandomAccessFile file = new RandomAccessFile(imageFile, "rw");
+		try {
+			if (!copyOnWrite && (file.length() < bytes)) {
+				file.setLength(bytes);
+			}
+
+			FileChannel.MapMode mode = copyOnWrite ? FileChannel.MapMode.PRIVATE
+			        : FileChannel.MapMode.READ_WRITE;
+			FileChannel channel = file.getChannel();
+			allocChunks();
+			for (int i = 0; i < m_chunks.length; i++) {
+				m_buffers[i] = channel.map(mode, ((long) i << CHUNK_BITS) * 4,
+				        chunkWords(i) * 4);
+				m_chunks[i] = m_buffers[i].order(ByteOrder.nativeOrder())
+				        .asIntBuffer();
+			}
+		} finally {
+			// The mappings stay valid after the file is closed
+			file.close();
+		}
+	}// ctor
+
+	/**
+	 * This constructor stores the RAM on the heap.
+	 * 
+	 * @param size
+	 *            number of integers ("words") in ram
+	 * @param latency
+	 *            the number of nanoseconds to delay for RAM latency
+	 * @param latencyMode
+	 *            LATENCY_SLEEP or LATENCY_SIMULATED
+	 */
+	public RAM(int size, int latency, int latencyMode) {
+		this(size, latency, latencyMode, STORAGE_HEAP);
+	}// ctor
+
+	/**
+	 * This constructor simulates latency by sleeping.
+	 * 
+	 * @param size
+	 *            number of integers ("words") in ram
+	 * @param latency
+	 *            the number of nanoseconds to delay for RAM latency
+	 */
+	public RAM(int size, int latency) {
+		this(size, latency, LATENCY_SLEEP);
 	}// ctor
 
 	/**
@@ -66,6 +260,215 @@ public class RAM {
 		return m_latency;
 	}
 
+	/**
+	 * getStorage
+	 * 
+	 * @return where the contents of the RAM are kept (STORAGE_HEAP or
+	 *         STORAGE_DIRECT)
+	 */
+	public int getStorage() {
+		return m_storage;
+	}
+
+	/**
+	 * allocChunks
+	 * 
+	 * creates the (empty) arrays of chunks for off-heap storage
+	 */
+	private void allocChunks() {
+		int numChunks = (int) (((long) m_size + CHUNK_SIZE - 1) >> CHUNK_BITS);
+		m_chunks = new IntBuffer[numChunks];
+		m_buffers = new ByteBuffer[numChunks];
+	}// allocChunks
+
+	/**
+	 * chunkWords
+	 * 
+	 * @return the number of words in a given chunk (only the last chunk may
+	 *         be short)
+	 */
+	private int chunkWords(int chunk) {
+		return Math.min(CHUNK_SIZE, m_size - (chunk << CHUNK_BITS));
+	}// chunkWords
+
+	/**
+	 * saveImage
+	 * 
+	 * writes the entire contents of the RAM to an image file that can later be
+	 * mapped with {@link #RAM(int, int, int, String, boolean)}. If this RAM is
+	 * already a shared mapping of that file it is just flushed to disk.
+	 * 
+	 * @param fileName
+	 *            the image file to write
+	 * @throws IOException
+	 *             if the image can't be written
+	 */
+	public void saveImage(String fileName) throws IOException {
+		if ((m_storage == STORAGE_MAPPED)
+		        && !m_copyOnWrite
+		        && new File(fileName).getCanonicalPath().equals(
+		                new File(m_imageFile).getCanonicalPath())) {
+			for (ByteBuffer buf : m_buffers) {
+				((MappedByteBuffer) buf).force();
+			}
+			return;
+		}
+
+		FileOutputStream out = new FileOutputStream(fileName);
+		try {
+			FileChannel channel = out.getChannel();
+			if (m_mem == null) {
+				// Off-heap chunks can be written as they are
+				for (ByteBuffer buf : m_buffers) {
+					ByteBuffer view = buf.duplicate();
+					view.clear();
+					while (view.hasRemaining()) {
+						channel.write(view);
+					}
+				}
+			} else {
+				// Copy heap words out through a small buffer
+				ByteBuffer buf = ByteBuffer.allocate(SAVE_BUFFER_WORDS * 4)
+				        .order(ByteOrder.nativeOrder());
+				for (int addr = 0; addr < m_size; addr += SAVE_BUFFER_WORDS) {
+					int len = Math.min(SAVE_BUFFER_WORDS, m_size - addr);
+					buf.clear();
+					buf.asIntBuffer().put(m_mem, addr, len);
+					buf.limit(len * 4);
+					while (buf.hasRemaining()) {
+						channel.write(buf);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}// saveImage
+
+	/**
+	 * getLatencyMode
+	 * 
+	 * @return how RAM latency is simulated (LATENCY_SLEEP or
+	 *         LATENCY_SIMULATED)
+	 */
+	public int getLatencyMode() {
+		return m_latencyMode;
+	}
+
+	/**
+	 * getStallTime
+	 * 
+	 * @return the total simulated time in nanoseconds that accesses have
+	 *         spent waiting on RAM latency. This is only charged in
+	 *         LATENCY_SIMULATED mode.
+	 */
+	public long getStallTime() {
+		return m_stallTime.sum();
+	}
+
+	/**
+	 * takeStallTime
+	 * 
+	 * @return the stall time in nanoseconds run up by the calling thread
+	 *         since it last called this method. The CPU calls this after each
+	 *         instruction to turn the stall into ticks.
+	 */
+	public long takeStallTime() {
+		long pending[] = m_pendingStall.get();
+		long nanos = pending[0];
+		pending[0] = 0;
+		return nanos;
+	}// takeStallTime
+
+	/**
+	 * stall
+	 * 
+	 * simulates the latency of one RAM access. Sleeping is only accurate to
+	 * the scheduler's granularity (usually far longer than the requested
+	 * nanoseconds), so LATENCY_SIMULATED charges the time to a clock instead.
+	 */
+	private void stall() {
+		stall(1);
+	}// stall
+
+	/**
+	 * stall
+	 * 
+	 * simulates the latency of accessing several consecutive words
+	 * 
+	 * @param words
+	 *            the number of words accessed
+	 */
+	private void stall(int words) {
+		long nanos = (long) m_latency * words;
+		if (m_latencyMode == LATENCY_SIMULATED) {
+			m_stallTime.add(nanos);
+			m_pendingStall.get()[0] += nanos;
+			return;
+		}
+
+		try {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		} catch (InterruptedException ie) {/* do nothing */
+		}
+	}// stall
+
+	/**
+	 * load
+	 * 
+	 * reads a word from wherever the RAM is stored, without any latency
+	 */
+	private int load(int addr) {
+		if (m_mem != null) {
+			return m_mem[addr];
+		}
+		return m_chunks[addr >>> CHUNK_BITS].get(addr & CHUNK_MASK);
+	}// load
+
+	/**
+	 * store
+	 * 
+	 * writes a word to wherever the RAM is stored, without any latency
+	 */
+	private void store(int addr, int val) {
+		if (m_mem != null) {
+			m_mem[addr] = val;
+		} else {
+			m_chunks[addr >>> CHUNK_BITS].put(addr & CHUNK_MASK, val);
+		}
+	}// store
+
+	/**
+	 * addCodeCache
+	 * 
+	 * registers a cache that must be notified whenever a word of RAM changes
+	 * 
+	 * @param cache
+	 *            the cache to notify
+	 */
+	public void addCodeCache(CodeCache cache) {
+		CodeCache caches[] = Arrays.copyOf(m_codeCaches,
+		        m_codeCaches.length + 1);
+		caches[m_codeCaches.length] = cache;
+		m_codeCaches = caches;
+	}// addCodeCache
+
+	/**
+	 * removeCodeCache
+	 * 
+	 * stops notifying a cache previously registered with
+	 * {@link #addCodeCache}
+	 * 
+	 * @param cache
+	 *            the cache to remove
+	 */
+	public void removeCodeCache(CodeCache cache) {
+		Vector<CodeCache> caches = new Vector<CodeCache>(
+		        Arrays.asList(m_codeCaches));
+		caches.remove(cache);
+		m_codeCaches = caches.toArray(new CodeCache[caches.size()]);
+	}// removeCodeCache
+
 	/**
 	 * fetch
 	 * 
@@ -75,14 +478,33 @@ public class RAM {
 	 */
 	public int[] fetch(int pc) {
 		int instr[] = new int[CPU.INSTRSIZE];
-		for (int i = 0; i < CPU.INSTRSIZE; i++) {
-			instr[i] = m_mem[pc + i];
-		}
+		fetch(pc, instr);
 
 		return instr;
 
 	}// fetch
 
+	/**
+	 * fetch
+	 * 
+	 * retrieves an entire instruction from the simulated RAM into a buffer
+	 * supplied by the caller. Unlike {@link #fetch(int)} this does not
+	 * allocate, so it is safe to call once per simulated cycle.
+	 * 
+	 * @param pc
+	 *            the address to load the instruction from
+	 * @param instr
+	 *            an array of at least {@link CPU#INSTRSIZE} ints that receives
+	 *            the opcode followed by its arguments
+	 * 
+	 * @see CPU#INSTRSIZE
+	 */
+	public void fetch(int pc, int[] instr) {
+		for (int i = 0; i < CPU.INSTRSIZE; i++) {
+			instr[i] = load(pc + i);
+		}
+	}// fetch
+
 	/**
 	 * read
 	 * 
@@ -95,13 +517,46 @@ public class RAM {
 	public int read(int addr) {
 		// Simulate RAM latency
 		if (m_latency > 0) {
-			try {
-				Thread.sleep(0, m_latency);
-			} catch (InterruptedException ie) {/* do nothing */
-			}
+			stall();
+		}
+
+		return load(addr);
+	}// read
+
+	/**
+	 * read
+	 * 
+	 * loads a run of consecutive integers from the simulated RAM
+	 * 
+	 * @param addr
+	 *            the location of the first integer to retrieve
+	 * @param dst
+	 *            the array to copy the values into
+	 * @param off
+	 *            the index in dst of the first value
+	 * @param len
+	 *            the number of integers to retrieve
+	 */
+	public void read(int addr, int[] dst, int off, int len) {
+		// Simulate RAM latency
+		if (m_latency > 0) {
+			stall(len);
+		}
+
+		if (m_mem != null) {
+			System.arraycopy(m_mem, addr, dst, off, len);
+			return;
 		}
 
-		return m_mem[addr];
+		// Copy a chunk at a time
+		while (len > 0) {
+			int inChunk = Math.min(len, CHUNK_SIZE - (addr & CHUNK_MASK));
+			m_chunks[addr >>> CHUNK_BITS].get(addr & CHUNK_MASK, dst, off,
+			        inChunk);
+			addr += inChunk;
+			off += inChunk;
+			len -= inChunk;
+		}
 	}// read
 
 	/**
@@ -117,13 +572,79 @@ public class RAM {
 	public void write(int addr, int val) {
 		// Simulate RAM latency
 		if (m_latency > 0) {
-			try {
-				Thread.sleep(0, m_latency);
-			} catch (InterruptedException ie) {/* do nothing */
+			stall();
+		}
+
+		store(addr, val);
+
+		// Keep any cached copies of this word coherent
+		for (CodeCache cache : m_codeCaches) {
+			cache.invalidate(addr);
+		}
+	}// write
+
+	/**
+	 * write
+	 * 
+	 * saves a run of consecutive integers to the simulated RAM
+	 * 
+	 * @param addr
+	 *            the address of the first integer to write
+	 * @param src
+	 *            the array holding the values to write
+	 * @param off
+	 *            the index in src of the first value
+	 * @param len
+	 *            the number of integers to write
+	 */
+	public void write(int addr, int[] src, int off, int len) {
+		// Simulate RAM latency
+		if (m_latency > 0) {
+			stall(len);
+		}
+
+		if (m_mem != null) {
+			System.arraycopy(src, off, m_mem, addr, len);
+		} else {
+			// Copy a chunk at a time
+			int a = addr;
+			int o = off;
+			int remaining = len;
+			while (remaining > 0) {
+				int inChunk = Math.min(remaining, CHUNK_SIZE - (a & CHUNK_MASK));
+				m_chunks[a >>> CHUNK_BITS].put(a & CHUNK_MASK, src, o, inChunk);
+				a += inChunk;
+				o += inChunk;
+				remaining -= inChunk;
 			}
 		}
 
-		m_mem[addr] = val;
+		// Keep any cached copies of these words coherent
+		for (CodeCache cache : m_codeCaches) {
+			for (int i = 0; i < len; i++) {
+				cache.invalidate(addr + i);
+			}
+		}
 	}// write
 
+	// ======================================================================
+	// Callback Interface
+	// ----------------------------------------------------------------------
+	/**
+	 * CodeCache
+	 * 
+	 * This interface is implemented by anything that caches the contents of
+	 * RAM (e.g., decoded instructions) and must discard a cached copy when the
+	 * underlying word is written.
+	 */
+	public interface CodeCache {
+		/**
+		 * invalidate
+		 * 
+		 * @param addr
+		 *            the physical address that was just written
+		 */
+		void invalidate(int addr);
+	};// interface CodeCache
+
 };
@@ -0,0 +1,39 @@
+package sos;
+
+/**
+ * This interface is implemented by an allocator that doesn't keep track of
+ * the blocks it has handed out, so that SOS may compact memory by moving
+ * processes and may rebuild the free memory (e.g., from a snapshot) by
+ * calling {@link #free} for each free block.
+ * 
+ * @see SOS#mergeFraggedProcesses
+ * @see SOS#compactStep
+ * @see FreeListAllocator
+ */
+public interface RelocatableAllocator extends MemoryAllocator {
+	/**
+	 * reset
+	 * 
+	 * forgets every block and leaves all the memory from the given address up
+	 * free. SOS calls this after it has moved every process below that
+	 * address.
+	 * 
+	 * @param freeAddr
+	 *            the first free address
+	 */
+	public void reset(int freeAddr);
+
+	/**
+	 * reserve
+	 * 
+	 * allocates a block at a given address, which must be free. SOS uses
+	 * this to move a process while it compacts memory.
+	 * 
+	 * @param addr
+	 *            the address of the block
+	 * @param size
+	 *            the number of words
+	 */
+	public void reserve(int addr, int size);
+
+}// interface RelocatableAllocator
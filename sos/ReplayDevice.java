@@ -0,0 +1,199 @@
+package sos;
+
+import java.util.*;
+
+/**
+ * This class stands in for a real device when a simulation replays an
+ * {@link InterruptTrace}. Each request the OS makes is answered with the next
+ * interrupt the device raised in the recording: the same type and data,
+ * delivered through the interrupt controller at the recorded tick. If the OS
+ * makes the request later than that (e.g., because the scheduler under test
+ * ran the process later) the interrupt is delivered on the next tick instead.
+ * 
+ * Replay devices finish their requests on an {@link EventQueue}, so the CPU
+ * must be in discrete-event mode.
+ * 
+ * @see InterruptTrace
+ * @see EventQueue
+ */
+public class ReplayDevice implements Device {
+	private int m_Id = -1; // the OS assigned device ID
+	private int m_flags; // the recorded device's capabilities
+	private volatile boolean m_request = false; // is a request in progress?
+	private int m_addr = 0; // address of the current request
+	private int m_type = 0; // interrupt that will end the current request
+	private int m_data = 0; // data that will be returned
+	private InterruptController m_IC = null; // reference to the interrupt
+											 // controller
+	private EventQueue m_events = null; // where requests are finished
+
+	/**
+	 * the recorded interrupts and the index of the next one to replay
+	 */
+	private InterruptTrace m_trace = null;
+	private int m_next = 0;
+
+	/**
+	 * finishes the current request
+	 */
+	private Runnable m_completion = new Runnable() {
+		public void run() {
+			complete();
+		}
+	};
+
+	/**
+	 * constructor
+	 * 
+	 * @param ic
+	 *            the interrupt controller to raise interrupts with
+	 * @param events
+	 *            the event queue that delivers the interrupts
+	 * @param trace
+	 *            the recording
+	 * @param index
+	 *            which of the recording's devices this replays
+	 */
+	public ReplayDevice(InterruptController ic, EventQueue events,
+	        InterruptTrace trace, int index) {
+		m_IC = ic;
+		m_events = events;
+		m_trace = trace;
+		m_Id = trace.getDeviceId(index);
+		m_flags = trace.getDeviceFlags(index);
+	}// ctor
+
+	/**
+	 * getId
+	 * 
+	 * @return the device id of this device
+	 */
+	public int getId() {
+		return m_Id;
+	}
+
+	/**
+	 * setId
+	 * 
+	 * sets the device id of this device
+	 * 
+	 * @param id
+	 *            the new id
+	 */
+	public void setId(int id) {
+		m_Id = id;
+	}
+
+	/**
+	 * isSharable
+	 * 
+	 * @return whether the recorded device was sharable
+	 */
+	public boolean isSharable() {
+		return (m_flags & InterruptTrace.DEV_SHARABLE) != 0;
+	}
+
+	/**
+	 * isAvailable
+	 * 
+	 * this device is available if no requests are currently being processed
+	 */
+	public boolean isAvailable() {
+		return !m_request;
+	}
+
+	/**
+	 * isReadable
+	 * 
+	 * @return whether the recorded device could be read from
+	 */
+	public boolean isReadable() {
+		return (m_flags & InterruptTrace.DEV_READABLE) != 0;
+	}
+
+	/**
+	 * isWriteable
+	 * 
+	 * @return whether the recorded device could be written to
+	 */
+	public boolean isWriteable() {
+		return (m_flags & InterruptTrace.DEV_WRITEABLE) != 0;
+	}
+
+	/**
+	 * setScheduler
+	 * 
+	 * does nothing: replayed requests are always finished on the event queue
+	 * given to the constructor
+	 */
+	public void setScheduler(Device.Scheduler scheduler) {
+	}
+
+	/**
+	 * read
+	 * 
+	 * starts replaying the next recorded read
+	 */
+	public int read(int addr) {
+		request(addr, InterruptController.INT_READ_DONE);
+
+		return -9999; // no longer used
+	}// read
+
+	/**
+	 * write
+	 * 
+	 * starts replaying the next recorded write
+	 */
+	public void write(int addr, int data) {
+		request(addr, InterruptController.INT_WRITE_DONE);
+	}// write
+
+	/**
+	 * request
+	 * 
+	 * looks up the next interrupt this device raised in the recording and
+	 * schedules it
+	 * 
+	 * @param addr
+	 *            the address the OS asked for
+	 * @param type
+	 *            the interrupt to raise if the recording has run out
+	 */
+	private void request(int addr, int type) {
+		m_addr = addr;
+		m_type = type;
+		m_data = 0;
+		m_request = true;
+
+		// Never deliver during the instruction that made the request
+		long due = m_events.getTicks() + 1;
+
+		// Find this device's next interrupt in the recording
+		while ((m_next < m_trace.size()) && (m_trace.getDevice(m_next) != m_Id)) {
+			m_next++;
+		}
+		if (m_next < m_trace.size()) {
+			due = Math.max(due, m_trace.getTick(m_next));
+			m_type = m_trace.getType(m_next);
+			m_data = m_trace.getData(m_next);
+			m_next++;
+		} else {
+			System.out.println("WARNING: device " + m_Id
+			        + " has no more recorded interrupts");
+		}
+
+		m_events.scheduleAt(due, m_completion);
+	}// request
+
+	/**
+	 * complete
+	 * 
+	 * finishes the current request by raising its interrupt
+	 */
+	private void complete() {
+		m_request = false;
+		m_IC.putData(m_type, m_Id, m_addr, m_data);
+	}// complete
+
+}// class ReplayDevice
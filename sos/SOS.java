@@ -1,6 +1,8 @@
 package sos;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * This class contains the simulated operating system (SOS). Realistically it
@@ -8,6 +10,10 @@ import java.util.*;
  * the real-world processor in order to allow a focus on the essentials of
  * operating system design using a high level programming language.
  * 
+ * The OS can manage several CPUs ("cores") that share the same RAM. Each
+ * core has its own run queue and takes the kernel lock on every trap (see
+ * {@link Core}).
+ * 
  * @author Preben Ingvaldsen
  * @author Et Begert
  * @author Aaron Dobbe
@@ -43,6 +49,8 @@ public class SOS implements CPU.TrapHandler {
 	public static final int SYSCALL_COREDUMP = 9; /*
 												 * print process state and exit
 												 */
+	public static final int SYSCALL_NICE = 10; /* set the nice value */
+	public static final int SYSCALL_QUANTUM = 11; /* set the time slice */
 
 	// Success and error code constants
 	public static final int SUCCESS = 0;
@@ -53,8 +61,6 @@ public class SOS implements CPU.TrapHandler {
 	public static final int DEVICE_READ_ONLY = -5;
 	public static final int DEVICE_WRITE_ONLY = -6;
 
-	/** This process is used as the idle process' id */
-	public static final int IDLE_PROC_ID = 999;
 
 	// Amount to increase process priority by for I/O operations
 	public static final int READ_PRIORITY = 1;
@@ -70,15 +76,68 @@ public class SOS implements CPU.TrapHandler {
 	// priority in order to take over
 	public static final int PRIORITY_THRESHOLD = 500;
 
+	// Scheduling policies (see setScheduler) and their names
+	public static final int SCHED_PRIORITY = 0;
+	public static final int SCHED_MLFQ = 1;
+	public static final int SCHED_CFS = 2;
+	public static final String[] SCHED_NAMES = { "priority", "mlfq", "cfs" };
+
+	// Memory allocation policies (see the SOS constructor) and their names
+	public static final int ALLOC_FIRST_FIT = 0;
+	public static final int ALLOC_BUDDY = 1;
+	public static final int ALLOC_BEST_FIT = 2;
+	public static final int ALLOC_NEXT_FIT = 3;
+	public static final int ALLOC_PAGED = 4;
+	public static final String[] ALLOC_NAMES = { "firstfit", "buddy",
+	        "bestfit", "nextfit", "paged" };
+
+	// Compaction (see setCompaction): the most pages moved per clock
+	// interrupt and the external fragmentation (as a percentage) above which
+	// memory is compacted
+	public static final int DEFAULT_COMPACT_PAGES = 4;
+	public static final int DEFAULT_COMPACT_THRESHOLD = 25;
+
+	// The default time slice in tickless mode (see setQuantum), in ticks
+	public static final int DEFAULT_QUANTUM = 20 * CPU.CLOCK_FREQ;
+
+	// Multilevel feedback queue: the quantum of each level and the time
+	// between boosts of every process to the top level, both in multiples of
+	// CPU.CLOCK_FREQ ticks
+	public static final int[] MLFQ_QUANTA = { 1, 2, 4, 8 };
+	public static final int MLFQ_BOOST_TIME = 50;
+
+	// Fair-share scheduler: the range of nice values, the weight of each nice
+	// value (from Linux: each step is worth about 10% of the CPU), how far
+	// (in virtual ticks) a ready process must be behind the running one to
+	// take over, and how much credit a process gets for having waited
+	public static final int NICE_MIN = -20;
+	public static final int NICE_MAX = 19;
+	public static final int[] NICE_WEIGHTS = {
+	/* -20 */88761, 71755, 56483, 46273, 36291,
+	/* -15 */29154, 23254, 18705, 14949, 11916,
+	/* -10 */9548, 7620, 6100, 4904, 3906,
+	/* -5 */3121, 2501, 1991, 1586, 1277,
+	/* 0 */1024, 820, 655, 526, 423,
+	/* 5 */335, 272, 215, 172, 137,
+	/* 10 */110, 87, 70, 56, 45,
+	/* 15 */36, 29, 23, 18, 15 };
+	public static final int CFS_GRANULARITY = CPU.CLOCK_FREQ;
+	public static final int CFS_WAKEUP_CREDIT = 3 * CPU.CLOCK_FREQ;
+
+	// Snapshot files: the RAM image and the OS/CPU state that goes with it
+	public static final String IMAGE_SUFFIX = ".ram";
+	public static final String STATE_SUFFIX = ".sos";
+	private static final int SNAPSHOT_MAGIC = 0x534f5333; // "SOS3"
+
 	// ======================================================================
 	// Member variables
 	// ----------------------------------------------------------------------
 
 	/**
 	 * This flag causes the SOS to print lots of potentially helpful status
-	 * messages
+	 * messages (see {@link #setVerbose})
 	 **/
-	public static final boolean m_verbose = true;
+	private boolean m_verbose = true;
 
 	/**
 	 * ID for the next process to load.
@@ -86,7 +145,8 @@ public class SOS implements CPU.TrapHandler {
 	private int m_nextProcessID;
 
 	/**
-	 * The CPU the operating system is managing.
+	 * The CPU the operating system is managing. With more than one core this
+	 * is the CPU of the core whose trap is being handled (see m_core).
 	 **/
 	private CPU m_CPU = null;
 
@@ -96,7 +156,7 @@ public class SOS implements CPU.TrapHandler {
 	private RAM m_RAM = null;
 
 	/**
-	 * The current process run by the CPU.
+	 * The current process run by the CPU (null if the core is idle).
 	 **/
 	private ProcessControlBlock m_currProcess = null;
 
@@ -110,19 +170,40 @@ public class SOS implements CPU.TrapHandler {
 	 **/
 	private Vector<DeviceInfo> m_devices = null;
 
+	/**
+	 * The registered devices by ID.
+	 **/
+	private HashMap<Integer, DeviceInfo> m_deviceIds = null;
+
 	/**
 	 * All programs currently running.
 	 **/
 	private Vector<Program> m_programs = null;
 
 	/**
-	 * Contains a list of all the blocks of RAM that are not currently allocated
-	 * to a process
+	 * The memory allocation policy (one of the ALLOC constants) and the
+	 * allocator that implements it, which keeps track of the blocks of RAM
+	 * that are not currently allocated to a process
+	 */
+	private int m_allocPolicy = ALLOC_FIRST_FIT;
+	private MemoryAllocator m_allocator = null;
+
+	/**
+	 * The free frames of RAM if memory is paged (ALLOC_PAGED), in which case
+	 * m_allocator is null. Each process then has an address space and a
+	 * page table of its own (see {@link #allocAddressSpace}). Null otherwise.
 	 */
-	private Vector<MemBlock> m_freeList = null;
+	private FrameAllocator m_frames = null;
 
 	/**
-	 * Instance of an MMU...
+	 * If memory is paged, the processes' page tables are carved out of the
+	 * space at the bottom of RAM that would otherwise hold the global page
+	 * table. Null otherwise.
+	 */
+	private FreeListAllocator m_pageTables = null;
+
+	/**
+	 * Instance of an MMU... (the MMU of m_CPU; every core has its own)
 	 */
 	private MMU m_MMU = null;
 
@@ -132,6 +213,122 @@ public class SOS implements CPU.TrapHandler {
 	 */
 	private int m_sizeOfPageTable;
 
+	/**
+	 * If not null, a snapshot with this name is saved at the first quiet
+	 * clock interrupt on or after m_snapshotClock
+	 */
+	private String m_snapshotName = null;
+
+	/**
+	 * The clock interrupt at which the scheduled snapshot is due
+	 */
+	private int m_snapshotClock = 0;
+
+	/**
+	 * The source of every random choice the OS makes (see {@link #setSeed})
+	 */
+	private Random m_random = new Random();
+
+	/**
+	 * The cores (CPUs sharing the RAM) that processes are scheduled on. Core 0
+	 * is the CPU the OS was created with and is the only one that takes I/O
+	 * interrupts.
+	 */
+	private Vector<Core> m_cores = null;
+
+	/**
+	 * The core that is in the kernel (null if none is). m_CPU, m_MMU and
+	 * m_currProcess belong to this core until it leaves (see
+	 * {@link Core#enter} and {@link Core#leave}). Until the cores start
+	 * running this is core 0.
+	 */
+	private Core m_core = null;
+
+	/**
+	 * The number of cores running user code, i.e., outside the kernel lock.
+	 * A core counts itself out before it waits for the lock.
+	 */
+	private AtomicInteger m_coresInUser = new AtomicInteger();
+
+	/**
+	 * The number of cores waiting for every other core to stop (see
+	 * {@link #stopOtherCores}). It is volatile because cores read it
+	 * without the kernel lock (see {@link Core#interruptClock}).
+	 */
+	private volatile int m_safepoints = 0;
+
+	/**
+	 * true if {@link #compactStep} has work to do. This is brought up to date
+	 * whenever a core leaves the kernel so that cores can check it without
+	 * the kernel lock.
+	 */
+	private volatile boolean m_compactionDue = false;
+
+	/**
+	 * Set once the last process has exited
+	 */
+	private boolean m_finished = false;
+
+	/**
+	 * The scheduling policy each core's scheduler uses (one of the SCHED
+	 * constants)
+	 */
+	private int m_schedulerType = SCHED_PRIORITY;
+
+	/**
+	 * The time slice (in ticks) a process gets in tickless mode unless it has
+	 * its own or the scheduling policy decides
+	 */
+	private int m_quantum = DEFAULT_QUANTUM;
+
+	/**
+	 * The number of processes blocked waiting for a device
+	 */
+	private int m_numBlocked = 0;
+
+	/**
+	 * The starve time statistics of the processes that have exited: the
+	 * longest starve time, and the sum and number of the average starve times
+	 */
+	private int m_maxStarve = 0;
+	private double m_totalAvgStarve = 0;
+	private int m_numAvgStarve = 0;
+
+	/**
+	 * Memory allocation statistics: the number of allocations and how many
+	 * failed, the sum and maximum of the external fragmentation (the
+	 * percentage of free memory outside the largest free block) each
+	 * allocation saw, and the most words ever lost to internal fragmentation
+	 */
+	private int m_numAllocs = 0;
+	private int m_failedAllocs = 0;
+	private double m_totalExtFrag = 0;
+	private int m_maxExtFrag = 0;
+	private int m_maxIntFrag = 0;
+
+	/**
+	 * The total size of the memory blocks the processes asked for
+	 */
+	private int m_requestedMem = 0;
+
+	/**
+	 * Compaction settings: the most pages moved per clock interrupt (0 to
+	 * compact all of memory whenever a process exits instead) and the
+	 * external fragmentation above which memory is compacted
+	 */
+	private int m_compactPages = DEFAULT_COMPACT_PAGES;
+	private int m_compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+
+	/**
+	 * Compaction pause statistics: the number of pauses whose length in ns
+	 * is in [2^i, 2^(i+1)) for each i, the longest pause, and the total and
+	 * most pages moved in a pause
+	 */
+	private long m_pauseHistogram[] = new long[64];
+	private long m_maxPause = 0;
+	private long m_pagesMoved = 0;
+	private int m_maxPagesMoved = 0;
+
 	/*
 	 * ======================================================================
 	 * Constructors & Debugging
@@ -139,27 +336,185 @@ public class SOS implements CPU.TrapHandler {
 	 */
 
 	/**
-	 * Initialize member variables
+	 * Initialize member variables, allocating memory first fit
 	 */
 	public SOS(CPU c, RAM r, MMU mmu) {
+		this(c, r, mmu, ALLOC_FIRST_FIT);
+	}// SOS ctor
+
+	/**
+	 * Initialize member variables
+	 * 
+	 * @param allocPolicy
+	 *            how memory is allocated to processes (one of the ALLOC
+	 *            constants)
+	 */
+	public SOS(CPU c, RAM r, MMU mmu, int allocPolicy) {
 		// Init member list
 		m_CPU = c;
 		m_RAM = r;
 		m_MMU = mmu;
 		m_nextProcessID = 1001;
-		m_CPU.registerTrapHandler(this);
+		m_cores = new Vector<Core>();
+		m_core = new Core(0, c, mmu);
+		m_cores.add(m_core);
 		m_processes = new Vector<ProcessControlBlock>();
 		m_devices = new Vector<DeviceInfo>();
+		m_deviceIds = new HashMap<Integer, DeviceInfo>();
 		m_programs = new Vector<Program>();
-		m_freeList = new Vector<MemBlock>();
 		initPageTable();
-		m_freeList.add(new MemBlock(m_sizeOfPageTable, (m_MMU.getSize()-m_sizeOfPageTable)));
+		m_allocPolicy = allocPolicy;
+		if (allocPolicy == ALLOC_PAGED) {
+			// The frames that hold the page tables are never handed out
+			m_frames = new FrameAllocator(m_MMU.getNumFrames());
+			int pageSize = m_MMU.getPageSize();
+			int tableFrames = (m_sizeOfPageTable + pageSize - 1) / pageSize;
+			for (int f = 0; f < tableFrames; f++) {
+				m_frames.reserve(f);
+			}
+			m_pageTables = new FreeListAllocator(FreeListAllocator.FIRST_FIT,
+			        0, m_sizeOfPageTable);
+		} else {
+			m_allocator = createAllocator(allocPolicy, m_sizeOfPageTable,
+			        m_MMU.getSize() - m_sizeOfPageTable, m_MMU.getPageSize());
+		}
 	}// SOS ctor
 
+	/**
+	 * setSeed
+	 * 
+	 * seeds the random choices the OS makes (which program an Exec system
+	 * call runs, for instance) so that a simulation can be repeated exactly
+	 * 
+	 * @param seed
+	 *            the seed
+	 */
+	public void setSeed(long seed) {
+		m_random.setSeed(seed);
+	}// setSeed
+
+	/**
+	 * addCore
+	 * 
+	 * adds another CPU that shares this OS's RAM. The CPU needs its own MMU
+	 * (and so its own TLB) built on the same RAM and no interrupt controller,
+	 * since only core 0 takes I/O interrupts. The core starts out halted and
+	 * takes ready processes from the other cores' run queues.
+	 * 
+	 * @param cpu
+	 *            the new core's CPU
+	 * @param mmu
+	 *            the new core's MMU
+	 */
+	public synchronized void addCore(CPU cpu, MMU mmu) {
+		cpu.setHalted(true);
+		m_cores.add(new Core(m_cores.size(), cpu, mmu));
+	}// addCore
+
+	/**
+	 * setVerbose
+	 * 
+	 * turns the OS's status messages on (the default) or off. Benchmarks turn
+	 * them off for the SOS they are measuring.
+	 */
+	public synchronized void setVerbose(boolean verbose) {
+		m_verbose = verbose;
+	}// setVerbose
+
+	/**
+	 * setScheduler
+	 * 
+	 * chooses the scheduling policy. This must be called before any process
+	 * is created.
+	 * 
+	 * @param type
+	 *            one of the SCHED constants
+	 */
+	public synchronized void setScheduler(int type) {
+		m_schedulerType = type;
+		for (Core core : m_cores) {
+			core.scheduler = createScheduler(core.cpu);
+		}
+	}// setScheduler
+
+	/**
+	 * setQuantum
+	 * 
+	 * sets the time slice a process runs for before the scheduler is called
+	 * when the CPUs are tickless (see {@link CPU#setTickless}). A process can
+	 * choose its own with SYSCALL_QUANTUM, and the multilevel feedback queue
+	 * uses the quantum of each process' level instead.
+	 * 
+	 * @param ticks
+	 *            the time slice in ticks
+	 */
+	public synchronized void setQuantum(int ticks) {
+		m_quantum = ticks;
+	}// setQuantum
+
+	/**
+	 * setCompaction
+	 * 
+	 * sets how memory is compacted when the allocator allows processes to
+	 * move. Normally a few pages are moved on each clock interrupt while the
+	 * external fragmentation (the percentage of free memory outside the
+	 * largest free block) is above a threshold, so that no single pause is
+	 * long. A process bigger than the limit is moved on its own. Memory is
+	 * still compacted all at once if a process can't be created otherwise.
+	 * 
+	 * @param pagesPerClock
+	 *            the most pages to move per clock interrupt -OR- 0 to compact
+	 *            all of memory whenever a process exits
+	 * @param threshold
+	 *            the external fragmentation, as a percentage, above which
+	 *            memory is compacted
+	 */
+	public synchronized void setCompaction(int pagesPerClock, int threshold) {
+		m_compactPages = pagesPerClock;
+		m_compactThreshold = threshold;
+	}// setCompaction
+
+	/**
+	 * createScheduler
+	 * 
+	 * @param cpu
+	 *            the CPU of the core the scheduler is for
+	 * @return a new, empty scheduler for a core that uses the chosen policy
+	 */
+	private Scheduler createScheduler(CPU cpu) {
+		if (m_schedulerType == SCHED_MLFQ) {
+			return new MLFQScheduler(cpu);
+		}
+		if (m_schedulerType == SCHED_CFS) {
+			return new CFSScheduler(cpu);
+		}
+		return new PriorityScheduler(cpu);
+	}// createScheduler
+
+	/**
+	 * getCore
+	 * 
+	 * @param id
+	 *            a core number (0 is the CPU the OS was created with)
+	 * @return the code to run on the core's thread (it runs the core's CPU)
+	 */
+	public synchronized Runnable getCore(int id) {
+		return m_cores.get(id);
+	}// getCore
+
+	/**
+	 * getNumCores
+	 * 
+	 * @return the number of cores
+	 */
+	public synchronized int getNumCores() {
+		return m_cores.size();
+	}// getNumCores
+
 	/**
 	 * Does a System.out.print as long as m_verbose is true
 	 **/
-	public static void debugPrint(String s) {
+	public void debugPrint(String s) {
 		if (m_verbose) {
 			System.out.print(s);
 		}
@@ -168,7 +523,7 @@ public class SOS implements CPU.TrapHandler {
 	/**
 	 * Does a System.out.println as long as m_verbose is true
 	 **/
-	public static void debugPrintln(String s) {
+	public void debugPrintln(String s) {
 		if (m_verbose) {
 			System.out.println(s);
 		}
@@ -186,6 +541,9 @@ public class SOS implements CPU.TrapHandler {
 	 * prints all the processes in the process table
 	 */
 	private void printProcessTable() {
+		if (!m_verbose)
+			return;
+
 		debugPrintln("");
 		debugPrintln("Process Table (" + m_processes.size() + " processes)");
 		debugPrintln("======================================================================");
@@ -196,6 +554,84 @@ public class SOS implements CPU.TrapHandler {
 
 	}// printProcessTable
 
+	/**
+	 * printSimStats **DEBUGGING**
+	 * 
+	 * prints statistics gathered by the simulated hardware over the whole
+	 * simulation
+	 */
+	private void printSimStats() {
+		// Every core has a TLB of its own
+		long tlbHits = 0;
+		long tlbMisses = 0;
+		for (Core core : m_cores) {
+			tlbHits += core.mmu.getTLBHits();
+			tlbMisses += core.mmu.getTLBMisses();
+		}
+		long lookups = tlbHits + tlbMisses;
+		debugPrintln("");
+		debugPrintln("Simulation Statistics");
+		debugPrintln("======================================================================");
+		if (m_RAM.getLatencyMode() == RAM.LATENCY_SIMULATED) {
+			debugPrintln("    RAM: " + m_RAM.getStallTime()
+			        + "ns simulated stall time ("
+			        + ((m_RAM.getLatency() == 0) ? 0
+			                : (m_RAM.getStallTime() / m_RAM.getLatency()))
+			        + " accesses at " + m_RAM.getLatency() + "ns)");
+		}
+		debugPrintln("    TLB: " + tlbHits + " hits, " + tlbMisses
+		        + " misses ("
+		        + ((lookups == 0) ? 0 : (100 * tlbHits / lookups))
+		        + "% hit rate, " + m_MMU.getTLBSize() + " entries"
+		        + ((m_cores.size() > 1) ? " per core" : "") + ")");
+		debugPrintln("    Scheduler: " + SCHED_NAMES[m_schedulerType]
+		        + ", max starve time " + m_maxStarve
+		        + " ticks, average starve time "
+		        + ((m_numAvgStarve == 0) ? 0 : (m_totalAvgStarve / m_numAvgStarve))
+		        + " ticks");
+		debugPrintln("    Memory: " + ALLOC_NAMES[m_allocPolicy] + ", "
+		        + m_numAllocs + " allocations (" + m_failedAllocs
+		        + " failed), external fragmentation "
+		        + ((m_numAllocs == 0) ? 0 : (int) (m_totalExtFrag / m_numAllocs))
+		        + "% average, " + m_maxExtFrag
+		        + "% max, internal fragmentation " + m_maxIntFrag
+		        + " words max");
+		printPauseHistogram();
+		debugPrintln("    Clock: " + m_CPU.getClockInterrupts() + " interrupts"
+		        + (m_CPU.isTickless() ? " (tickless)" : ""));
+		if (m_CPU.getHalts() > 0) {
+			debugPrintln("    CPU: halted " + m_CPU.getHalts() + " times"
+			        + ((m_CPU.getEventQueue() == null) ? "" : " ("
+			                + m_CPU.getHaltedTicks() + " ticks skipped)"));
+		}
+		InstructionCache icache = m_MMU.getInstructionCache();
+		if (icache != null) {
+			lookups = icache.getHits() + icache.getMisses();
+			debugPrintln("    Instruction cache: " + icache.getHits()
+			        + " hits, " + icache.getMisses() + " misses ("
+			        + ((lookups == 0) ? 0 : (100 * icache.getHits() / lookups))
+			        + "% hit rate, " + icache.getSize() + " entries)");
+		}
+		BlockTranslator translator = m_CPU.getBlockTranslator();
+		if (translator != null) {
+			debugPrintln("    Block translation: "
+			        + translator.getBlocksTranslated() + " blocks translated, "
+			        + translator.getBlocksInvalidated() + " invalidated, "
+			        + translator.getInstructionsExecuted() + " of "
+			        + m_CPU.getTicks() + " ticks run as translated code");
+		}
+		if (m_cores.size() > 1) {
+			for (Core core : m_cores) {
+				debugPrintln("    Core " + core.getId() + ": "
+				        + core.cpu.getTicks() + " ticks, "
+				        + core.mmu.getTLBHits() + " TLB hits, "
+				        + core.mmu.getTLBMisses() + " TLB misses, halted "
+				        + core.cpu.getHalts() + " times");
+			}
+		}
+		debugPrintln("----------------------------------------------------------------------");
+	}// printSimStats
+
 	/**
 	 * removeCurrentProcess
 	 * 
@@ -204,7 +640,13 @@ public class SOS implements CPU.TrapHandler {
 	 */
 	public void removeCurrentProcess() {
 		debugPrintln("Removing process ID " + m_currProcess.getProcessId());
+		m_maxStarve = Math.max(m_maxStarve, m_currProcess.maxStarve);
+		if (m_currProcess.avgStarve > 0) {
+			m_totalAvgStarve += m_currProcess.avgStarve;
+			m_numAvgStarve++;
+		}
 		m_processes.remove(m_currProcess);
+		m_currProcess.core = null;
 		freeCurrProcessMemBlock();
 		scheduleNewProcess();
 	}// removeCurrentProcess
@@ -219,7 +661,8 @@ public class SOS implements CPU.TrapHandler {
 	 */
 	ProcessControlBlock getRandomProcess() {
 		// Calculate a random offset into the m_processes list
-		int offset = ((int) (Math.random() * 2147483647)) % m_processes.size();
+		int offset = ((int) (m_random.nextDouble() * 2147483647))
+		        % m_processes.size();
 
 		// Iterate until a non-blocked process is found
 		ProcessControlBlock newProc = null;
@@ -236,42 +679,75 @@ public class SOS implements CPU.TrapHandler {
 	/**
 	 * getNextProcess
 	 * 
-	 * selects a process from the process table to run. The scheduler ages
-	 * processes that have been starving, as well as promoting processes that do
-	 * a lot of I/O.
+	 * selects a process to run on the current core using the core's
+	 * scheduler (see {@link #setScheduler}). If the core has nothing to run
+	 * it takes a process from another core. The process returned is taken off
+	 * the ready queue, and the current process is put back on it if it loses
+	 * the CPU while still ready.
 	 * 
 	 * @return the process that should be scheduled next
 	 */
 	ProcessControlBlock getNextProcess() {
-		// If enough clock interrupts have passed, age any processes in the
-		// Ready state
-		if ((m_CPU.getTicks() / CPU.CLOCK_FREQ) % AGING_TIME == 0) {
-			for (int i = 0; i < m_processes.size(); i++) {
-				ProcessControlBlock nextProc = m_processes.elementAt(i);
-				if (!nextProc.isBlocked() && !nextProc.equals(m_currProcess)) {
-					nextProc.increasePriority(AGING_PRIORITY);
-				}
-			}
+		// The current process can keep running as long as it's not blocked
+		// and still in the process table
+		ProcessControlBlock currProc = m_currProcess;
+		if ((currProc != null)
+		        && (currProc.isBlocked() || (currProc.core == null))) {
+			currProc = null;
 		}
 
-		// Get the highest-priority process
-		ProcessControlBlock bestProc = null;
-		int bestPriority = -1;
-		// default to the current process as long as it's not blocked and
-		// still in the process table.
-		if (!m_currProcess.isBlocked() && m_processes.contains(m_currProcess)) {
-			bestProc = m_currProcess;
-			bestPriority = m_currProcess.getPriority() + PRIORITY_THRESHOLD;
+		ProcessControlBlock bestProc = m_core.scheduler.selectNext(currProc);
+		if (bestProc == null) {
+			bestProc = stealProcess();
 		}
-		for (int i = 0; i < m_processes.size(); i++) {
-			ProcessControlBlock nextProc = m_processes.elementAt(i);
-			if (!nextProc.isBlocked() && nextProc.getPriority() > bestPriority) {
-				bestProc = nextProc;
-				bestPriority = nextProc.getPriority();
+		return bestProc;
+	}// getNextProcess
+
+	/**
+	 * stealProcess
+	 * 
+	 * takes the highest-priority ready process off another core's ready
+	 * queue and assigns it to the current core. The other cores may be
+	 * running their own clock interrupts, so each one's lock is held while
+	 * its scheduler is looked at.
+	 * 
+	 * @return the process that was moved -OR- null if no other core has one
+	 */
+	private ProcessControlBlock stealProcess() {
+		// Priorities may be negative (see CFSScheduler.getPriority), so any
+		// ready process will do for the first core that has one
+		Core bestCore = null;
+		int bestPriority = 0;
+		for (Core core : m_cores) {
+			if (core == m_core) {
+				continue;
+			}
+			synchronized (core) {
+				ProcessControlBlock pcb = core.scheduler.peekReady();
+				if ((pcb != null)
+				        && ((bestCore == null) || (pcb.getPriority() > bestPriority))) {
+					bestCore = core;
+					bestPriority = pcb.getPriority();
+				}
 			}
+		}// for
+
+		if (bestCore == null) {
+			return null;
+		}
+		ProcessControlBlock bestProc;
+		synchronized (bestCore) {
+			bestProc = bestCore.scheduler.pollReady();
+		}
+		if (bestProc == null) {
+			// The core ran it in the meantime
+			return null;
 		}
+		debugPrintln("Core " + m_core.getId() + " took process ID "
+		        + bestProc.getProcessId() + " from core " + bestCore.getId());
+		bestProc.core = m_core;
 		return bestProc;
-	}
+	}// stealProcess
 
 	/**
 	 * scheduleNewProcess
@@ -283,16 +759,25 @@ public class SOS implements CPU.TrapHandler {
 
 		if (m_processes.size() == 0) {
 			// No processes to run, just end the simulation
-			System.exit(0);
+			endSimulation();
 		}
 
-		int oldID = m_currProcess.getProcessId();
-
 		ProcessControlBlock nextProc = getNextProcess();
 		if (nextProc == null) {
-			createIdleProcess();
+			haltCPU();
+			return;
+		}
+		if (m_currProcess == null) {
+			// The CPU was halted
+			debugPrintln("CPU resumed; process ID " + nextProc.getProcessId()
+			        + " running");
+			m_currProcess = nextProc;
+			m_currProcess.restore(m_CPU);
+			m_CPU.setHalted(false);
+			startSlice();
 			return;
 		}
+		int oldID = m_currProcess.getProcessId();
 		int newID = nextProc.getProcessId();
 		debugPrintln("Process ID " + oldID + " moving to Ready; process ID "
 		        + newID + " running");
@@ -302,64 +787,82 @@ public class SOS implements CPU.TrapHandler {
 			m_currProcess.save(m_CPU);
 			m_currProcess = nextProc;
 			m_currProcess.restore(m_CPU);
+			wakeIdleCores();
 		}
+		startSlice();
 
 	}// scheduleNewProcess
 
 	/**
-	 * createIdleProcess
-	 * 
-	 * creates a one instruction process that immediately exits. This is used to
-	 * buy time until device I/O completes and unblocks a legitimate process.
-	 * 
-	 * @see allocBlock()
+	 * haltCPU
 	 * 
+	 * halts the CPU because no process is ready. The CPU stops executing
+	 * (and, in real time, stops using a host core) until an I/O interrupt or
+	 * another core wakes it up, and then gives the OS a clock interrupt to
+	 * schedule a process.
 	 */
-	public void createIdleProcess() {
-		int progArr[] = { 0, 0, 0, 0, // SET r0=0
-		        0, 0, 0, 0, // SET r0=0 (repeated instruction to account for
-							// vagaries in student implementation of the CPU
-							// class)
-		        10, 0, 0, 0, // PUSH r0
-		        15, 0, 0, 0 }; // TRAP
-
-		// Ensure that our program receives enough space to store itself.
-		// This means getting the required number of pages and multiplying
-		// it by the page size.
-		int requiredPages = (16 / m_MMU.getPageSize()) + 1;
-		int allocSize = requiredPages * m_MMU.getPageSize();
-
-		// Initialize the starting position for this program
-		int memBlock = allocBlock(allocSize);
-
-		if (memBlock == -1) {
-			System.out.println("Failed to allocate idle process of size " + 16);
-			return;
-		}
-
-		int baseAddr = memBlock;
-
-		// Load the program into RAM
-		for (int i = 0; i < progArr.length; i++) {
-			m_MMU.write(baseAddr + i, progArr[i]);
-		}
-
-		// Save the register info from the current process (if there is one)
+	private void haltCPU() {
 		if (m_currProcess != null) {
+			debugPrintln("Process ID " + m_currProcess.getProcessId()
+			        + " stopped; CPU halted");
 			m_currProcess.save(m_CPU);
+			m_currProcess = null;
 		}
+		m_core.sliceProc = null;
+		m_CPU.setHalted(true);
+	}// haltCPU
+
+	/**
+	 * startSlice
+	 * 
+	 * sets the CPU's timer for the end of the running process' time slice.
+	 * A process that was just loaded, or whose slice has run out, gets a new
+	 * slice; otherwise (e.g., it was only interrupted because another
+	 * process became ready) it carries on with the rest of the one it had.
+	 * The timer is only used when the CPU is tickless.
+	 */
+	private void startSlice() {
+		m_core.startSlice(m_currProcess);
+	}// startSlice
 
-		// Set the appropriate registers
-		m_CPU.setPC(baseAddr);
-		m_CPU.setSP(baseAddr + progArr.length + 10);
-		m_CPU.setBASE(baseAddr);
-		m_CPU.setLIM(baseAddr + progArr.length + 20);
+	/**
+	 * wakeIdleCores
+	 * 
+	 * wakes up the other cores that are halted so they can look for a
+	 * process to run. Call this whenever a process becomes ready without
+	 * being run.
+	 */
+	private void wakeIdleCores() {
+		wakeIdleCores(m_core);
+	}// wakeIdleCores
 
-		// Save the relevant info as a new entry in m_processes
-		m_currProcess = new ProcessControlBlock(IDLE_PROC_ID);
-		m_processes.add(m_currProcess);
+	/**
+	 * wakeIdleCores
+	 * 
+	 * wakes up the halted cores other than the given one
+	 */
+	private void wakeIdleCores(Core except) {
+		for (Core core : m_cores) {
+			if ((core != except) && core.cpu.isHalted()) {
+				core.cpu.wakeUp();
+			}
+		}
+	}// wakeIdleCores
 
-	}// createIdleProcess
+	/**
+	 * endSimulation
+	 * 
+	 * prints the statistics and stops the simulation once every process has
+	 * exited. Halted cores are woken up so that they stop the same way.
+	 */
+	private void endSimulation() {
+		if (!m_finished) {
+			m_finished = true;
+			printSimStats();
+			wakeIdleCores();
+		}
+		System.exit(0);
+	}// endSimulation
 
 	/**
 	 * addProgram
@@ -411,7 +914,16 @@ public class SOS implements CPU.TrapHandler {
 		int requiredPages = (allocSize / m_MMU.getPageSize()) + 1;
 		allocSize = requiredPages * m_MMU.getPageSize();
 
-		int memBlock = allocBlock(allocSize);
+		// With paged memory the process gets an address space of its own,
+		// starting at 0
+		int memBlock;
+		int pageTable = 0;
+		if (m_frames != null) {
+			pageTable = allocAddressSpace(allocSize);
+			memBlock = (pageTable == -1) ? -1 : 0;
+		} else {
+			memBlock = allocBlock(allocSize);
+		}
 
 		if (memBlock == -1) {
 			printPageTable();
@@ -421,57 +933,92 @@ public class SOS implements CPU.TrapHandler {
 			return;
 		}
 
+		m_CPU.setPTBR(pageTable);
 		m_CPU.setBASE(memBlock);
 		m_CPU.setLIM(m_CPU.getBASE() + allocSize);
 		m_CPU.setPC(m_CPU.getBASE());
 		m_CPU.setSP(m_CPU.getLIM() - 1);
 
-		// move through the allocated memory and load the program instructions
-		// into RAM,
-		// one at a time, breaking if we go past the memory limit
-		for (int i = 0; i < programInstructions.length; i++) {
-			m_MMU.write(memBlock + i, programInstructions[i]);
-		}
+		// load the program instructions into the allocated memory a page at
+		// a time
+		m_MMU.write(memBlock, programInstructions, 0,
+		        programInstructions.length);
 
-		// Load up the new process
+		// Load up the new process on this core. The process that called Exec
+		// is left ready for another core to pick up.
 		ProcessControlBlock newProc = new ProcessControlBlock(m_nextProcessID);
 		m_processes.add(newProc);
+		newProc.core = m_core;
+		if (m_currProcess != null) {
+			m_core.scheduler.addReady(m_currProcess);
+		}
 		m_currProcess = newProc;
 		m_currProcess.save(m_CPU);
 		printMemAlloc();
 
 		// Prepare for the next process to load
 		m_nextProcessID++;
+		wakeIdleCores();
+		startSlice();
 	}// createProcess
 
+	/**
+	 * createBenchmarkProcess
+	 * 
+	 * adds a ready process with no memory or program to the process table.
+	 * Such a process must never actually run; this is only for measuring the
+	 * scheduler (see {@link Sim#runSchedulerBenchmark}).
+	 */
+	void createBenchmarkProcess() {
+		ProcessControlBlock newProc = new ProcessControlBlock(m_nextProcessID);
+		m_processes.add(newProc);
+		newProc.core = m_core;
+		if (m_currProcess == null) {
+			m_currProcess = newProc;
+		} else {
+			m_core.scheduler.addReady(newProc);
+		}
+		m_nextProcessID++;
+	}// createBenchmarkProcess
+
+	/**
+	 * benchmarkContextSwitch
+	 * 
+	 * saves the running process, puts it back on the ready queue and loads
+	 * the next ready process, without printing anything or asking the
+	 * scheduling policy whether to switch. This is only used to measure the
+	 * cost of a context switch (see {@link Sim#runContextSwitchBenchmark}).
+	 */
+	void benchmarkContextSwitch() {
+		ProcessControlBlock nextProc = m_core.scheduler.pollReady();
+		m_currProcess.save(m_CPU);
+		m_core.scheduler.addReady(m_currProcess);
+		m_currProcess = nextProc;
+		m_currProcess.restore(m_CPU);
+	}// benchmarkContextSwitch
+
 	/**
 	 * selectBlockedProcess
 	 * 
 	 * select a process to unblock that might be waiting to perform a given
-	 * action on a given device. This is a helper method for system calls and
-	 * interrupts that deal with devices.
+	 * action on a given device and take it off the device's wait queue. The
+	 * process that has waited longest is chosen. This is a helper method for
+	 * system calls and interrupts that deal with devices.
 	 * 
-	 * @param dev
-	 *            the Device that the process must be waiting for
+	 * @param devInfo
+	 *            the device that the process must be waiting for
 	 * @param op
 	 *            the operation that the process wants to perform on the device.
 	 *            Use the SYSCALL constants for this value.
 	 * @param addr
-	 *            the address the process is reading from. If the operation is a
-	 *            Write or Open then this value can be anything
+	 *            the address the process is reading from. If the operation is
+	 *            an Open then this value can be anything
 	 * 
 	 * @return the process to unblock -OR- null if none match the given criteria
 	 */
-	public ProcessControlBlock selectBlockedProcess(Device dev, int op, int addr) {
-		ProcessControlBlock selected = null;
-		for (ProcessControlBlock pi : m_processes) {
-			if (pi.isBlockedForDevice(dev, op, addr)) {
-				selected = pi;
-				break;
-			}
-		}// for
-
-		return selected;
+	private ProcessControlBlock selectBlockedProcess(DeviceInfo devInfo,
+	        int op, int addr) {
+		return devInfo.removeWaiter(op, addr);
 	}// selectBlockedProcess
 
 	/**
@@ -547,6 +1094,12 @@ public class SOS implements CPU.TrapHandler {
 		case SYSCALL_YIELD:
 			syscallYield();
 			break;
+		case SYSCALL_NICE:
+			syscallNice();
+			break;
+		case SYSCALL_QUANTUM:
+			syscallQuantum();
+			break;
 		}
 
 	}
@@ -615,23 +1168,23 @@ public class SOS implements CPU.TrapHandler {
 	 */
 	public void interruptIOReadComplete(int devID, int addr, int data) {
 		// Find referenced device
-		for (DeviceInfo devInfo : m_devices) {
-			if (devInfo.getId() == devID) {
-				ProcessControlBlock blockedProcess = selectBlockedProcess(
-				        devInfo.getDevice(), SYSCALL_READ, addr);
-				blockedProcess.unblock();
-
-				// Push data and success code onto the process's stack
-				int sp = blockedProcess.getRegisterValue(CPU.SP);
-				m_MMU.write(sp, data);
-				sp--;
-				blockedProcess.setRegisterValue(CPU.SP, sp);
-				m_MMU.write(sp, SUCCESS);
-				sp--;
-				blockedProcess.setRegisterValue(CPU.SP, sp);
-				return;
-			}
+		DeviceInfo devInfo = m_deviceIds.get(devID);
+		if (devInfo == null) {
+			return;
 		}
+
+		ProcessControlBlock blockedProcess = selectBlockedProcess(devInfo,
+		        SYSCALL_READ, addr);
+		blockedProcess.unblock();
+
+		// Push data and success code onto the process's stack
+		int sp = blockedProcess.getRegisterValue(CPU.SP);
+		writeProcessWord(blockedProcess, sp, data);
+		sp--;
+		blockedProcess.setRegisterValue(CPU.SP, sp);
+		writeProcessWord(blockedProcess, sp, SUCCESS);
+		sp--;
+		blockedProcess.setRegisterValue(CPU.SP, sp);
 	}
 
 	/**
@@ -647,20 +1200,20 @@ public class SOS implements CPU.TrapHandler {
 	 */
 	public void interruptIOWriteComplete(int devID, int addr) {
 		// Find referenced device
-		for (DeviceInfo devInfo : m_devices) {
-			if (devInfo.getId() == devID) {
-				ProcessControlBlock blockedProcess = selectBlockedProcess(
-				        devInfo.getDevice(), SYSCALL_WRITE, addr);
-				blockedProcess.unblock();
-
-				// Push success code onto the process's stack
-				int sp = blockedProcess.getRegisterValue(CPU.SP);
-				m_MMU.write(sp, SUCCESS);
-				sp--;
-				blockedProcess.setRegisterValue(CPU.SP, sp);
-				return;
-			}
+		DeviceInfo devInfo = m_deviceIds.get(devID);
+		if (devInfo == null) {
+			return;
 		}
+
+		ProcessControlBlock blockedProcess = selectBlockedProcess(devInfo,
+		        SYSCALL_WRITE, addr);
+		blockedProcess.unblock();
+
+		// Push success code onto the process's stack
+		int sp = blockedProcess.getRegisterValue(CPU.SP);
+		writeProcessWord(blockedProcess, sp, SUCCESS);
+		sp--;
+		blockedProcess.setRegisterValue(CPU.SP, sp);
 	}
 
 	/**
@@ -669,12 +1222,17 @@ public class SOS implements CPU.TrapHandler {
 	 * Handles a clock interrupt by calling the scheduler.
 	 */
 	public void interruptClock() {
-		// If we're currently running the idle process, just let it die
-		// (this avoids problems with processes placing themselves on the
-		// idle process's memory space)
-		if (m_currProcess.getProcessId() == IDLE_PROC_ID)
-			return;
+		compactStep();
+
+		int now = m_CPU.getTicks();
+		m_core.scheduler.clockInterrupt(m_currProcess, now - m_core.chargedAt);
+		m_core.chargedAt = now;
 		scheduleNewProcess();
+
+		if ((m_snapshotName != null)
+		        && (m_CPU.getTicks() / CPU.CLOCK_FREQ >= m_snapshotClock)) {
+			takeScheduledSnapshot();
+		}
 	}
 
 	/*
@@ -734,31 +1292,31 @@ public class SOS implements CPU.TrapHandler {
 	 */
 	private void syscallOpen() {
 		int devId = pop();
-		for (DeviceInfo deviceInfo : m_devices) {
-			if (deviceInfo.getId() == devId) {
-				if (!deviceInfo.getDevice().isSharable()
-				        && !deviceInfo.unused()) {
-					// Reserve the device for this process, but block the
-					// process until the device is next available
-					deviceInfo.addProcess(m_currProcess);
-					push(SUCCESS);
-					m_currProcess.block(m_CPU, deviceInfo.getDevice(),
-					        SYSCALL_OPEN, 0);
-					scheduleNewProcess();
-					return;
-				} else if (deviceInfo.containsProcess(m_currProcess)) {
-					// The process has already opened this device
-					push(DEVICE_ALREADY_OPEN);
-					return;
-				} else {
-					deviceInfo.addProcess(m_currProcess);
-					push(SUCCESS);
-					return;
-				}
-			}
+		DeviceInfo deviceInfo = m_deviceIds.get(devId);
+		if (deviceInfo == null) {
+			// The device doesn't exist
+			push(DEVICE_NOT_FOUND);
+			return;
+		}
+
+		if (!deviceInfo.getDevice().isSharable()
+		        && !deviceInfo.unused()) {
+			// Reserve the device for this process, but block the
+			// process until the device is next available
+			deviceInfo.addProcess(m_currProcess);
+			push(SUCCESS);
+			m_currProcess.block(m_CPU, deviceInfo, SYSCALL_OPEN, 0);
+			scheduleNewProcess();
+			return;
+		} else if (deviceInfo.containsProcess(m_currProcess)) {
+			// The process has already opened this device
+			push(DEVICE_ALREADY_OPEN);
+			return;
+		} else {
+			deviceInfo.addProcess(m_currProcess);
+			push(SUCCESS);
+			return;
 		}
-		// If we're here, the device doesn't exist
-		push(DEVICE_NOT_FOUND);
 	}
 
 	/**
@@ -769,29 +1327,29 @@ public class SOS implements CPU.TrapHandler {
 	 */
 	private void syscallClose() {
 		int devId = pop();
-		for (DeviceInfo deviceInfo : m_devices) {
-			if (deviceInfo.getId() == devId) {
-				if (!deviceInfo.containsProcess(m_currProcess)) {
-					// The process has not opened this device
-					push(DEVICE_NOT_OPEN);
-					return;
-				}
-				deviceInfo.removeProcess(m_currProcess);
-				push(SUCCESS);
-
-				// Check to see if any other processes are waiting
-				// on this device. If so, set one of them to the
-				// Running state.
-				ProcessControlBlock nextProc = selectBlockedProcess(
-				        deviceInfo.getDevice(), SYSCALL_OPEN, 0);
-				if (nextProc != null) {
-					nextProc.unblock();
-				}
-				return;
-			}
+		DeviceInfo deviceInfo = m_deviceIds.get(devId);
+		if (deviceInfo == null) {
+			// The device doesn't exist
+			push(DEVICE_NOT_FOUND);
+			return;
+		}
+
+		if (!deviceInfo.containsProcess(m_currProcess)) {
+			// The process has not opened this device
+			push(DEVICE_NOT_OPEN);
+			return;
+		}
+		deviceInfo.removeProcess(m_currProcess);
+		push(SUCCESS);
+
+		// Check to see if any other processes are waiting
+		// on this device. If so, set one of them to the
+		// Running state.
+		ProcessControlBlock nextProc = selectBlockedProcess(deviceInfo,
+		        SYSCALL_OPEN, 0);
+		if (nextProc != null) {
+			nextProc.unblock();
 		}
-		// If we're here, the device doesn't exist
-		push(DEVICE_NOT_FOUND);
 	}
 
 	/**
@@ -804,41 +1362,41 @@ public class SOS implements CPU.TrapHandler {
 		int addr = pop();
 		int devId = pop();
 
-		for (DeviceInfo deviceInfo : m_devices) {
-			if (deviceInfo.getId() == devId) {
-				Device device = deviceInfo.getDevice();
-				// If device is unavailable, move process to Ready and schedule
-				// a new one
-				if (!device.isAvailable()) {
-					int pc = m_CPU.getPC();
-					m_CPU.setPC(pc - CPU.INSTRSIZE);
-					push(devId);
-					push(addr);
-					push(SYSCALL_READ);
-					scheduleNewProcess();
-					return;
-				}
-
-				if (!deviceInfo.containsProcess(m_currProcess)) {
-					// The process has not opened this device
-					push(DEVICE_NOT_OPEN);
-					return;
-				} else if (!device.isReadable()) {
-					// Device is write-only
-					push(DEVICE_WRITE_ONLY);
-					return;
-				}
-
-				device.read(addr);
-				m_currProcess.increasePriority(READ_PRIORITY);
-				m_currProcess.block(m_CPU, device, SYSCALL_READ, addr);
-				scheduleNewProcess();
-				return;
-			}
+		DeviceInfo deviceInfo = m_deviceIds.get(devId);
+		if (deviceInfo == null) {
+			// The device doesn't exist
+			push(DEVICE_NOT_FOUND);
+			return;
 		}
-		// If we're here, the device doesn't exist
-		push(DEVICE_NOT_FOUND);
-	}
+
+		Device device = deviceInfo.getDevice();
+		// If device is unavailable, move process to Ready and schedule
+		// a new one
+		if (!device.isAvailable()) {
+			int pc = m_CPU.getPC();
+			m_CPU.setPC(pc - CPU.INSTRSIZE);
+			push(devId);
+			push(addr);
+			push(SYSCALL_READ);
+			scheduleNewProcess();
+			return;
+		}
+
+		if (!deviceInfo.containsProcess(m_currProcess)) {
+			// The process has not opened this device
+			push(DEVICE_NOT_OPEN);
+			return;
+		} else if (!device.isReadable()) {
+			// Device is write-only
+			push(DEVICE_WRITE_ONLY);
+			return;
+		}
+
+		device.read(addr);
+		m_core.scheduler.startedIO(m_currProcess, SYSCALL_READ);
+		m_currProcess.block(m_CPU, deviceInfo, SYSCALL_READ, addr);
+		scheduleNewProcess();
+	}
 
 	/**
 	 * syscallWrite
@@ -851,40 +1409,40 @@ public class SOS implements CPU.TrapHandler {
 		int addr = pop();
 		int devId = pop();
 
-		for (DeviceInfo deviceInfo : m_devices) {
-			if (deviceInfo.getId() == devId) {
-				Device device = deviceInfo.getDevice();
-				// If device is unavailable, move process to Ready and schedule
-				// a new one
-				if (!device.isAvailable()) {
-					int pc = m_CPU.getPC();
-					m_CPU.setPC(pc - CPU.INSTRSIZE);
-					push(devId);
-					push(addr);
-					push(value);
-					push(SYSCALL_WRITE);
-					scheduleNewProcess();
-					return;
-				}
+		DeviceInfo deviceInfo = m_deviceIds.get(devId);
+		if (deviceInfo == null) {
+			// The device doesn't exist
+			push(DEVICE_NOT_FOUND);
+			return;
+		}
 
-				if (!deviceInfo.containsProcess(m_currProcess)) {
-					// The process has not opened this device
-					push(DEVICE_NOT_OPEN);
-					return;
-				} else if (!device.isWriteable()) {
-					// Device is read-only
-					push(DEVICE_READ_ONLY);
-					return;
-				}
-				device.write(addr, value);
-				m_currProcess.increasePriority(WRITE_PRIORITY);
-				m_currProcess.block(m_CPU, device, SYSCALL_WRITE, addr);
-				scheduleNewProcess();
-				return;
-			}
+		Device device = deviceInfo.getDevice();
+		// If device is unavailable, move process to Ready and schedule
+		// a new one
+		if (!device.isAvailable()) {
+			int pc = m_CPU.getPC();
+			m_CPU.setPC(pc - CPU.INSTRSIZE);
+			push(devId);
+			push(addr);
+			push(value);
+			push(SYSCALL_WRITE);
+			scheduleNewProcess();
+			return;
+		}
+
+		if (!deviceInfo.containsProcess(m_currProcess)) {
+			// The process has not opened this device
+			push(DEVICE_NOT_OPEN);
+			return;
+		} else if (!device.isWriteable()) {
+			// Device is read-only
+			push(DEVICE_READ_ONLY);
+			return;
 		}
-		// If we're here, the device doesn't exist
-		push(DEVICE_NOT_FOUND);
+		device.write(addr, value);
+		m_core.scheduler.startedIO(m_currProcess, SYSCALL_WRITE);
+		m_currProcess.block(m_CPU, deviceInfo, SYSCALL_WRITE, addr);
+		scheduleNewProcess();
 	}
 
 	/**
@@ -922,8 +1480,7 @@ public class SOS implements CPU.TrapHandler {
 		}
 
 		// Select a random program from the candidates list
-		Random rand = new Random();
-		int pn = rand.nextInt(m_programs.size());
+		int pn = m_random.nextInt(m_programs.size());
 		Program prog = cands.get(pn);
 
 		// Determine the address space size using the default if available.
@@ -948,6 +1505,30 @@ public class SOS implements CPU.TrapHandler {
 		scheduleNewProcess();
 	}// syscallYield
 
+	/**
+	 * syscallNice
+	 * 
+	 * Pops a nice value off the stack and gives it to the current process.
+	 * The value is limited to NICE_MIN..NICE_MAX. Only the fair-share
+	 * scheduler uses it.
+	 */
+	private void syscallNice() {
+		m_currProcess.setNice(pop());
+		push(SUCCESS);
+	}// syscallNice
+
+	/**
+	 * syscallQuantum
+	 * 
+	 * Pops a time slice (in ticks) off the stack and gives it to the current
+	 * process. 0 gives it back the default. The time slice only matters when
+	 * the CPU is tickless.
+	 */
+	private void syscallQuantum() {
+		m_currProcess.quantum = Math.max(0, pop());
+		push(SUCCESS);
+	}// syscallQuantum
+
 	/*
 	 * ======================================================================
 	 * Memory Block Management Methods
@@ -957,12 +1538,12 @@ public class SOS implements CPU.TrapHandler {
 	/**
 	 * printMemAlloc *DEBUGGING*
 	 * 
-	 * outputs the contents of m_freeList and m_processes to the console and
+	 * outputs the free memory and m_processes to the console and
 	 * performs a fragmentation analysis. It also prints the value in RAM at the
 	 * BASE and LIMIT registers. This is useful for tracking down errors related
 	 * to moving process in RAM.
 	 * 
-	 * SIDE EFFECT: The contents of m_freeList and m_processes are sorted.
+	 * SIDE EFFECT: The contents of m_processes are sorted.
 	 * 
 	 */
 	private void printMemAlloc() {
@@ -974,14 +1555,24 @@ public class SOS implements CPU.TrapHandler {
 		System.out
 		        .println("\n----------========== Memory Allocation Table ==========----------");
 
+		// Get the free blocks from the allocator (paged memory has none since
+		// every process has an address space of its own)
+		Vector<MemBlock> freeList = new Vector<MemBlock>();
+		if (m_allocator != null) {
+			for (Map.Entry<Integer, Integer> e : m_allocator.getFreeBlocks()
+			        .entrySet()) {
+				freeList.add(new MemBlock(e.getKey(), e.getValue()));
+			}
+		}
+
 		// Sort the lists by address
 		Collections.sort(m_processes);
-		Collections.sort(m_freeList);
+		Collections.sort(freeList);
 
 		// Initialize references to the first entry in each list
 		MemBlock m = null;
 		ProcessControlBlock pi = null;
-		ListIterator<MemBlock> iterFree = m_freeList.listIterator();
+		ListIterator<MemBlock> iterFree = freeList.listIterator();
 		ListIterator<ProcessControlBlock> iterProc = m_processes.listIterator();
 		if (iterFree.hasNext())
 			m = iterFree.next();
@@ -1011,8 +1602,9 @@ public class SOS implements CPU.TrapHandler {
 				System.out.print(" / " + (size / m_MMU.getPageSize())
 				        + " pages)");
 				System.out.print(" @BASE="
-				        + m_MMU.read(pi.getRegisterValue(CPU.BASE)) + " @SP="
-				        + m_MMU.read(pi.getRegisterValue(CPU.SP)));
+				        + readProcessWord(pi, pi.getRegisterValue(CPU.BASE))
+				        + " @SP="
+				        + readProcessWord(pi, pi.getRegisterValue(CPU.SP)));
 				System.out.println();
 				if (iterProc.hasNext()) {
 					pi = iterProc.next();
@@ -1060,6 +1652,10 @@ public class SOS implements CPU.TrapHandler {
 			m_RAM.write(i, i);
 		}
 
+		// The page table was written directly so the MMU's cached
+		// translations are stale
+		m_MMU.flushTLB();
+
 	}// initPageTable
 
 	/**
@@ -1101,76 +1697,210 @@ public class SOS implements CPU.TrapHandler {
 	 * 
 	 */
 	public void registerDevice(Device dev, int id) {
-		m_devices.add(new DeviceInfo(dev, id));
+		DeviceInfo devInfo = new DeviceInfo(dev, id);
+		m_devices.add(devInfo);
+		m_deviceIds.put(id, devInfo);
 	}// registerDevice
 
 	/**
 	 * allocBlock
 	 * 
+	 * allocates memory with the policy chosen when the OS was created and
+	 * keeps the fragmentation statistics. If no free block is big enough but
+	 * there is enough free memory in total, the processes are compacted to
+	 * make room (unless the allocator doesn't allow them to move).
+	 * 
 	 * @param size
 	 *            the requested allocation size
 	 * @return the starting address of our allocated block OR return -1 if we
 	 *         couldn't allocate memory.
 	 */
 	private int allocBlock(int size) {
+		recordFragmentation();
+
+		int addr = m_allocator.alloc(size);
+		if ((addr == -1) && canRelocate()
+		        && (m_allocator.getFreeSize() >= size)) {
+			// Clean up our memory subsystem
+			mergeFraggedProcesses();
+			addr = m_allocator.alloc(size);
+		}
+		if (addr == -1) {
+			m_failedAllocs++;
+			return -1;
+		}
 
-		int totalFree = 0;
+		m_requestedMem += size;
+		m_maxIntFrag = Math.max(m_maxIntFrag, m_allocator.getAllocatedSize()
+		        - m_requestedMem);
+		return addr;
+	}// allocBlock
 
-		for (MemBlock mb : m_freeList) {
+	/**
+	 * allocAddressSpace
+	 * 
+	 * creates an address space for a process when memory is paged. The
+	 * address space starts at 0 and is mapped by a page table of its own,
+	 * with an entry for each page, and each page is given any free frame. The
+	 * frames don't have to be next to each other, so this only fails if there
+	 * aren't enough of them left (or, rarely, no room for the page table).
+	 * 
+	 * @param size
+	 *            the size of the address space (a whole number of pages)
+	 * @return the physical address of the page table, which is the process's
+	 *         PTBR -OR- -1 if we couldn't allocate memory.
+	 */
+	private int allocAddressSpace(int size) {
+		recordFragmentation();
 
-			totalFree += mb.m_size;
+		int pages = size / m_MMU.getPageSize();
+		int pageTable = -1;
+		if ((size <= m_MMU.getSize()) && (m_frames.getNumFree() >= pages)) {
+			pageTable = m_pageTables.alloc(pages);
+		}
+		if (pageTable == -1) {
+			m_failedAllocs++;
+			return -1;
+		}
 
-			// We found a free block that's juuuuuust right.
-			if (mb.m_size == size) {
-				m_freeList.remove(mb);
-				return mb.getAddr();
-			} else if (mb.m_size > size) {
-				// We found a free block that's Good Enough(tm).
-				int returnAddress = mb.getAddr();
+		for (int page = 0; page < pages; page++) {
+			m_RAM.write(pageTable + page, m_frames.alloc());
+		}
 
-				// Shift our free block rather than removing
-				// and allocating a new one.
-				mb.m_size -= size;
-				mb.m_addr += size;
+		m_requestedMem += size;
+		return pageTable;
+	}// allocAddressSpace
 
-				return returnAddress;
-			}
-		}// for-each
+	/**
+	 * freeAddressSpace
+	 * 
+	 * gives back the frames of an address space created by
+	 * {@link #allocAddressSpace}, including its page table
+	 * 
+	 * @param pageTable
+	 *            the physical address of the page table
+	 * @param size
+	 *            the size of the address space
+	 */
+	private void freeAddressSpace(int pageTable, int size) {
+		int pages = size / m_MMU.getPageSize();
+		for (int page = 0; page < pages; page++) {
+			m_frames.free(m_RAM.read(pageTable + page));
+		}
+		m_pageTables.free(pageTable, pages);
 
-		// We ran out of memory :(
-		if (totalFree < size) {
-			return -1;
+		// The next process whose page table goes here mustn't find these
+		// translations in the TLBs
+		for (Core core : m_cores) {
+			core.mmu.invalidateTable(pageTable);
 		}
+	}// freeAddressSpace
 
-		// Clean up our memory subsystem
-		mergeFraggedProcesses();
+	/**
+	 * canRelocate
+	 * 
+	 * @return true if processes may be moved to compact memory. Paged memory
+	 *         never needs compacting since any free frame will do for any
+	 *         page (and m_allocator is null then).
+	 */
+	private boolean canRelocate() {
+		return m_allocator instanceof RelocatableAllocator;
+	}
 
-		// Keep running until we find a proper memory block.
-		return allocBlock(size);
-	}// allocBlock
+	/**
+	 * readProcessWord
+	 * 
+	 * reads a word from the address space of a process that may not be the
+	 * one the CPU is running
+	 * 
+	 * @param pcb
+	 *            the process
+	 * @param addr
+	 *            the virtual address in the process's address space
+	 * @return the word at that address
+	 */
+	private int readProcessWord(ProcessControlBlock pcb, int addr) {
+		return m_RAM.read(m_MMU.translate(pcb.registers[CPU.PTBR], addr));
+	}
 
 	/**
-	 * mergeFraggedMemory
+	 * writeProcessWord
 	 * 
-	 * This function compares a memory block with its immediate predecessor. If
-	 * the two blocks are next to each other, we merge them; otherwise
-	 * continues.
+	 * writes a word to the address space of a process that may not be the one
+	 * the CPU is running (e.g., one that is blocked)
 	 * 
+	 * @param pcb
+	 *            the process
+	 * @param addr
+	 *            the virtual address in the process's address space
+	 * @param data
+	 *            the word to write
 	 */
-	private void mergeFraggedMemory() {
-		Collections.sort(m_freeList);
-		for (int i = 1; i < m_freeList.size(); i++) {
+	private void writeProcessWord(ProcessControlBlock pcb, int addr, int data) {
+		m_RAM.write(m_MMU.translate(pcb.registers[CPU.PTBR], addr), data);
+	}
 
-			MemBlock previousBlock = m_freeList.elementAt(i - 1);
-			MemBlock currentBlock = m_freeList.elementAt(i);
+	/**
+	 * recordFragmentation
+	 * 
+	 * adds the external fragmentation of free memory right now to the
+	 * statistics
+	 */
+	private void recordFragmentation() {
+		int extFrag = getFragmentation();
+		m_numAllocs++;
+		m_totalExtFrag += extFrag;
+		m_maxExtFrag = Math.max(m_maxExtFrag, extFrag);
+	}// recordFragmentation
 
-			if (previousBlock.m_addr + currentBlock.m_size == currentBlock.m_addr) {
-				previousBlock.m_size += currentBlock.m_size;
-				m_freeList.removeElement(currentBlock);
-				--i;
-			}
+	/**
+	 * getFragmentation
+	 * 
+	 * @return the external fragmentation of free memory: the percentage of
+	 *         it that isn't in the largest free block
+	 */
+	private int getFragmentation() {
+		if (m_frames != null) {
+			return 0;
+		}
+
+		int totalFree = m_allocator.getFreeSize();
+		int largest = m_allocator.getLargestFreeBlock();
+
+		return (totalFree == 0) ? 0
+		        : (int) (100L * (totalFree - largest) / totalFree);
+	}// getFragmentation
+
+	/**
+	 * createAllocator
+	 * 
+	 * creates the allocator for a memory allocation policy
+	 * 
+	 * @param policy
+	 *            one of the ALLOC constants
+	 * @param base
+	 *            the address of the memory to manage
+	 * @param size
+	 *            the number of words to manage
+	 * @param pageSize
+	 *            the page size
+	 */
+	static MemoryAllocator createAllocator(int policy, int base, int size,
+	        int pageSize) {
+		switch (policy) {
+		case ALLOC_BUDDY:
+			// The buddy allocator works in whole pages
+			int aligned = (base + pageSize - 1) / pageSize * pageSize;
+			return new BuddyAllocator(aligned, base + size - aligned, pageSize);
+		case ALLOC_BEST_FIT:
+			return new FreeListAllocator(FreeListAllocator.BEST_FIT, base, size);
+		case ALLOC_NEXT_FIT:
+			return new FreeListAllocator(FreeListAllocator.NEXT_FIT, base, size);
+		default:
+			return new FreeListAllocator(FreeListAllocator.FIRST_FIT, base,
+			        size);
 		}
-	}// mergeFraggedMemory
+	}// createAllocator
 
 	/**
 	 * mergeFraggedProcesses
@@ -1183,6 +1913,12 @@ public class SOS implements CPU.TrapHandler {
 	// in m_CPU.
 	@SuppressWarnings("static-access")
 	private void mergeFraggedProcesses() {
+		long startTime = System.nanoTime();
+		int pagesMoved = 0;
+
+		// Processes running on other cores can't be moved under their feet
+		stopOtherCores();
+
 		Collections.sort(m_processes);
 
 		// This points to the end of our process block,
@@ -1192,21 +1928,154 @@ public class SOS implements CPU.TrapHandler {
 
 			int procSize = pcb.registers[m_CPU.LIM] - pcb.registers[CPU.BASE];
 
+			if (pcb.registers[CPU.BASE] != endProcBlock) {
+				pagesMoved += procSize / m_MMU.getPageSize();
+			}
 			pcb.move(endProcBlock);
 			endProcBlock += procSize;
 		}// for-each
 
-		// All of our processes are in one block of RAM, so clear the existing
-		// free memory vector and fill it with the remaining free RAM.
-		m_freeList.clear();
-		m_freeList.add(new MemBlock(endProcBlock, (m_MMU.getSize() - endProcBlock)));
+		// All of our processes are in one block of RAM, so the remaining RAM
+		// is a single free block.
+		((RelocatableAllocator) m_allocator).reset(endProcBlock);
+
+		resumeOtherCores();
+		recordPause(System.nanoTime() - startTime, pagesMoved);
 	}// mergeFraggedProcesses
 
+	/**
+	 * isCompactionDue
+	 * 
+	 * @return true if memory is fragmented enough for {@link #compactStep}
+	 *         to move processes
+	 */
+	private boolean isCompactionDue() {
+		return (m_compactPages != 0) && canRelocate()
+		        && (getFragmentation() > m_compactThreshold);
+	}// isCompactionDue
+
+	/**
+	 * compactStep
+	 * 
+	 * does part of the work of compacting memory if it is fragmented enough
+	 * (see {@link #setCompaction}). The process just above the lowest free
+	 * block is slid down into it, over and over, until the page limit is
+	 * reached.
+	 */
+	private void compactStep() {
+		if (!isCompactionDue()) {
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		int pagesMoved = 0;
+
+		// Processes running on other cores can't be moved under their feet
+		stopOtherCores();
+
+		while (pagesMoved < m_compactPages) {
+			SortedMap<Integer, Integer> freeBlocks = m_allocator.getFreeBlocks();
+			if (freeBlocks.isEmpty()) {
+				break;
+			}
+			int gap = freeBlocks.firstKey();
+			int gapSize = freeBlocks.get(gap);
+
+			// If nothing is above the lowest free block, memory is compacted
+			ProcessControlBlock pcb = null;
+			for (ProcessControlBlock p : m_processes) {
+				if (p.registers[CPU.BASE] == gap + gapSize) {
+					pcb = p;
+					break;
+				}
+			}
+			if (pcb == null) {
+				break;
+			}
+
+			// Move a process bigger than the limit only on its own
+			int procSize = pcb.registers[CPU.LIM] - pcb.registers[CPU.BASE];
+			int pages = procSize / m_MMU.getPageSize();
+			if ((pagesMoved > 0) && (pagesMoved + pages > m_compactPages)) {
+				break;
+			}
+
+			m_allocator.free(gap + gapSize, procSize);
+			((RelocatableAllocator) m_allocator).reserve(gap, procSize);
+			pcb.move(gap);
+			pagesMoved += pages;
+		}// while
+
+		resumeOtherCores();
+		if (pagesMoved > 0) {
+			recordPause(System.nanoTime() - startTime, pagesMoved);
+		}
+	}// compactStep
+
+	/**
+	 * recordPause
+	 * 
+	 * adds a compaction pause to the statistics
+	 * 
+	 * @param nanos
+	 *            how long the pause was
+	 * @param pages
+	 *            the number of pages moved
+	 */
+	private void recordPause(long nanos, int pages) {
+		m_pauseHistogram[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))]++;
+		m_maxPause = Math.max(m_maxPause, nanos);
+		m_pagesMoved += pages;
+		m_maxPagesMoved = Math.max(m_maxPagesMoved, pages);
+	}// recordPause
+
+	/**
+	 * printPauseHistogram
+	 * 
+	 * prints the compaction pause statistics, with a line for each power of
+	 * two range of pause lengths
+	 */
+	private void printPauseHistogram() {
+		long pauses = 0;
+		for (long count : m_pauseHistogram) {
+			pauses += count;
+		}
+		if (pauses == 0) {
+			return;
+		}
+
+		debugPrintln("    Compaction: " + pauses + " pauses, " + m_pagesMoved
+		        + " pages moved (at most " + m_maxPagesMoved
+		        + " at once), longest pause " + formatNanos(m_maxPause));
+		for (int i = 0; i < m_pauseHistogram.length; i++) {
+			if (m_pauseHistogram[i] > 0) {
+				debugPrintln("        " + formatNanos(1L << i) + " - "
+				        + formatNanos(1L << (i + 1)) + ": "
+				        + m_pauseHistogram[i]);
+			}
+		}
+	}// printPauseHistogram
+
+	/**
+	 * formatNanos
+	 * 
+	 * @return a duration in ns, us or ms, whichever is shortest
+	 */
+	private static String formatNanos(long nanos) {
+		if (nanos < 1000) {
+			return nanos + "ns";
+		} else if (nanos < 1000000) {
+			return (nanos / 1000) + "us";
+		}
+		return (nanos / 1000000) + "ms";
+	}// formatNanos
+
 	/**
 	 * freeCurrProcessMemBlock
 	 * 
-	 * Frees the current processes memory block and then merges any contiguous
-	 * free memory blocks.
+	 * Frees the current processes memory block (the allocator merges any
+	 * contiguous free memory blocks) and then compacts the processes if the
+	 * allocator allows them to move and compaction isn't incremental.
 	 * 
 	 */
 	// This suppress statement gets rid of those annoying
@@ -1217,16 +2086,401 @@ public class SOS implements CPU.TrapHandler {
 
 		int currBase = m_currProcess.registers[m_CPU.BASE];
 		int currLim = m_currProcess.registers[m_CPU.LIM];
+		m_requestedMem -= currLim - currBase;
+
+		// A process with an address space of its own just gives back its
+		// frames
+		if (m_frames != null) {
+			freeAddressSpace(m_currProcess.registers[CPU.PTBR], currLim
+			        - currBase);
+			return;
+		}
 
-		// Add a free memory block at the current BASE address and
-		// make it the size of our current process.
-		m_freeList.add(new MemBlock(currBase, currLim - currBase));
+		// Free a memory block at the current BASE address the size of our
+		// current process.
+		m_allocator.free(currBase, currLim - currBase);
 
-		mergeFraggedProcesses();
-		mergeFraggedMemory();
+		// Unless memory is compacted a little at a time on each clock
+		// interrupt
+		if (canRelocate() && (m_compactPages == 0)) {
+			mergeFraggedProcesses();
+		}
 
 	}// freeCurrProcessMemBlock
 
+	/*
+	 * ======================================================================
+	 * Multi-core Methods
+	 * ----------------------------------------------------------------------
+	 */
+
+	/**
+	 * kernelWait
+	 * 
+	 * releases the kernel lock until another core calls notifyAll and then
+	 * switches the OS's view of the machine back to the current core
+	 */
+	private void kernelWait() {
+		Core core = m_core;
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			// the caller checks its condition again
+		}
+		core.enter();
+	}// kernelWait
+
+	/**
+	 * stopOtherCores
+	 * 
+	 * waits until no other core is running user code. Until
+	 * {@link #resumeOtherCores} is called the other cores' processes can be
+	 * moved (their registers are saved and restored through the core they
+	 * run on) and cores that finish a trap wait in the kernel instead of
+	 * going back to user code.
+	 */
+	private void stopOtherCores() {
+		m_safepoints++;
+		while (m_coresInUser.get() > 0) {
+			kernelWait();
+		}
+	}// stopOtherCores
+
+	/**
+	 * resumeOtherCores
+	 * 
+	 * lets the cores stopped by {@link #stopOtherCores} run again
+	 */
+	private void resumeOtherCores() {
+		m_safepoints--;
+		if (m_safepoints == 0) {
+			notifyAll();
+		}
+	}// resumeOtherCores
+
+	/**
+	 * invalidatePage
+	 * 
+	 * removes any cached translation for the given page from every core's
+	 * TLB. Call this after changing the page's page table entry.
+	 * 
+	 * @param pageNum
+	 *            the page whose entry was changed
+	 */
+	private void invalidatePage(int pageNum) {
+		for (Core core : m_cores) {
+			core.mmu.invalidatePage(pageNum);
+		}
+	}// invalidatePage
+
+	/*
+	 * ======================================================================
+	 * Snapshot Methods
+	 * ----------------------------------------------------------------------
+	 */
+
+	/**
+	 * scheduleSnapshot
+	 * 
+	 * arranges for a snapshot to be saved during a later clock interrupt. If
+	 * a process is waiting for I/O at that point the snapshot is put off until
+	 * the next clock interrupt where none is.
+	 * 
+	 * @param name
+	 *            the name of the snapshot (see {@link #saveSnapshot})
+	 * @param clock
+	 *            the number of clock interrupts to wait for
+	 */
+	public void scheduleSnapshot(String name, int clock) {
+		m_snapshotName = name;
+		m_snapshotClock = clock;
+	}// scheduleSnapshot
+
+	/**
+	 * takeScheduledSnapshot
+	 * 
+	 * saves the snapshot requested by {@link #scheduleSnapshot} unless there
+	 * is outstanding I/O
+	 */
+	private void takeScheduledSnapshot() {
+		if ((m_currProcess == null) || (m_numBlocked > 0)) {
+			return;
+		}
+
+		try {
+			saveSnapshot(m_snapshotName);
+			debugPrintln("Saved snapshot " + m_snapshotName + " at tick "
+			        + m_CPU.getTicks());
+		} catch (IOException e) {
+			System.out.println("ERROR: could not save snapshot "
+			        + m_snapshotName + ": " + e);
+		}
+		m_snapshotName = null;
+	}// takeScheduledSnapshot
+
+	/**
+	 * saveSnapshot
+	 * 
+	 * saves the state of the whole simulated machine so that it can be
+	 * resumed later with {@link #restoreSnapshot}. The RAM is written to
+	 * <name>.ram and the CPU and OS state (tick count, process table, free
+	 * list and open devices) to <name>.sos. The CPU registers are saved as the
+	 * current process' registers, so this must be called from a trap
+	 * handler, where the PC is the instruction that was just executed.
+	 * 
+	 * Device I/O that is in progress can't be saved, so this fails if any
+	 * process is blocked.
+	 * 
+	 * @param name
+	 *            the name of the snapshot (a path without a suffix)
+	 * @throws IOException
+	 *             if a process is blocked or the files can't be written
+	 */
+	public void saveSnapshot(String name) throws IOException {
+		checkSnapshotAllocator();
+		for (ProcessControlBlock pcb : m_processes) {
+			if (pcb.isBlocked()) {
+				throw new IOException("process " + pcb.getProcessId()
+				        + " is waiting for I/O");
+			}
+		}
+
+		m_RAM.saveImage(name + IMAGE_SUFFIX);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		        new FileOutputStream(name + STATE_SUFFIX)));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(m_RAM.getSize());
+			out.writeInt(m_MMU.getPageSize());
+			out.writeInt(m_CPU.getTicks());
+			out.writeInt(m_nextProcessID);
+
+			// The page table is part of the RAM image but a new SOS
+			// overwrites it, so keep a copy with the state
+			out.writeInt(m_sizeOfPageTable);
+			for (int i = 0; i < m_sizeOfPageTable; i++) {
+				out.writeInt(m_RAM.read(i));
+			}
+
+			// Process table. The running process' registers are on the CPU.
+			out.writeInt((m_currProcess == null) ? -1 : m_currProcess
+			        .getProcessId());
+			out.writeInt(m_processes.size());
+			for (ProcessControlBlock pcb : m_processes) {
+				int[] regs = (pcb == m_currProcess) ? m_CPU.getRegisters()
+				        : pcb.registers;
+				out.writeInt(pcb.processId);
+				for (int i = 0; i < CPU.NUMREG; i++) {
+					out.writeInt(regs[i]);
+				}
+				out.writeInt(pcb.getPriority());
+				out.writeInt(pcb.lastReadyTime);
+				out.writeInt(pcb.numReady);
+				out.writeInt(pcb.maxStarve);
+				out.writeDouble(pcb.avgStarve);
+
+				// Scheduling state (MLFQ and CFS) and time slice
+				out.writeInt(pcb.level);
+				out.writeInt(pcb.ticksUsed);
+				out.writeInt(pcb.boosts);
+				out.writeInt(pcb.quantum);
+				out.writeInt(pcb.nice);
+				out.writeLong(pcb.vruntime);
+			}// for
+
+			// The scheduler's own state, which the processes' refers to
+			out.writeInt(m_schedulerType);
+			m_core.scheduler.saveState(out, m_currProcess);
+
+			// Free memory
+			SortedMap<Integer, Integer> freeBlocks = m_allocator.getFreeBlocks();
+			out.writeInt(freeBlocks.size());
+			for (Map.Entry<Integer, Integer> e : freeBlocks.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeInt(e.getValue());
+			}
+
+			// Which processes have which devices open
+			out.writeInt(m_devices.size());
+			for (DeviceInfo di : m_devices) {
+				out.writeInt(di.getId());
+				out.writeInt(di.procs.size());
+				for (ProcessControlBlock pcb : di.procs) {
+					out.writeInt(pcb.getProcessId());
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}// saveSnapshot
+
+	/**
+	 * restoreSnapshot
+	 * 
+	 * resumes a machine saved by {@link #saveSnapshot}. This is used instead
+	 * of {@link #createProcess} to get a simulation going: the RAM must
+	 * already hold the snapshot's image (typically by mapping <name>.ram, see
+	 * {@link RAM#RAM(int, int, int, String, boolean)}), the devices must have
+	 * been registered with the same ids and the CPU must not have started
+	 * running yet. Programs for the Exec system call are not part of the
+	 * snapshot and must be added again with {@link #addProgram}.
+	 * 
+	 * @param name
+	 *            the name of the snapshot (a path without a suffix)
+	 * @throws IOException
+	 *             if the state file can't be read or doesn't match this
+	 *             machine
+	 */
+	public void restoreSnapshot(String name) throws IOException {
+		checkSnapshotAllocator();
+		int[] pageTable = null;
+		int ticks = 0;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+		        new FileInputStream(name + STATE_SUFFIX)));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(name + STATE_SUFFIX
+				        + " is not an SOS snapshot");
+			}
+			if ((in.readInt() != m_RAM.getSize())
+			        || (in.readInt() != m_MMU.getPageSize())) {
+				throw new IOException("snapshot " + name
+				        + " was taken with a different RAM or page size");
+			}
+			ticks = in.readInt();
+			m_nextProcessID = in.readInt();
+
+			pageTable = new int[in.readInt()];
+			for (int i = 0; i < pageTable.length; i++) {
+				pageTable[i] = in.readInt();
+			}
+
+			// Process table
+			int currPid = in.readInt();
+			m_processes.clear();
+			m_core.scheduler.clearReady();
+			m_currProcess = null;
+			int count = in.readInt();
+			Vector<ProcessControlBlock> readyProcs = new Vector<ProcessControlBlock>(
+			        count);
+			for (int i = 0; i < count; i++) {
+				ProcessControlBlock pcb = new ProcessControlBlock(in.readInt());
+				for (int r = 0; r < CPU.NUMREG; r++) {
+					pcb.registers[r] = in.readInt();
+				}
+				pcb.priority = in.readInt();
+				pcb.lastReadyTime = in.readInt();
+				pcb.numReady = in.readInt();
+				pcb.maxStarve = in.readInt();
+				pcb.avgStarve = in.readDouble();
+				pcb.level = in.readInt();
+				pcb.ticksUsed = in.readInt();
+				pcb.boosts = in.readInt();
+				pcb.quantum = in.readInt();
+				pcb.nice = in.readInt();
+				pcb.vruntime = in.readLong();
+				m_processes.add(pcb);
+				pcb.core = m_core;
+				if (pcb.getProcessId() == currPid) {
+					m_currProcess = pcb;
+				} else {
+					readyProcs.add(pcb);
+				}
+			}// for
+			if (m_currProcess == null) {
+				throw new IOException("snapshot " + name
+				        + " has no running process");
+			}
+
+			// The scheduler has to be put back before the ready processes
+			// are queued on it
+			int schedulerType = in.readInt();
+			if (schedulerType != m_schedulerType) {
+				throw new IOException("snapshot " + name + " was taken with the "
+				        + SCHED_NAMES[schedulerType] + " scheduler");
+			}
+			m_core.scheduler.restoreState(in, m_currProcess);
+			for (ProcessControlBlock pcb : readyProcs) {
+				m_core.scheduler.addReady(pcb);
+			}
+
+			// Free memory
+			((RelocatableAllocator) m_allocator).reset(m_MMU.getSize());
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				m_allocator.free(in.readInt(), in.readInt());
+			}
+
+			// Open devices
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int id = in.readInt();
+				DeviceInfo devInfo = null;
+				for (DeviceInfo di : m_devices) {
+					if (di.getId() == id) {
+						devInfo = di;
+					}
+				}
+				if (devInfo == null) {
+					throw new IOException("snapshot " + name + " uses device "
+					        + id + " which is not registered");
+				}
+				devInfo.procs.clear();
+				int numProcs = in.readInt();
+				for (int j = 0; j < numProcs; j++) {
+					int pid = in.readInt();
+					for (ProcessControlBlock pcb : m_processes) {
+						if (pcb.getProcessId() == pid) {
+							devInfo.addProcess(pcb);
+						}
+					}
+				}// for
+			}// for
+		} finally {
+			in.close();
+		}
+
+		// Put back the page table and drop anything cached from the old one
+		m_RAM.write(0, pageTable, 0, pageTable.length);
+		m_MMU.flushTLB();
+		InstructionCache icache = m_MMU.getInstructionCache();
+		if (icache != null) {
+			icache.flush();
+		}
+
+		// Load the running process without charging a context switch. Its
+		// PC is the instruction that had just executed when the snapshot was
+		// taken, but the CPU starts by fetching from the PC.
+		m_CPU.setTicks(ticks);
+		System.arraycopy(m_currProcess.registers, 0, m_CPU.getRegisters(), 0,
+		        CPU.NUMREG);
+		m_CPU.setPC(m_CPU.getPC() + CPU.INSTRSIZE);
+
+		m_core.sliceProc = null;
+		startSlice();
+
+		debugPrintln("Restored snapshot " + name + " at tick " + ticks);
+		printProcessTable();
+	}// restoreSnapshot
+
+	/**
+	 * checkSnapshotAllocator
+	 * 
+	 * snapshots only record the free memory, so the allocator must be one
+	 * that can be rebuilt from it
+	 * 
+	 * @throws IOException
+	 *             if the allocator isn't relocatable
+	 */
+	private void checkSnapshotAllocator() throws IOException {
+		if (!canRelocate()) {
+			throw new IOException("snapshots can't be used with the "
+			        + ALLOC_NAMES[m_allocPolicy] + " allocator");
+		}
+	}// checkSnapshotAllocator
+
 	// ======================================================================
 	// Inner Classes
 	// ----------------------------------------------------------------------
@@ -1245,14 +2499,17 @@ public class SOS implements CPU.TrapHandler {
 
 		/**
 		 * These are the process' current registers. If the process is in the
-		 * "running" state then these are out of date
+		 * "running" state then these are out of date. The array is allocated
+		 * once and copied into on every save so that context switches don't
+		 * create garbage.
 		 */
-		private int[] registers = null;
+		private int[] registers = new int[CPU.NUMREG];
 
 		/**
 		 * If this process is blocked a reference to the Device is stored here
 		 */
 		private Device blockedForDevice = null;
+		private DeviceInfo blockedForDeviceInfo = null;
 
 		/**
 		 * If this process is blocked a reference to the type of I/O operation
@@ -1300,26 +2557,62 @@ public class SOS implements CPU.TrapHandler {
 		private int priority = 0;
 
 		/**
-		 * constructor
-		 * 
-		 * @param pid
-		 *            a process id for the process. The caller is responsible
-		 *            for making sure it is unique.
+		 * While the process is on a ready queue: the queue's aging total when
+		 * it was added (see {@link PriorityScheduler})
 		 */
-		public ProcessControlBlock(int pid) {
-			this.processId = pid;
-		}
+		private boolean queued = false;
+		private long agedFrom = 0;
 
 		/**
-		 * @return the current process' id
+		 * The process' multilevel feedback queue (0 is the top), the clock
+		 * interrupts it has run for at that level, whether its quantum has
+		 * run out and the number of boosts it has had (see
+		 * {@link MLFQScheduler})
 		 */
-		public int getProcessId() {
-			return this.processId;
-		}
+		private int level = 0;
+		private int ticksUsed = 0;
+		private boolean expired = false;
+		private int boosts = 0;
 
 		/**
-		 * save
-		 * 
+		 * The process' own time slice in ticks (0 to use the default)
+		 */
+		private int quantum = 0;
+
+		/**
+		 * The process' nice value and the CPU time it has used, in ticks
+		 * scaled by the weight of its nice value (see {@link CFSScheduler})
+		 */
+		private int nice = 0;
+		private long vruntime = 0;
+
+		/**
+		 * The core whose run queue this process is on. Only that core runs
+		 * it.
+		 */
+		private Core core = null;
+
+		/**
+		 * constructor
+		 * 
+		 * @param pid
+		 *            a process id for the process. The caller is responsible
+		 *            for making sure it is unique.
+		 */
+		public ProcessControlBlock(int pid) {
+			this.processId = pid;
+		}
+
+		/**
+		 * @return the current process' id
+		 */
+		public int getProcessId() {
+			return this.processId;
+		}
+
+		/**
+		 * save
+		 * 
 		 * saves the current CPU registers into this.registers
 		 * 
 		 * @param cpu
@@ -1327,15 +2620,12 @@ public class SOS implements CPU.TrapHandler {
 		 */
 		public void save(CPU cpu) {
 			// A context switch is expensive. We simluate that here by
-			// adding ticks to m_CPU
-			m_CPU.addTicks(SAVE_LOAD_TIME);
+			// adding ticks to the CPU
+			cpu.addTicks(SAVE_LOAD_TIME);
 
 			// Save the registers
-			int[] regs = cpu.getRegisters();
-			this.registers = new int[CPU.NUMREG];
-			for (int i = 0; i < CPU.NUMREG; i++) {
-				this.registers[i] = regs[i];
-			}
+			System.arraycopy(cpu.getRegisters(), 0, this.registers, 0,
+			        CPU.NUMREG);
 
 			// Assuming this method is being called because the process is
 			// moving
@@ -1344,7 +2634,7 @@ public class SOS implements CPU.TrapHandler {
 			// being called for a Block, we'll adjust lastReadyTime in the
 			// unblock method.
 			numReady++;
-			lastReadyTime = m_CPU.getTicks();
+			lastReadyTime = cpu.getTicks();
 
 		}// save
 
@@ -1359,17 +2649,15 @@ public class SOS implements CPU.TrapHandler {
 		 */
 		public void restore(CPU cpu) {
 			// A context switch is expensive. We simluate that here by
-			// adding ticks to m_CPU
-			m_CPU.addTicks(SAVE_LOAD_TIME);
+			// adding ticks to the CPU
+			cpu.addTicks(SAVE_LOAD_TIME);
 
 			// Restore the register values
-			int[] regs = cpu.getRegisters();
-			for (int i = 0; i < CPU.NUMREG; i++) {
-				regs[i] = this.registers[i];
-			}
+			System.arraycopy(this.registers, 0, cpu.getRegisters(), 0,
+			        CPU.NUMREG);
 
 			// Record the starve time statistics
-			int starveTime = m_CPU.getTicks() - lastReadyTime;
+			int starveTime = cpu.getTicks() - lastReadyTime;
 			if (starveTime > maxStarve) {
 				maxStarve = starveTime;
 			}
@@ -1385,21 +2673,27 @@ public class SOS implements CPU.TrapHandler {
 		 * process' registers. The caller is responsible for calling
 		 * {@link CPU#scheduleNewProcess} after calling this method.
 		 * 
+		 * The process is put on the device's wait queue for the operation (and
+		 * address) so the interrupt that ends the wait can find it directly.
+		 * 
 		 * @param cpu
 		 *            the CPU that the process is running on
-		 * @param dev
-		 *            the Device that the process must wait for
+		 * @param devInfo
+		 *            the device that the process must wait for
 		 * @param op
 		 *            the operation that the process is performing on the
 		 *            device. Use the SYSCALL constants for this value.
 		 * @param addr
 		 *            the address the process is reading from. If the operation
-		 *            is a Write or Open then this value can be anything
+		 *            is an Open then this value can be anything
 		 */
-		public void block(CPU cpu, Device dev, int op, int addr) {
-			blockedForDevice = dev;
+		public void block(CPU cpu, DeviceInfo devInfo, int op, int addr) {
+			blockedForDevice = devInfo.getDevice();
+			blockedForDeviceInfo = devInfo;
 			blockedForOperation = op;
 			blockedForAddr = addr;
+			devInfo.addWaiter(this, op, addr);
+			m_numBlocked++;
 
 		}// block
 
@@ -1413,6 +2707,8 @@ public class SOS implements CPU.TrapHandler {
 		public void unblock() {
 			// Reset the info about the block
 			blockedForDevice = null;
+			blockedForDeviceInfo = null;
+			m_numBlocked--;
 			blockedForOperation = -1;
 			blockedForAddr = -1;
 
@@ -1421,6 +2717,17 @@ public class SOS implements CPU.TrapHandler {
 			// from the Blocked state to the Ready state, record the current
 			// system time for calculating starve times for this process.
 			lastReadyTime = m_CPU.getTicks();
+			synchronized (core) {
+				core.scheduler.addReady(this);
+			}
+			wakeIdleCores();
+
+			// A tickless CPU must trap so the scheduler can decide whether
+			// this process should preempt the running one
+			if ((core == m_core) && (m_currProcess != null)
+			        && m_CPU.isTickless()) {
+				m_CPU.setTimer(1);
+			}
 
 		}// unblock
 
@@ -1433,36 +2740,6 @@ public class SOS implements CPU.TrapHandler {
 			return (blockedForDevice != null);
 		}// isBlocked
 
-		/**
-		 * isBlockedForDevice
-		 * 
-		 * Checks to see if the process is blocked for the given device,
-		 * operation and address. If the operation is not an open, the given
-		 * address is ignored.
-		 * 
-		 * @param dev
-		 *            check to see if the process is waiting for this device
-		 * @param op
-		 *            check to see if the process is waiting for this operation
-		 * @param addr
-		 *            check to see if the process is reading from this address
-		 * 
-		 * @return true if the process is blocked by the given parameters
-		 */
-		public boolean isBlockedForDevice(Device dev, int op, int addr) {
-			if ((blockedForDevice == dev) && (blockedForOperation == op)) {
-				if (op == SYSCALL_OPEN) {
-					return true;
-				}
-
-				if (addr == blockedForAddr) {
-					return true;
-				}
-			}// if
-
-			return false;
-		}// isBlockedForDevice
-
 		/**
 		 * compareTo
 		 * 
@@ -1523,9 +2800,13 @@ public class SOS implements CPU.TrapHandler {
 		}
 
 		/**
-		 * @return Process's current priority
+		 * @return Process's current priority (including any aging it has
+		 *         received while waiting on a ready queue)
 		 */
 		public int getPriority() {
+			if (queued) {
+				return core.scheduler.getPriority(this);
+			}
 			return priority;
 		}
 
@@ -1539,6 +2820,23 @@ public class SOS implements CPU.TrapHandler {
 			priority += amount;
 		}
 
+		/**
+		 * @return the process' nice value
+		 */
+		public int getNice() {
+			return nice;
+		}
+
+		/**
+		 * Sets the process' nice value (higher values get less of the CPU).
+		 * 
+		 * @param value
+		 *            the new nice value. It is limited to NICE_MIN..NICE_MAX.
+		 */
+		public void setNice(int value) {
+			nice = Math.max(NICE_MIN, Math.min(NICE_MAX, value));
+		}
+
 		/**
 		 * overallAvgStarve
 		 * 
@@ -1579,26 +2877,18 @@ public class SOS implements CPU.TrapHandler {
 				} else {
 					result = result + "WRITE @" + blockedForAddr;
 				}
-				for (DeviceInfo di : m_devices) {
-					if (di.getDevice() == blockedForDevice) {
-						result = result + " on device #" + di.getId();
-						break;
-					}
-				}
+				result = result + " on device #" + blockedForDeviceInfo.getId();
 				result = result + ": ";
-			} else if (this == m_currProcess) {
-				result = result + "is RUNNING: ";
+			} else if ((core != null) && (core.getProcess() == this)) {
+				result = result + "is RUNNING"
+				        + ((m_cores.size() > 1) ? " on core " + core.getId() : "")
+				        + ": ";
 			} else {
 				result = result + "is READY: ";
 			}
 
 			// Print the register values stored in this object. These don't
 			// necessarily match what's on the CPU for a Running process.
-			if (registers == null) {
-				result = result + "<never saved>";
-				return result;
-			}
-
 			for (int i = 0; i < CPU.NUMGENREG; i++) {
 				result = result + ("r" + i + "=" + registers[i] + " ");
 			}// for
@@ -1606,6 +2896,7 @@ public class SOS implements CPU.TrapHandler {
 			result = result + ("SP=" + registers[CPU.SP] + " ");
 			result = result + ("BASE=" + registers[CPU.BASE] + " ");
 			result = result + ("LIM=" + registers[CPU.LIM] + " ");
+			result = result + ("PTBR=" + registers[CPU.PTBR] + " ");
 
 			// Print the starve time statistics for this process
 			result = result + "\n\t\t\t";
@@ -1629,10 +2920,12 @@ public class SOS implements CPU.TrapHandler {
 		// in m_CPU.
 		@SuppressWarnings("static-access")
 		public boolean move(int newBase) {
-			// If we are currently the running process,
+			// If we are currently running (on any core),
 			// make sure we save our registers.
-			if (this == m_currProcess) {
-				m_currProcess.save(m_CPU);
+			Core running = ((core != null) && (core.getProcess() == this)) ? core
+			        : null;
+			if (running != null) {
+				save(running.cpu);
 			}
 			
 			int base = this.registers[m_CPU.BASE];
@@ -1662,6 +2955,8 @@ public class SOS implements CPU.TrapHandler {
 				
 				m_RAM.write(newPageNum + i, val1);
 				m_RAM.write(startPageNum + i, val2);
+				invalidatePage(newPageNum + i);
+				invalidatePage(startPageNum + i);
 			}
 			
 			int shiftAmount = newBase - base; // the amount we need to shift our
@@ -1674,8 +2969,8 @@ public class SOS implements CPU.TrapHandler {
 			this.registers[m_CPU.PC] += shiftAmount;
 
 			// Restore our current process.
-			if (this == m_currProcess) {
-				m_currProcess.restore(m_CPU);
+			if (running != null) {
+				restore(running.cpu);
 			}
 
 			debugPrintln("Process " + this.processId + " has moved from "
@@ -1698,6 +2993,11 @@ public class SOS implements CPU.TrapHandler {
 		private Device device;
 		/** a list of processes that have opened this device */
 		private Vector<ProcessControlBlock> procs;
+		/**
+		 * the processes blocked on this device, in the order they blocked, by
+		 * operation and address (see {@link #waitKey})
+		 */
+		private HashMap<Long, ArrayDeque<ProcessControlBlock>> waiters;
 
 		/**
 		 * constructor
@@ -1712,6 +3012,7 @@ public class SOS implements CPU.TrapHandler {
 			this.id = initID;
 			this.device = d;
 			this.procs = new Vector<ProcessControlBlock>();
+			this.waiters = new HashMap<Long, ArrayDeque<ProcessControlBlock>>();
 		}
 
 		/** @return the device's id */
@@ -1744,6 +3045,47 @@ public class SOS implements CPU.TrapHandler {
 			return procs.size() == 0;
 		}
 
+		/**
+		 * waitKey
+		 * 
+		 * @return the key of the wait queue for an operation and address. Every
+		 *         Open waits on the same queue, whatever the address.
+		 */
+		private long waitKey(int op, int addr) {
+			if (op == SYSCALL_OPEN) {
+				addr = 0;
+			}
+			return ((long) op << 32) | (addr & 0xffffffffL);
+		}
+
+		/** Add a process to the end of a wait queue */
+		public void addWaiter(ProcessControlBlock pi, int op, int addr) {
+			Long key = waitKey(op, addr);
+			ArrayDeque<ProcessControlBlock> queue = waiters.get(key);
+			if (queue == null) {
+				queue = new ArrayDeque<ProcessControlBlock>();
+				waiters.put(key, queue);
+			}
+			queue.add(pi);
+		}
+
+		/**
+		 * Take the process at the front of a wait queue off it (null if the
+		 * queue is empty)
+		 */
+		public ProcessControlBlock removeWaiter(int op, int addr) {
+			Long key = waitKey(op, addr);
+			ArrayDeque<ProcessControlBlock> queue = waiters.get(key);
+			if (queue == null) {
+				return null;
+			}
+			ProcessControlBlock pi = queue.poll();
+			if (queue.isEmpty()) {
+				waiters.remove(key);
+			}
+			return pi;
+		}
+
 	}// class DeviceInfo
 
 	/**
@@ -1786,4 +3128,874 @@ public class SOS implements CPU.TrapHandler {
 
 	}// class MemBlock
 
+	/**
+	 * interface Scheduler
+	 * 
+	 * This interface is implemented by the scheduling policies. Every core has
+	 * a scheduler that holds the processes assigned to the core that are
+	 * ready to run but not running, and decides which of them runs next.
+	 * A core uses its own scheduler without the kernel lock on a clock
+	 * interrupt, so any other core must hold the core's lock to use it.
+	 */
+	private interface Scheduler {
+		/**
+		 * adds a process that is ready to run (and not running) to the ready
+		 * queue
+		 */
+		public void addReady(ProcessControlBlock pcb);
+
+		/**
+		 * @return the process on the ready queue that would run next -OR-
+		 *         null if there are none
+		 */
+		public ProcessControlBlock peekReady();
+
+		/**
+		 * takes the process that would run next off the ready queue
+		 * 
+		 * @return the process -OR- null if there are none
+		 */
+		public ProcessControlBlock pollReady();
+
+		/** empties the ready queue */
+		public void clearReady();
+
+		/**
+		 * @return the priority of a process on the ready queue (greater
+		 *         numbers run sooner). This is used to compare the processes
+		 *         of different cores.
+		 */
+		public int getPriority(ProcessControlBlock pcb);
+
+		/**
+		 * chooses the process to run next and takes it off the ready queue.
+		 * If the running process loses the CPU it is put on the ready queue.
+		 * 
+		 * @param curr
+		 *            the running process -OR- null if there isn't one or it
+		 *            can't continue (it blocked or exited)
+		 * @return the process to run (possibly curr) -OR- null if there is
+		 *         nothing to run
+		 */
+		public ProcessControlBlock selectNext(ProcessControlBlock curr);
+
+		/**
+		 * called on every clock interrupt, before the OS reschedules
+		 * 
+		 * @param curr
+		 *            the running process -OR- null if the CPU was halted
+		 * @param ticks
+		 *            the ticks the running process has run for since it was
+		 *            loaded or the last clock interrupt
+		 */
+		public void clockInterrupt(ProcessControlBlock curr, int ticks);
+
+		/**
+		 * @return the time slice, in ticks, to give a process that is about
+		 *         to run when the CPU is tickless
+		 */
+		public int getQuantum(ProcessControlBlock pcb);
+
+		/**
+		 * called when the running process starts a Read or Write and blocks
+		 * until it finishes
+		 * 
+		 * @param op
+		 *            SYSCALL_READ or SYSCALL_WRITE
+		 */
+		public void startedIO(ProcessControlBlock pcb, int op);
+
+		/**
+		 * writes the scheduler's own state (not its ready queue) to a
+		 * snapshot
+		 * 
+		 * @param curr
+		 *            the running process
+		 */
+		public void saveState(DataOutputStream out, ProcessControlBlock curr)
+		        throws IOException;
+
+		/**
+		 * reads the state written by saveState. This is called on an empty
+		 * scheduler before the ready processes are added.
+		 * 
+		 * @param curr
+		 *            the running process
+		 */
+		public void restoreState(DataInputStream in, ProcessControlBlock curr)
+		        throws IOException;
+
+	};// interface Scheduler
+
+	/**
+	 * class PriorityScheduler
+	 * 
+	 * This scheduler runs the process with the highest priority. Processes
+	 * gain priority for doing I/O and for waiting (aging), and the running
+	 * process is only preempted by a process whose priority beats its own by
+	 * PRIORITY_THRESHOLD.
+	 * 
+	 * Ready processes are kept in a heap, so scheduling takes O(log n) time.
+	 * Aging adds to a running total rather than touching each process: a
+	 * queued process' priority is the priority it was queued with plus the
+	 * aging since then, so the order of the heap doesn't change.
+	 */
+	private class PriorityScheduler implements Scheduler {
+		/** the ready processes, highest priority first */
+		private PriorityQueue<ProcessControlBlock> ready = null;
+		/** the total priority every ready process has been aged by */
+		private long aging = 0;
+		/** the tick the ready processes were last aged at (tickless only) */
+		private int lastAging = 0;
+		/** the CPU of the scheduler's core */
+		private CPU cpu = null;
+
+		/**
+		 * constructor
+		 */
+		public PriorityScheduler(CPU c) {
+			cpu = c;
+			ready = new PriorityQueue<ProcessControlBlock>(11,
+			        new Comparator<ProcessControlBlock>() {
+				        // Highest priority first, then lowest process ID. It is
+				        // enough to compare the priorities less the aging total
+				        // at the time the processes were queued.
+				        public int compare(ProcessControlBlock a,
+				                ProcessControlBlock b) {
+					        long keyA = a.priority - a.agedFrom;
+					        long keyB = b.priority - b.agedFrom;
+					        if (keyA != keyB) {
+						        return (keyA > keyB) ? -1 : 1;
+					        }
+					        return a.getProcessId() - b.getProcessId();
+				        }
+			        });
+		}
+
+		public void addReady(ProcessControlBlock pcb) {
+			pcb.queued = true;
+			pcb.agedFrom = aging;
+			ready.add(pcb);
+		}
+
+		public ProcessControlBlock peekReady() {
+			return ready.peek();
+		}
+
+		/**
+		 * pollReady
+		 * 
+		 * takes the highest-priority process off the ready queue, adding the
+		 * aging it received while it waited to its priority
+		 */
+		public ProcessControlBlock pollReady() {
+			ProcessControlBlock pcb = ready.poll();
+			if (pcb != null) {
+				pcb.priority = getPriority(pcb);
+				pcb.queued = false;
+			}
+			return pcb;
+		}// pollReady
+
+		public void clearReady() {
+			ready.clear();
+			aging = 0;
+		}
+
+		public int getPriority(ProcessControlBlock pcb) {
+			return pcb.priority + (int) (aging - pcb.agedFrom);
+		}
+
+		/**
+		 * selectNext
+		 * 
+		 * ages the ready processes if enough clock interrupts have passed and
+		 * then runs the highest-priority process, unless the current process
+		 * is within the threshold of it
+		 */
+		public ProcessControlBlock selectNext(ProcessControlBlock curr) {
+			if (!cpu.isTickless()) {
+				if ((cpu.getTicks() / CPU.CLOCK_FREQ) % AGING_TIME == 0) {
+					aging += AGING_PRIORITY;
+				}
+			} else {
+				// Age by the number of clock periods that have passed
+				int period = AGING_TIME * CPU.CLOCK_FREQ;
+				int periods = (cpu.getTicks() - lastAging) / period;
+				aging += (long) periods * AGING_PRIORITY;
+				lastAging += periods * period;
+			}
+
+			ProcessControlBlock bestProc = ready.peek();
+			if (curr != null) {
+				if ((bestProc == null)
+				        || (getPriority(bestProc) <= curr.getPriority()
+				                + PRIORITY_THRESHOLD)) {
+					return curr;
+				}
+				pollReady();
+				addReady(curr);
+				return bestProc;
+			}
+			return pollReady();
+		}// selectNext
+
+		public void clockInterrupt(ProcessControlBlock curr, int ticks) {
+		}
+
+		public int getQuantum(ProcessControlBlock pcb) {
+			return m_quantum;
+		}
+
+		public void startedIO(ProcessControlBlock pcb, int op) {
+			pcb.increasePriority((op == SYSCALL_READ) ? READ_PRIORITY
+			        : WRITE_PRIORITY);
+		}
+
+		public void saveState(DataOutputStream out, ProcessControlBlock curr)
+		        throws IOException {
+			out.writeLong(aging);
+			out.writeInt(lastAging);
+		}
+
+		public void restoreState(DataInputStream in, ProcessControlBlock curr)
+		        throws IOException {
+			aging = in.readLong();
+			lastAging = in.readInt();
+		}
+
+	}// class PriorityScheduler
+
+	/**
+	 * class MLFQScheduler
+	 * 
+	 * This scheduler is a multilevel feedback queue. Each level is a round
+	 * robin queue with its own quantum (see MLFQ_QUANTA); the top level has
+	 * the shortest. A process always runs from the highest non-empty level
+	 * and is preempted as soon as a process is ready on a higher level.
+	 * 
+	 * A new process starts on the top level. A process that uses its whole
+	 * quantum moves down a level, and one that starts I/O moves up a level,
+	 * so interactive processes stay near the top while CPU-bound processes
+	 * sink to the bottom. Every MLFQ_BOOST_TIME clock periods every process is
+	 * moved back to the top so that the CPU-bound ones don't starve.
+	 * (Blocked processes are boosted when they become ready again.)
+	 */
+	private class MLFQScheduler implements Scheduler {
+		/** the ready processes on each level, in the order they'll run */
+		private ArrayList<ArrayDeque<ProcessControlBlock>> levels = null;
+		/** the tick of the last boost, and the number of boosts */
+		private int lastBoost = 0;
+		private int boosts = 0;
+		/** the CPU of the scheduler's core */
+		private CPU cpu = null;
+
+		/**
+		 * constructor
+		 */
+		public MLFQScheduler(CPU c) {
+			cpu = c;
+			levels = new ArrayList<ArrayDeque<ProcessControlBlock>>();
+			for (int i = 0; i < MLFQ_QUANTA.length; i++) {
+				levels.add(new ArrayDeque<ProcessControlBlock>());
+			}
+		}
+
+		public void addReady(ProcessControlBlock pcb) {
+			if (pcb.boosts != boosts) {
+				pcb.boosts = boosts;
+				pcb.level = 0;
+				pcb.ticksUsed = 0;
+			}
+			pcb.queued = true;
+			levels.get(pcb.level).add(pcb);
+		}
+
+		public ProcessControlBlock peekReady() {
+			for (ArrayDeque<ProcessControlBlock> level : levels) {
+				if (!level.isEmpty()) {
+					return level.peek();
+				}
+			}
+			return null;
+		}
+
+		public ProcessControlBlock pollReady() {
+			for (ArrayDeque<ProcessControlBlock> level : levels) {
+				if (!level.isEmpty()) {
+					// Every process on a ready queue was boosted with it
+					ProcessControlBlock pcb = level.poll();
+					pcb.queued = false;
+					pcb.boosts = boosts;
+					return pcb;
+				}
+			}
+			return null;
+		}
+
+		public void clearReady() {
+			for (ArrayDeque<ProcessControlBlock> level : levels) {
+				level.clear();
+			}
+			lastBoost = cpu.getTicks();
+		}
+
+		public int getPriority(ProcessControlBlock pcb) {
+			return MLFQ_QUANTA.length - 1 - pcb.level;
+		}
+
+		/**
+		 * selectNext
+		 * 
+		 * keeps the current process running until its quantum runs out or a
+		 * process on a higher level is ready. Otherwise the current process
+		 * goes to the back of its level and the first process on the highest
+		 * non-empty level runs.
+		 */
+		public ProcessControlBlock selectNext(ProcessControlBlock curr) {
+			if (curr != null) {
+				ProcessControlBlock bestProc = peekReady();
+				if (!curr.expired
+				        && ((bestProc == null) || (bestProc.level >= curr.level))) {
+					return curr;
+				}
+				curr.expired = false;
+				addReady(curr);
+			}
+			return pollReady();
+		}// selectNext
+
+		/**
+		 * clockInterrupt
+		 * 
+		 * charges the running process for the time it has run, moving it down
+		 * a level if it has used up its quantum, and boosts every process
+		 * when it's time
+		 */
+		public void clockInterrupt(ProcessControlBlock curr, int ticks) {
+			if (curr != null) {
+				curr.ticksUsed += ticks;
+				if (curr.ticksUsed >= MLFQ_QUANTA[curr.level] * CPU.CLOCK_FREQ) {
+					if (curr.level < MLFQ_QUANTA.length - 1) {
+						curr.level++;
+					}
+					curr.ticksUsed = 0;
+					curr.expired = true;
+				}
+			}
+
+			if (cpu.getTicks() - lastBoost >= MLFQ_BOOST_TIME
+			        * CPU.CLOCK_FREQ) {
+				lastBoost = cpu.getTicks();
+				boosts++;
+				ArrayDeque<ProcessControlBlock> top = levels.get(0);
+				for (int i = 1; i < levels.size(); i++) {
+					for (ProcessControlBlock pcb : levels.get(i)) {
+						pcb.level = 0;
+						pcb.ticksUsed = 0;
+						top.add(pcb);
+					}
+					levels.get(i).clear();
+				}
+				if (curr != null) {
+					curr.level = 0;
+					curr.ticksUsed = 0;
+					curr.boosts = boosts;
+				}
+			}
+		}// clockInterrupt
+
+		/**
+		 * getQuantum
+		 * 
+		 * @return what is left of the quantum of the process' level
+		 */
+		public int getQuantum(ProcessControlBlock pcb) {
+			return Math.max(1, MLFQ_QUANTA[pcb.level] * CPU.CLOCK_FREQ
+			        - pcb.ticksUsed);
+		}
+
+		/**
+		 * startedIO
+		 * 
+		 * moves a process that has started I/O up a level with a fresh
+		 * quantum
+		 */
+		public void startedIO(ProcessControlBlock pcb, int op) {
+			if (pcb.level > 0) {
+				pcb.level--;
+			}
+			pcb.ticksUsed = 0;
+		}
+
+		/**
+		 * saveState
+		 * 
+		 * saves the boost count and time. A process whose boost count
+		 * doesn't match the scheduler's is moved to the top level when it's
+		 * queued, so the count has to be restored before the processes are.
+		 */
+		public void saveState(DataOutputStream out, ProcessControlBlock curr)
+		        throws IOException {
+			out.writeInt(lastBoost);
+			out.writeInt(boosts);
+		}
+
+		public void restoreState(DataInputStream in, ProcessControlBlock curr)
+		        throws IOException {
+			lastBoost = in.readInt();
+			boosts = in.readInt();
+		}
+
+	}// class MLFQScheduler
+
+	/**
+	 * class CFSScheduler
+	 * 
+	 * This scheduler shares the CPU fairly, in the style of Linux's Completely
+	 * Fair Scheduler. Each process' virtual runtime is the number of ticks it
+	 * has run for, scaled by the weight of its nice value (a process with
+	 * twice the weight ages half as fast), and the process with the smallest
+	 * virtual runtime runs next. The running process keeps the CPU until a
+	 * ready process is more than CFS_GRANULARITY behind it.
+	 * 
+	 * Ready processes are kept in a balanced tree ordered by virtual runtime.
+	 * The smallest virtual runtime seen (which only grows) is used to place
+	 * processes that have been blocked or are new to the core: they are
+	 * brought forward to within CFS_WAKEUP_CREDIT of it, so that they can't
+	 * run for as long as they were away.
+	 */
+	private class CFSScheduler implements Scheduler {
+		/** the ready processes, smallest virtual runtime first */
+		private TreeSet<ProcessControlBlock> ready = null;
+		/** the smallest virtual runtime seen */
+		private long minVruntime = 0;
+		/** the process this scheduler last chose and the tick it started */
+		private ProcessControlBlock running = null;
+		private int runStart = 0;
+		/** the CPU of the scheduler's core */
+		private CPU cpu = null;
+
+		/**
+		 * constructor
+		 */
+		public CFSScheduler(CPU c) {
+			cpu = c;
+			ready = new TreeSet<ProcessControlBlock>(
+			        new Comparator<ProcessControlBlock>() {
+				        public int compare(ProcessControlBlock a,
+				                ProcessControlBlock b) {
+					        if (a.vruntime != b.vruntime) {
+						        return (a.vruntime < b.vruntime) ? -1 : 1;
+					        }
+					        return a.getProcessId() - b.getProcessId();
+				        }
+			        });
+		}
+
+		/**
+		 * charge
+		 * 
+		 * adds the time the process this scheduler chose has been running to
+		 * its virtual runtime
+		 */
+		private void charge() {
+			if (running != null) {
+				long ticks = cpu.getTicks() - runStart;
+				running.vruntime += ticks * NICE_WEIGHTS[0 - NICE_MIN]
+				        / NICE_WEIGHTS[running.nice - NICE_MIN];
+				running = null;
+			}
+		}// charge
+
+		public void addReady(ProcessControlBlock pcb) {
+			// The running process can be put back without a reschedule (by
+			// Exec)
+			if (pcb == running) {
+				charge();
+			}
+			pcb.vruntime = Math.max(pcb.vruntime, minVruntime
+			        - CFS_WAKEUP_CREDIT);
+			pcb.queued = true;
+			ready.add(pcb);
+		}
+
+		public ProcessControlBlock peekReady() {
+			return ready.isEmpty() ? null : ready.first();
+		}
+
+		public ProcessControlBlock pollReady() {
+			ProcessControlBlock pcb = ready.pollFirst();
+			if (pcb != null) {
+				pcb.queued = false;
+			}
+			return pcb;
+		}
+
+		public void clearReady() {
+			ready.clear();
+			minVruntime = 0;
+			running = null;
+		}
+
+		public int getPriority(ProcessControlBlock pcb) {
+			return (int) Math.max(-Integer.MAX_VALUE, minVruntime
+			        - pcb.vruntime);
+		}
+
+		/**
+		 * selectNext
+		 * 
+		 * charges the process that was running and then runs the process with
+		 * the smallest virtual runtime, unless the current process is within
+		 * the granularity of it
+		 */
+		public ProcessControlBlock selectNext(ProcessControlBlock curr) {
+			charge();
+
+			ProcessControlBlock bestProc = peekReady();
+			if (curr != null) {
+				// A process that has just arrived on this core (new, or taken
+				// from another core) starts level with the others
+				curr.vruntime = Math.max(curr.vruntime, minVruntime);
+				if ((bestProc == null)
+				        || (curr.vruntime <= bestProc.vruntime + CFS_GRANULARITY)) {
+					bestProc = curr;
+				} else {
+					pollReady();
+					addReady(curr);
+				}
+			} else {
+				pollReady();
+			}
+
+			if (bestProc != null) {
+				long min = bestProc.vruntime;
+				if (!ready.isEmpty()) {
+					min = Math.min(min, ready.first().vruntime);
+				}
+				minVruntime = Math.max(minVruntime, min);
+				running = bestProc;
+				runStart = cpu.getTicks();
+			}
+			return bestProc;
+		}// selectNext
+
+		public void clockInterrupt(ProcessControlBlock curr, int ticks) {
+		}
+
+		public int getQuantum(ProcessControlBlock pcb) {
+			return m_quantum;
+		}
+
+		public void startedIO(ProcessControlBlock pcb, int op) {
+		}
+
+		/**
+		 * saveState
+		 * 
+		 * saves the smallest virtual runtime and when the running process
+		 * started running, so that it is charged for its whole run
+		 */
+		public void saveState(DataOutputStream out, ProcessControlBlock curr)
+		        throws IOException {
+			out.writeLong(minVruntime);
+			out.writeBoolean((running != null) && (running == curr));
+			out.writeInt(runStart);
+		}
+
+		public void restoreState(DataInputStream in, ProcessControlBlock curr)
+		        throws IOException {
+			minVruntime = in.readLong();
+			running = in.readBoolean() ? curr : null;
+			runStart = in.readInt();
+		}
+
+	}// class CFSScheduler
+
+	/**
+	 * class Core
+	 * 
+	 * This class is one of the CPUs that processes are scheduled on, and the
+	 * trap handler registered with that CPU. A trap counts the core out of
+	 * user code, takes the kernel lock (the SOS object's monitor) and
+	 * switches m_CPU, m_MMU and m_currProcess to this core before calling the
+	 * matching SOS handler, so the rest of the OS can carry on as if there
+	 * were a single CPU.
+	 * 
+	 * The exception is a clock interrupt that only has to charge the running
+	 * process and maybe swap it for another of the core's ready processes.
+	 * That needs nothing shared, so it is handled holding just the core's own
+	 * lock, which guards its scheduler against other cores in the kernel.
+	 */
+	private class Core implements CPU.TrapHandler, Runnable {
+		/** the core's number (core 0 takes the I/O interrupts) */
+		private int id;
+		/** the core's CPU and MMU */
+		private CPU cpu;
+		private MMU mmu;
+		/**
+		 * the process running on this core while the core is outside the
+		 * kernel (m_currProcess holds it while the core is in it)
+		 */
+		private ProcessControlBlock proc = null;
+		/**
+		 * holds the processes assigned to this core that are ready to run but
+		 * not running
+		 */
+		private Scheduler scheduler = null;
+		/** true while the core is counted in m_coresInUser */
+		private boolean inUser = false;
+		/**
+		 * the process whose time slice is running, the tick the slice ends
+		 * at and the tick up to which the process' running time has been
+		 * passed to the scheduler (see {@link SOS#startSlice})
+		 */
+		private ProcessControlBlock sliceProc = null;
+		private int sliceEnd = 0;
+		private int chargedAt = 0;
+
+		/**
+		 * constructor
+		 * 
+		 * registers the core as its CPU's trap handler
+		 */
+		public Core(int initID, CPU c, MMU m) {
+			id = initID;
+			cpu = c;
+			mmu = m;
+			scheduler = createScheduler(cpu);
+			cpu.registerTrapHandler(this);
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * @return the process running on this core (null if it's idle)
+		 */
+		public ProcessControlBlock getProcess() {
+			return (m_core == this) ? m_currProcess : proc;
+		}
+
+		/**
+		 * enter
+		 * 
+		 * switches the OS's view of the machine to this core. The caller must
+		 * hold the kernel lock.
+		 */
+		private void enter() {
+			if (m_core != this) {
+				if (m_core != null) {
+					m_core.proc = m_currProcess;
+				}
+				m_core = this;
+				m_CPU = cpu;
+				m_MMU = mmu;
+				m_currProcess = proc;
+			}
+		}// enter
+
+		/**
+		 * exitUser
+		 * 
+		 * counts the core out of user code at the start of a trap, before it
+		 * takes the kernel lock. (A halted core isn't counted in.)
+		 */
+		private void exitUser() {
+			if (inUser) {
+				inUser = false;
+				m_coresInUser.decrementAndGet();
+			}
+		}// exitUser
+
+		/**
+		 * arrive
+		 * 
+		 * enters the kernel at the start of a trap. The caller must hold the
+		 * kernel lock and have called {@link #exitUser}.
+		 */
+		private void arrive() {
+			enter();
+
+			// A core that is stopping the others may be waiting for this one
+			if (m_safepoints > 0) {
+				SOS.this.notifyAll();
+			}
+		}// arrive
+
+		/**
+		 * leave
+		 * 
+		 * waits out any safepoint and counts the core back into user code
+		 * unless it has been halted. The caller must hold the kernel lock.
+		 */
+		private void leave() {
+			while (m_safepoints > 0) {
+				kernelWait();
+			}
+			m_compactionDue = isCompactionDue();
+			proc = m_currProcess;
+			m_core = null;
+			if (!cpu.isHalted()) {
+				inUser = true;
+				m_coresInUser.incrementAndGet();
+			}
+		}// leave
+
+		/**
+		 * startSlice
+		 * 
+		 * sets the CPU's timer for the end of the given process' time slice
+		 * (see {@link SOS#startSlice})
+		 */
+		private void startSlice(ProcessControlBlock curr) {
+			int now = cpu.getTicks();
+			if (sliceProc != curr) {
+				chargedAt = now;
+			} else if (now < sliceEnd) {
+				cpu.setTimer(sliceEnd - now);
+				return;
+			}
+
+			sliceProc = curr;
+			sliceEnd = now
+			        + ((curr.quantum > 0) ? curr.quantum : scheduler
+			                .getQuantum(curr));
+			cpu.setTimer(sliceEnd - now);
+		}// startSlice
+
+		/**
+		 * clockLocally
+		 * 
+		 * does what {@link SOS#interruptClock} would for the process running
+		 * on this core, without the kernel. The caller must hold the core's
+		 * lock.
+		 * 
+		 * @return false if the kernel has to handle the interrupt instead
+		 *         (e.g., the core is idle)
+		 */
+		private boolean clockLocally() {
+			ProcessControlBlock curr = proc;
+			if ((curr == null) || curr.isBlocked() || (curr.core != this)) {
+				return false;
+			}
+
+			int now = cpu.getTicks();
+			scheduler.clockInterrupt(curr, now - chargedAt);
+			chargedAt = now;
+
+			ProcessControlBlock next = scheduler.selectNext(curr);
+			if (next != curr) {
+				curr.save(cpu);
+				proc = next;
+				next.restore(cpu);
+				wakeIdleCores(this);
+			}
+			startSlice(proc);
+			return true;
+		}// clockLocally
+
+		/**
+		 * run
+		 * 
+		 * runs the core's CPU. A core without a process starts out halted.
+		 */
+		public void run() {
+			synchronized (SOS.this) {
+				arrive();
+				leave();
+			}
+			cpu.run();
+		}// run
+
+		/*
+		 * Apart from clock interrupts, the trap handlers just run SOS's with
+		 * the kernel lock held
+		 */
+
+		public void interruptIllegalMemoryAccess(int addr) {
+			exitUser();
+			synchronized (SOS.this) {
+				arrive();
+				SOS.this.interruptIllegalMemoryAccess(addr);
+				leave();
+			}
+		}
+
+		public void interruptDivideByZero() {
+			exitUser();
+			synchronized (SOS.this) {
+				arrive();
+				SOS.this.interruptDivideByZero();
+				leave();
+			}
+		}
+
+		public void interruptIllegalInstruction(int[] instr) {
+			exitUser();
+			synchronized (SOS.this) {
+				arrive();
+				SOS.this.interruptIllegalInstruction(instr);
+				leave();
+			}
+		}
+
+		public void interruptIOReadComplete(int devID, int addr, int data) {
+			exitUser();
+			synchronized (SOS.this) {
+				arrive();
+				SOS.this.interruptIOReadComplete(devID, addr, data);
+				leave();
+			}
+		}
+
+		public void interruptIOWriteComplete(int devID, int addr) {
+			exitUser();
+			synchronized (SOS.this) {
+				arrive();
+				SOS.this.interruptIOWriteComplete(devID, addr);
+				leave();
+			}
+		}
+
+		/**
+		 * interruptClock
+		 * 
+		 * handles the interrupt with {@link #clockLocally} unless the kernel
+		 * has something to do on every clock interrupt: print the process
+		 * table, stop for a safepoint, compact memory or take a snapshot. The
+		 * core stays counted in user code meanwhile, so a core stopping the
+		 * others waits for it.
+		 */
+		public void interruptClock() {
+			if (!m_verbose && (m_safepoints == 0) && !m_compactionDue
+			        && (m_snapshotName == null)) {
+				synchronized (this) {
+					if (clockLocally()) {
+						return;
+					}
+				}
+			}
+
+			exitUser();
+			synchronized (SOS.this) {
+				arrive();
+				SOS.this.interruptClock();
+				leave();
+			}
+		}
+
+		public void systemCall() {
+			exitUser();
+			synchronized (SOS.this) {
+				arrive();
+				SOS.this.systemCall();
+				leave();
+			}
+		}
+
+	}// class Core
+
 };// class SOS
@@ -1,6 +1,11 @@
 package sos;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
 
 /**
  * This class sets up the SOS simulation by creating the RAM, CPU and SOS
@@ -23,11 +28,15 @@ public class Sim {
 	 * ExitCatcher
 	 * 
 	 * is a security manager that prevents threads from calling System.exit().
-	 * This allows Sim.java to properly time the simulation.
+	 * This allows Sim.java to properly time the simulation. Only the thread
+	 * that created it (the main thread) can exit, and only once another
+	 * thread has tried to.
 	 * 
 	 */
 	static class ExitCatcher extends SecurityManager {
-		private boolean m_caught = false;
+		private volatile boolean m_caught = false;
+		private volatile int m_status = 0;
+		private Thread m_owner = Thread.currentThread();
 
 		public ExitCatcher() {
 			super();
@@ -37,9 +46,21 @@ public class Sim {
 			return m_caught;
 		}
 
+		public int getExitStatus() {
+			return m_status;
+		}
+
+		public void reset() {
+			m_caught = false;
+			m_status = 0;
+		}
+
 		public void checkExit(int status) {
 			super.checkExit(status);
-			if (!m_caught) {
+			if (!m_caught || (Thread.currentThread() != m_owner)) {
+				if (!m_caught) {
+					m_status = status;
+				}
 				m_caught = true;
 				throw new SecurityException();
 			}
@@ -48,6 +69,10 @@ public class Sim {
 		public void checkRead(String file) {
 			// do nothing
 		}
+
+		public void checkWrite(String file) {
+			// do nothing (snapshots are written from the CPU thread)
+		}
 	}// ExitCatcher
 
 	/**
@@ -68,6 +93,47 @@ public class Sim {
 		}
 	}// DoNothingHandler
 
+	/**
+	 * StopSimulation
+	 * 
+	 * is thrown by the trap handlers of the developer checks below to unwind
+	 * {@link CPU#run} once enough instructions have been executed.
+	 */
+	static class StopSimulation extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}// StopSimulation
+
+	/**
+	 * ExecutorScheduler
+	 * 
+	 * times device requests for any number of devices with a small, shared
+	 * pool of threads. The pool's threads are daemons so they don't keep the
+	 * simulation alive.
+	 */
+	static class ExecutorScheduler implements Device.Scheduler {
+		private ScheduledThreadPoolExecutor m_executor;
+
+		public ExecutorScheduler(int threads) {
+			m_executor = new ScheduledThreadPoolExecutor(threads,
+			        new ThreadFactory() {
+				        public Thread newThread(Runnable r) {
+					        Thread t = new Thread(r, "device-scheduler");
+					        t.setDaemon(true);
+					        t.setUncaughtExceptionHandler(m_DNH);
+					        return t;
+				        }
+			        });
+		}
+
+		public void schedule(Runnable task, long delayNanos) {
+			m_executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+		}
+
+		public void shutdown() {
+			m_executor.shutdownNow();
+		}
+	}// ExecutorScheduler
+
 	/*
 	 * ======================================================================-
 	 * Member Variables
@@ -76,6 +142,32 @@ public class Sim {
 	private static ExitCatcher m_EC = new ExitCatcher();
 	private static DoNothingHandler m_DNH = new DoNothingHandler();
 
+	/**
+	 * Simulation options (set from the command line)
+	 */
+	private static boolean m_translate = false; // translate hot guest code
+	private static int m_ramLatency = 0; // RAM latency in ns
+	private static int m_latencyMode = RAM.LATENCY_SIMULATED;
+	private static int m_ramStorage = RAM.STORAGE_HEAP;
+	private static String m_snapshotName = null; // snapshot to save
+	private static int m_snapshotClock = 0; // clock interrupt to save it at
+	private static String m_resumeName = null; // snapshot to resume from
+	private static int m_devicePool = 0; // threads shared by all devices (0
+										 // gives each device its own thread)
+	private static boolean m_eventMode = false; // discrete-event simulation
+	private static boolean m_seeded = false; // use m_seed for random numbers?
+	private static long m_seed = 0; // seed for all random numbers
+	private static String m_recordName = null; // interrupt trace to record
+	private static String m_replayName = null; // interrupt trace to replay
+	private static InterruptTrace m_recorder = null; // trace being recorded
+	private static int m_numCores = 1; // CPUs sharing the RAM
+	private static int m_scheduler = SOS.SCHED_PRIORITY; // scheduling policy
+	private static boolean m_tickless = false; // only trap when necessary
+	private static int m_quantum = SOS.DEFAULT_QUANTUM; // tickless time slice
+	private static int m_allocPolicy = SOS.ALLOC_FIRST_FIT; // memory policy
+	private static int m_compactPages = SOS.DEFAULT_COMPACT_PAGES; // per clock
+	private static int m_compactThreshold = SOS.DEFAULT_COMPACT_THRESHOLD;
+
 	/*
 	 * ======================================================================-
 	 * Methods
@@ -89,8 +181,21 @@ public class Sim {
 	 * 
 	 */
 	public static void runAllocTest() {
-		// Create the simulated hardware and OS
-		RAM ram = new RAM(4096, 0);
+		// Create the simulated hardware and OS. A resumed simulation maps the
+		// snapshot's RAM image instead of loading programs into an empty RAM
+		RAM ram = null;
+		if (m_resumeName != null) {
+			try {
+				ram = new RAM(4096, m_ramLatency, m_latencyMode, m_resumeName
+				        + SOS.IMAGE_SUFFIX, true);
+			} catch (IOException e) {
+				System.out.println("ERROR: Could not map snapshot "
+				        + m_resumeName + ": " + e);
+				return;
+			}
+		} else {
+			ram = new RAM(4096, m_ramLatency, m_latencyMode, m_ramStorage);
+		}
 		MMU mmu = new MMU(ram, 4096, 64);
 		InterruptController ic = new InterruptController();
 		KeyboardDevice kd = new KeyboardDevice(ic);
@@ -98,19 +203,97 @@ public class Sim {
 		ConsoleDevice cd = new ConsoleDevice(ic);
 		cd.setId(1);
 		CPU cpu = new CPU(ram, ic, mmu);
-		SOS os = new SOS(cpu, ram, mmu);
+		cpu.setBlockTranslation(m_translate);
+		cpu.setTickless(m_tickless);
+		SOS os = new SOS(cpu, ram, mmu, m_allocPolicy);
+		os.setScheduler(m_scheduler);
+		os.setQuantum(m_quantum);
+		os.setCompaction(m_compactPages, m_compactThreshold);
 
-		// Register the device drivers with the OS
-		os.registerDevice(kd, 0);
-		os.registerDevice(cd, 1);
+		// A replay runs in discrete-event mode with the recording's seed
+		InterruptTrace replay = null;
+		if (m_replayName != null) {
+			try {
+				replay = new InterruptTrace(m_replayName);
+			} catch (IOException e) {
+				System.out.println("ERROR: Could not load interrupt trace "
+				        + m_replayName + ": " + e);
+				return;
+			}
+			m_eventMode = true;
+			if (!m_seeded) {
+				m_seed = replay.getSeed();
+				m_seeded = true;
+			}
+		}
 
-		// Load the program into RAM
-		Program prog = new Program();
-		if (prog.load("quickspawn20.asm", false) != 0) {
-			System.out.println("ERROR: Could not load quickspawn20.asm");
-			return;
+		// A recording needs a known seed to be replayed with
+		if ((m_recordName != null) && !m_seeded) {
+			m_seed = System.nanoTime();
+			m_seeded = true;
+		}
+
+		// Make every random choice repeatable if asked to
+		if (m_seeded) {
+			os.setSeed(m_seed);
+			kd.setSeed(m_seed + 1);
+			cd.setSeed(m_seed + 2);
+		}
+
+		// In discrete-event mode devices finish their requests on the CPU's
+		// clock
+		EventQueue events = null;
+		if (m_eventMode) {
+			events = new EventQueue(cpu, EventQueue.DEFAULT_NANOS_PER_TICK);
+			cpu.setEventQueue(events);
+		}
+
+		// Register the device drivers with the OS (a replay swaps in devices
+		// that play back the recording)
+		if (replay != null) {
+			for (int i = 0; i < replay.getNumDevices(); i++) {
+				ReplayDevice rd = new ReplayDevice(ic, events, replay, i);
+				os.registerDevice(rd, rd.getId());
+			}
+		} else {
+			os.registerDevice(kd, 0);
+			os.registerDevice(cd, 1);
+		}
+
+		// Record the interrupts the CPU services if asked to
+		if (m_recordName != null) {
+			try {
+				m_recorder = new InterruptTrace(m_recordName, m_seed,
+				        new Device[] { kd, cd });
+			} catch (IOException e) {
+				System.out.println("ERROR: Could not create interrupt trace "
+				        + m_recordName + ": " + e);
+				return;
+			}
+			cpu.setInterruptTrace(m_recorder);
+		}
+
+		// Load the program into RAM (or pick up where the snapshot left off)
+		Program prog = null;
+		if (m_resumeName != null) {
+			try {
+				os.restoreSnapshot(m_resumeName);
+			} catch (IOException e) {
+				System.out.println("ERROR: Could not restore snapshot "
+				        + m_resumeName + ": " + e);
+				return;
+			}
+		} else {
+			prog = new Program();
+			if (prog.load("quickspawn20.asm", false) != 0) {
+				System.out.println("ERROR: Could not load quickspawn20.asm");
+				return;
+			}
+			os.createProcess(prog, 1200);
+		}
+		if (m_snapshotName != null) {
+			os.scheduleSnapshot(m_snapshotName, m_snapshotClock);
 		}
-		os.createProcess(prog, 1200);
 
 		// Register other programs for Exec system calls. These processes have
 		// been designed to encourage memory fragmentation
@@ -157,18 +340,43 @@ public class Sim {
 		}
 		os.addProgram(prog);
 
-		// Start up the devices
-		Thread t = new Thread(cd);
-		t.setUncaughtExceptionHandler(m_DNH);
-		t.start();
-		t = new Thread(kd);
-		t.setUncaughtExceptionHandler(m_DNH);
-		t.start();
+		// Start up the devices (replay devices need no starting). In
+		// discrete-event mode they use the event queue; otherwise they run in
+		// real time on their own threads or a shared pool
+		Thread t = null;
+		Device.Scheduler scheduler = events;
+		if ((scheduler == null) && (m_devicePool > 0)) {
+			scheduler = new ExecutorScheduler(m_devicePool);
+		}
+		if ((replay == null) && (scheduler != null)) {
+			cd.setScheduler(scheduler);
+			kd.setScheduler(scheduler);
+		} else if (replay == null) {
+			t = new Thread(cd);
+			t.setUncaughtExceptionHandler(m_DNH);
+			t.start();
+			t = new Thread(kd);
+			t.setUncaughtExceptionHandler(m_DNH);
+			t.start();
+		}
 
-		// Run the simulation
-		t = new Thread(cpu);
-		t.setUncaughtExceptionHandler(m_DNH);
-		t.start();
+		// Give the extra cores their own MMU (and so their own TLB)
+		for (int i = 1; i < m_numCores; i++) {
+			MMU coreMMU = new MMU(ram, 4096, 64);
+			CPU coreCPU = new CPU(ram, null, coreMMU);
+			coreCPU.setBlockTranslation(m_translate);
+			coreCPU.setTickless(m_tickless);
+			os.addCore(coreCPU, coreMMU);
+		}
+
+		// Run the simulation, each core on its own thread
+		Thread cores[] = new Thread[os.getNumCores()];
+		for (int i = 0; i < cores.length; i++) {
+			cores[i] = new Thread(os.getCore(i));
+			cores[i].setUncaughtExceptionHandler(m_DNH);
+			cores[i].start();
+		}
+		t = cores[0];
 
 		// Wait until System.exit() is called
 		while (!m_EC.isExitCaught()) {
@@ -182,6 +390,766 @@ public class Sim {
 
 	}// runAllocTest
 
+	/**
+	 * runFetchAllocCheck
+	 * 
+	 * verifies that the CPU's fetch/execute loop does not allocate any memory
+	 * once it is warmed up. A small looping program (arithmetic, a SAVE and a
+	 * PUSH/POP pair) is run directly on the simulated hardware with a trap
+	 * handler that samples the bytes allocated by the CPU thread at two clock
+	 * interrupts. Any allocation in between is reported as a failure.
+	 * 
+	 * @return true if no bytes were allocated per instruction
+	 */
+	public static boolean runFetchAllocCheck() {
+		final int WARMUP_CLOCKS = 200000;
+		final int MEASURED_CLOCKS = 1000000;
+
+		RAM ram = new RAM(4096, 0);
+		MMU mmu = new MMU(ram, 4096, 64);
+		InterruptController ic = new InterruptController();
+		CPU cpu = new CPU(ram, ic, mmu);
+
+		// Identity page table, just like SOS builds
+		for (int i = 0; i < mmu.getNumPages(); i++) {
+			ram.write(i, i);
+		}
+
+		// The program lives just above the page table
+		int base = 2 * mmu.getPageSize();
+		int lim = base + 256;
+		int progArr[] = { CPU.SET, 0, 0, 0, // SET r0=0
+		        CPU.SET, 1, 1, 0, // SET r1=1
+		        CPU.SET, 2, 0, 0, // SET r2=0
+		        CPU.ADD, 0, 0, 1, // :loop ADD r0 = r0 + r1
+		        CPU.SAVE, 0, base + 200, 0, // SAVE r0 --> @(base+200)
+		        CPU.PUSH, 0, 0, 0, // PUSH r0
+		        CPU.POP, 2, 0, 0, // POP r2
+		        CPU.BRANCH, 12, 0, 0 }; // BRANCH loop
+		for (int i = 0; i < progArr.length; i++) {
+			mmu.write(base + i, progArr[i]);
+		}
+		cpu.setBASE(base);
+		cpu.setLIM(lim);
+		cpu.setPC(base);
+		cpu.setSP(lim - 1);
+
+		final ThreadMXBean tmx = (ThreadMXBean) ManagementFactory
+		        .getThreadMXBean();
+		final long[] samples = new long[2];
+		tmx.getCurrentThreadAllocatedBytes(); // make sure the bean is ready
+
+		cpu.registerTrapHandler(new CPU.TrapHandler() {
+			private int m_clocks = 0;
+
+			public void interruptIllegalMemoryAccess(int addr) {
+				throw new IllegalStateException("illegal access @" + addr);
+			}
+
+			public void interruptDivideByZero() {
+				throw new IllegalStateException("divide by zero");
+			}
+
+			public void interruptIllegalInstruction(int[] instr) {
+				throw new IllegalStateException("illegal instruction");
+			}
+
+			public void interruptClock() {
+				m_clocks++;
+				if (m_clocks == WARMUP_CLOCKS) {
+					samples[0] = tmx.getCurrentThreadAllocatedBytes();
+				} else if (m_clocks == WARMUP_CLOCKS + MEASURED_CLOCKS) {
+					samples[1] = tmx.getCurrentThreadAllocatedBytes();
+					throw new StopSimulation();
+				}
+			}
+
+			public void systemCall() {
+			}
+
+			public void interruptIOReadComplete(int devID, int addr, int data) {
+			}
+
+			public void interruptIOWriteComplete(int devID, int addr) {
+			}
+		});
+
+		try {
+			cpu.run();
+		} catch (StopSimulation ss) {
+			// expected
+		}
+
+		long bytes = samples[1] - samples[0];
+		long instrs = (long) MEASURED_CLOCKS * CPU.CLOCK_FREQ;
+		System.out.println("Fetch allocation check: " + bytes
+		        + " bytes allocated over " + instrs + " instructions ("
+		        + ((double) bytes / instrs) + " bytes/instruction)");
+		if (bytes != 0) {
+			System.out.println("FAILED: the fetch/execute loop allocates");
+			return false;
+		}
+		System.out.println("PASSED");
+		return true;
+	}// runFetchAllocCheck
+
+	/**
+	 * runLatencyCheck
+	 * 
+	 * verifies that simulated RAM latency is charged to the CPU's clock in
+	 * full. A loop that stores and loads a word is run directly on the
+	 * simulated hardware with no latency and then with more and more
+	 * latency. Every run must take as many more ticks than the first as the
+	 * RAM says were spent stalled, however much that is per instruction.
+	 * 
+	 * @return true if every stall was charged
+	 */
+	public static boolean runLatencyCheck() {
+		int latencies[] = { 0, 100, 1000, 10000, 100000 };
+
+		boolean passed = true;
+		long baseTicks = 0;
+		System.out.println("latency	ticks		stall ticks	ticks/instruction");
+		for (int latency : latencies) {
+			long result[] = runLatencyProgram(latency);
+			long ticks = result[0];
+			long stallTicks = result[1] / EventQueue.DEFAULT_NANOS_PER_TICK;
+			if (latency == 0) {
+				baseTicks = ticks;
+			}
+			System.out.println(latency + "	" + ticks + "	" + stallTicks
+			        + "		" + ((double) ticks / baseTicks));
+
+			// The stall of the final TRAP isn't charged, so allow a tick for
+			// each word it fetched
+			long missing = baseTicks + stallTicks - ticks;
+			if ((missing < 0)
+			        || (missing > (long) CPU.INSTRSIZE * latency
+			                / EventQueue.DEFAULT_NANOS_PER_TICK + 1)) {
+				passed = false;
+			}
+		}// for
+
+		System.out.println(passed ? "PASSED" : "FAILED: RAM stalls are not "
+		        + "all charged to the clock");
+		return passed;
+	}// runLatencyCheck
+
+	/**
+	 * runLatencyProgram
+	 * 
+	 * runs the latency check's loop until it makes a system call
+	 * 
+	 * @param latency
+	 *            the RAM latency in ns (charged to the simulated clock)
+	 * @return the ticks the CPU took and the ns the RAM stalled for
+	 */
+	private static long[] runLatencyProgram(int latency) {
+		final int ITERATIONS = 10000;
+
+		RAM ram = new RAM(4096, latency, RAM.LATENCY_SIMULATED);
+		MMU mmu = new MMU(ram, 4096, 64);
+		CPU cpu = new CPU(ram, null, mmu);
+
+		// Identity page table, just like SOS builds
+		for (int i = 0; i < mmu.getNumPages(); i++) {
+			ram.write(i, i);
+		}
+
+		// The program lives just above the page table
+		int base = 2 * mmu.getPageSize();
+		int lim = base + 256;
+		int progArr[] = { CPU.SET, 0, 0, 0, // SET r0=0
+		        CPU.SET, 1, 1, 0, // SET r1=1
+		        CPU.SET, 2, ITERATIONS, 0, // SET r2=ITERATIONS
+		        CPU.ADD, 0, 0, 1, // :loop ADD r0 = r0 + r1
+		        CPU.SAVE, 0, base + 200, 0, // SAVE r0 --> @(base+200)
+		        CPU.LOAD, 3, base + 200, 0, // LOAD r3 <-- @(base+200)
+		        CPU.BLT, 0, 2, 12, // BLT (r0 < r2) loop
+		        CPU.TRAP, 0, 0, 0 }; // TRAP
+		for (int i = 0; i < progArr.length; i++) {
+			mmu.write(base + i, progArr[i]);
+		}
+		cpu.setBASE(base);
+		cpu.setLIM(lim);
+		cpu.setPC(base);
+		cpu.setSP(lim - 1);
+
+		cpu.registerTrapHandler(new CPU.TrapHandler() {
+			public void interruptIllegalMemoryAccess(int addr) {
+				throw new IllegalStateException("illegal access @" + addr);
+			}
+
+			public void interruptDivideByZero() {
+				throw new IllegalStateException("divide by zero");
+			}
+
+			public void interruptIllegalInstruction(int[] instr) {
+				throw new IllegalStateException("illegal instruction");
+			}
+
+			public void interruptClock() {
+			}
+
+			public void systemCall() {
+				throw new StopSimulation();
+			}
+
+			public void interruptIOReadComplete(int devID, int addr, int data) {
+			}
+
+			public void interruptIOWriteComplete(int devID, int addr) {
+			}
+		});
+
+		try {
+			cpu.run();
+		} catch (StopSimulation ss) {
+			// expected
+		}
+
+		return new long[] { cpu.getTicks(), ram.getStallTime() };
+	}// runLatencyProgram
+
+	/**
+	 * runIOCheck
+	 * 
+	 * verifies that a single process doing I/O runs to the end. The process
+	 * opens the console, writes to it, closes it and exits, so the CPU halts
+	 * each time it blocks and must wake up when the console is done. This is
+	 * run in discrete-event mode with seeds 1 to 5 and then in real time.
+	 * 
+	 * @return true if the simulation ended normally every time
+	 */
+	public static boolean runIOCheck() {
+		final int NUM_SEEDS = 5;
+
+		String progName = writeProgram("iocheck", new String[] {
+		        "SET R0 1", // open the console
+		        "SET R1 " + SOS.SYSCALL_OPEN, "PUSH R0", "PUSH R1", "TRAP",
+		        "POP R4",
+		        "SET R2 10", // write 77 to it
+		        "SET R3 77", "SET R1 " + SOS.SYSCALL_WRITE, "PUSH R0",
+		        "PUSH R2", "PUSH R3", "PUSH R1", "TRAP", "POP R4",
+		        "SET R1 " + SOS.SYSCALL_CLOSE, // close it
+		        "PUSH R0", "PUSH R1", "TRAP", "POP R4",
+		        "SET R1 " + SOS.SYSCALL_EXIT, // and exit
+		        "PUSH R1", "TRAP" });
+		if (progName == null) {
+			return false;
+		}
+
+		// SOS ends the simulation with System.exit
+		System.setSecurityManager(m_EC);
+
+		boolean passed = true;
+		for (int seed = 1; seed <= NUM_SEEDS; seed++) {
+			passed &= runIOCheckProcess(progName, true, seed);
+		}
+		passed &= runIOCheckProcess(progName, false, 0);
+
+		System.out.println(passed ? "PASSED" : "FAILED: a process doing I/O "
+		        + "did not finish");
+		return passed;
+	}// runIOCheck
+
+	/**
+	 * writeProgram
+	 * 
+	 * writes a developer check's program to a temporary file so that it can
+	 * be loaded like any other
+	 * 
+	 * @param name
+	 *            the check's name, used in the file name
+	 * @param lines
+	 *            the program's source
+	 * @return the file's path -OR- null if it couldn't be written
+	 */
+	private static String writeProgram(String name, String[] lines) {
+		try {
+			File f = File.createTempFile(name, ".asm");
+			f.deleteOnExit();
+			PrintWriter out = new PrintWriter(new FileWriter(f));
+			for (String line : lines) {
+				out.println(line);
+			}
+			out.close();
+			return f.getPath();
+		} catch (IOException e) {
+			System.out.println("ERROR: Could not write the " + name
+			        + " program: " + e);
+			return null;
+		}
+	}// writeProgram
+
+	/**
+	 * runIOCheckProcess
+	 * 
+	 * runs the I/O check's program on its own on a fresh machine
+	 * 
+	 * @param eventMode
+	 *            true for a discrete-event run with the given seed, false for
+	 *            a real-time run
+	 * @return true if the simulation ended normally within 10 seconds
+	 */
+	private static boolean runIOCheckProcess(String progName,
+	        boolean eventMode, long seed) {
+		final long TIMEOUT_MILLIS = 10000;
+
+		m_EC.reset();
+		RAM ram = new RAM(4096, 0);
+		MMU mmu = new MMU(ram, 4096, 64);
+		InterruptController ic = new InterruptController();
+		ConsoleDevice cd = new ConsoleDevice(ic);
+		cd.setId(1);
+		CPU cpu = new CPU(ram, ic, mmu);
+		SOS os = new SOS(cpu, ram, mmu);
+		os.setVerbose(false);
+		os.registerDevice(cd, 1);
+		if (eventMode) {
+			os.setSeed(seed);
+			cd.setSeed(seed + 2);
+			EventQueue events = new EventQueue(cpu,
+			        EventQueue.DEFAULT_NANOS_PER_TICK);
+			cpu.setEventQueue(events);
+			cd.setScheduler(events);
+		} else {
+			Thread t = new Thread(cd);
+			t.setDaemon(true);
+			t.setUncaughtExceptionHandler(m_DNH);
+			t.start();
+		}
+
+		Program prog = new Program();
+		if (prog.load(progName, false) != 0) {
+			System.out.println("ERROR: Could not load " + progName);
+			return false;
+		}
+		os.createProcess(prog, 1200);
+
+		Thread core = new Thread(os.getCore(0));
+		core.setDaemon(true);
+		core.setUncaughtExceptionHandler(m_DNH);
+		core.start();
+		try {
+			core.join(TIMEOUT_MILLIS);
+		} catch (InterruptedException ie) {
+			System.out.println("Interrupted!");
+			return false;
+		}
+
+		boolean passed = m_EC.isExitCaught() && (m_EC.getExitStatus() == 0);
+		System.out.println("I/O check ("
+		        + (eventMode ? "-events -seed " + seed : "real time") + "): "
+		        + (passed ? "finished" : m_EC.isExitCaught() ? "exit status "
+		                + m_EC.getExitStatus() : "timed out"));
+		return passed;
+	}// runIOCheckProcess
+
+	/**
+	 * runCoreBenchmark
+	 * 
+	 * measures how the simulation's throughput grows with the number of
+	 * cores. Each core is given CPU-bound processes that count to a fixed
+	 * number and exit, and the simulated ticks per second of wall-clock time
+	 * are printed for 1, 2 and 4 cores and for more as long as the host has
+	 * a processor for each one.
+	 */
+	public static void runCoreBenchmark() {
+		final int PROCS_PER_CORE = 2;
+		final int ITERATIONS = 10000000;
+		final int WARMUP_RUNS = 2;
+
+		String progName = writeProgram("corebench", new String[] {
+		        "SET R0 0", "SET R1 1", "SET R2 " + ITERATIONS, ":loop",
+		        "ADD R0 R0 R1", "BLT R0 R2 loop",
+		        "SET R1 " + SOS.SYSCALL_EXIT, "PUSH R1", "TRAP" });
+		if (progName == null) {
+			return;
+		}
+		Program prog = new Program();
+		if (prog.load(progName, false) != 0) {
+			System.out.println("ERROR: Could not load " + progName);
+			return;
+		}
+
+		// SOS ends each run with System.exit
+		System.setSecurityManager(m_EC);
+
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			runCores(prog, 1, PROCS_PER_CORE);
+		}
+
+		int hostCores = Runtime.getRuntime().availableProcessors();
+		System.out.println("cores	processes	ms	ticks/sec	speedup");
+		long baseRate = 0;
+		for (int numCores = 1; (numCores <= 4) || (numCores <= hostCores);
+		        numCores *= 2) {
+			long startTime = System.nanoTime();
+			long ticks = runCores(prog, numCores, numCores * PROCS_PER_CORE);
+			long elapsed = System.nanoTime() - startTime;
+
+			long rate = ticks * 1000000000L / elapsed;
+			if (baseRate == 0) {
+				baseRate = rate;
+			}
+			System.out.println(numCores + "	" + (numCores * PROCS_PER_CORE)
+			        + "		" + (elapsed / 1000000) + "	" + rate + "	"
+			        + String.format("%.2f", (double) rate / baseRate));
+		}// for
+		System.out.println("(host processors: " + hostCores + ")");
+	}// runCoreBenchmark
+
+	/**
+	 * runCores
+	 * 
+	 * runs copies of a program to the end on a fresh machine with the given
+	 * number of cores, each on its own thread
+	 * 
+	 * @return the total ticks run by all of the cores
+	 */
+	private static long runCores(Program prog, int numCores, int numProcs) {
+		m_EC.reset();
+		RAM ram = new RAM(4096, 0);
+		CPU cpus[] = new CPU[numCores];
+		SOS os = null;
+		for (int i = 0; i < numCores; i++) {
+			MMU mmu = new MMU(ram, 4096, 64);
+			cpus[i] = new CPU(ram, null, mmu);
+			if (i == 0) {
+				os = new SOS(cpus[i], ram, mmu);
+				os.setVerbose(false);
+			} else {
+				os.addCore(cpus[i], mmu);
+			}
+		}
+		for (int i = 0; i < numProcs; i++) {
+			os.createProcess(prog, 128);
+		}
+
+		Thread cores[] = new Thread[numCores];
+		for (int i = 0; i < numCores; i++) {
+			cores[i] = new Thread(os.getCore(i));
+			cores[i].setDaemon(true);
+			cores[i].setUncaughtExceptionHandler(m_DNH);
+			cores[i].start();
+		}
+		long ticks = 0;
+		for (int i = 0; i < numCores; i++) {
+			try {
+				cores[i].join();
+			} catch (InterruptedException ie) {
+				System.out.println("Interrupted!");
+			}
+			ticks += cpus[i].getTicks();
+		}
+		return ticks;
+	}// runCores
+
+	/**
+	 * runSchedulerBenchmark
+	 * 
+	 * measures how long the OS takes to handle a clock interrupt as the number
+	 * of ready processes grows. The OS is given 10, 100, 1000 and 10000 ready
+	 * processes (which never actually run) and then handles clock interrupts
+	 * over and over, with each scheduling policy.
+	 */
+	public static void runSchedulerBenchmark() {
+		final int WARMUP_SCHEDULES = 100000;
+		final int MEASURED_SCHEDULES = 1000000;
+		int counts[] = { 10, 100, 1000, 10000 };
+
+		System.out.println("processes\tscheduler\tns/schedule");
+		for (int numProcs : counts) {
+			for (int p = 0; p < SOS.SCHED_NAMES.length; p++) {
+				RAM ram = new RAM(4096, 0);
+				MMU mmu = new MMU(ram, 4096, 64);
+				CPU cpu = new CPU(ram, null, mmu);
+				SOS os = new SOS(cpu, ram, mmu);
+				os.setVerbose(false);
+				os.setScheduler(p);
+				for (int i = 0; i < numProcs; i++) {
+					os.createBenchmarkProcess();
+				}
+
+				for (int i = 0; i < WARMUP_SCHEDULES; i++) {
+					os.interruptClock();
+				}
+				long startTime = System.nanoTime();
+				for (int i = 0; i < MEASURED_SCHEDULES; i++) {
+					os.interruptClock();
+				}
+				long elapsed = System.nanoTime() - startTime;
+
+				System.out.println(numProcs + "\t\t" + SOS.SCHED_NAMES[p] + "\t\t"
+				        + (elapsed / MEASURED_SCHEDULES));
+			}// for
+		}// for
+	}// runSchedulerBenchmark
+
+	/**
+	 * runContextSwitchBenchmark
+	 * 
+	 * measures how many context switches the OS can make per second with 2,
+	 * 10 and 100 ready processes (which never actually run), and how many
+	 * bytes each switch allocates.
+	 */
+	public static void runContextSwitchBenchmark() {
+		final int WARMUP_SWITCHES = 1000000;
+		final int MEASURED_SWITCHES = 10000000;
+		int counts[] = { 2, 10, 100 };
+
+		ThreadMXBean tmx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		tmx.getCurrentThreadAllocatedBytes(); // make sure the bean is ready
+
+		System.out.println("processes\tswitches/sec\tbytes/switch");
+		for (int numProcs : counts) {
+			RAM ram = new RAM(4096, 0);
+			MMU mmu = new MMU(ram, 4096, 64);
+			CPU cpu = new CPU(ram, null, mmu);
+			SOS os = new SOS(cpu, ram, mmu);
+			os.setVerbose(false);
+			for (int i = 0; i < numProcs; i++) {
+				os.createBenchmarkProcess();
+			}
+
+			for (int i = 0; i < WARMUP_SWITCHES; i++) {
+				os.benchmarkContextSwitch();
+			}
+			long bytesBefore = tmx.getCurrentThreadAllocatedBytes();
+			long startTime = System.nanoTime();
+			for (int i = 0; i < MEASURED_SWITCHES; i++) {
+				os.benchmarkContextSwitch();
+			}
+			long elapsed = System.nanoTime() - startTime;
+			long bytes = tmx.getCurrentThreadAllocatedBytes() - bytesBefore;
+
+			System.out.println(numProcs + "\t\t"
+			        + (MEASURED_SWITCHES * 1000000000L / elapsed) + "\t"
+			        + (bytes / MEASURED_SWITCHES));
+		}// for
+	}// runContextSwitchBenchmark
+
+	/**
+	 * runAllocatorBenchmark
+	 * 
+	 * compares the memory allocation policies on the quickspawn programs. Each
+	 * allocator is given the simulation's memory (and then a memory 256 times
+	 * bigger) and a random stream of requests: a process the size of one of
+	 * the quickspawn programs is created 55% of the time, and otherwise a
+	 * random process exits (as does one whenever there isn't room for a new
+	 * one). Processes are never compacted. The time per request, the share
+	 * of requests that failed and the average fragmentation are printed.
+	 */
+	public static void runAllocatorBenchmark() {
+		final int PAGE_SIZE = 64;
+		final int WARMUP_REQUESTS = 100000;
+		final int MEASURED_REQUESTS = 1000000;
+		int memSizes[] = { 4096, 4096 * 256 };
+		String progNames[] = { "quickspawn1a.asm", "quickspawn1b.asm",
+		        "quickspawn1c.asm", "quickspawn1d.asm", "quickspawn1e.asm" };
+
+		// Work out how much memory each program gets, like SOS does
+		int progSizes[] = new int[progNames.length];
+		for (int i = 0; i < progNames.length; i++) {
+			Program prog = new Program();
+			if (prog.load(progNames[i], false) != 0) {
+				System.out.println("ERROR: Could not load " + progNames[i]);
+				return;
+			}
+			int allocSize = prog.getDefaultAllocSize();
+			if (allocSize <= 0) {
+				allocSize = prog.getSize() * 2;
+			}
+			progSizes[i] = (allocSize / PAGE_SIZE + 1) * PAGE_SIZE;
+		}// for
+
+		System.out.println("memory\tallocator\tns/request\tfailed\t"
+		        + "ext frag\tint frag");
+		for (int memSize : memSizes) {
+			for (int p = 0; p < SOS.ALLOC_NAMES.length; p++) {
+				// Paged memory needs an MMU and never fails while there are
+				// free frames
+				if (p == SOS.ALLOC_PAGED) {
+					continue;
+				}
+
+				// The page table takes up the bottom of memory
+				int base = memSize / PAGE_SIZE;
+				MemoryAllocator allocator = SOS.createAllocator(p, base,
+				        memSize - base, PAGE_SIZE);
+				Random random = new Random(446);
+				ArrayList<int[]> live = new ArrayList<int[]>();
+				long stats[] = new long[5];
+
+				runAllocatorRequests(allocator, random, live, progSizes,
+				        WARMUP_REQUESTS, new long[5]);
+				long startTime = System.nanoTime();
+				runAllocatorRequests(allocator, random, live, progSizes,
+				        MEASURED_REQUESTS, stats);
+				long elapsed = System.nanoTime() - startTime;
+
+				// stats: allocations, failures, external fragmentation,
+				// allocated words, requested words
+				System.out.println(memSize + "\t" + SOS.ALLOC_NAMES[p]
+				        + "\t" + ((SOS.ALLOC_NAMES[p].length() < 8) ? "\t" : "")
+				        + (elapsed / MEASURED_REQUESTS) + "\t\t"
+				        + (100 * stats[1] / stats[0]) + "%\t"
+				        + (stats[2] / stats[0]) + "%\t\t"
+				        + (100 * (stats[3] - stats[4]) / stats[3]) + "%");
+			}// for
+		}// for
+	}// runAllocatorBenchmark
+
+	/**
+	 * runAllocatorRequests
+	 * 
+	 * runs part of the allocator benchmark's stream of requests
+	 * 
+	 * @param live
+	 *            the address and size of each allocated block
+	 * @param count
+	 *            the number of requests
+	 * @param stats
+	 *            the number of allocations, failed allocations and the sums
+	 *            of the external fragmentation (as a percentage), allocated
+	 *            words and requested words at each allocation are added to
+	 *            this
+	 */
+	private static void runAllocatorRequests(MemoryAllocator allocator,
+	        Random random, ArrayList<int[]> live, int[] progSizes, int count,
+	        long[] stats) {
+		long requested = 0;
+		for (int[] block : live) {
+			requested += block[1];
+		}
+
+		for (int i = 0; i < count; i++) {
+			boolean exit = !live.isEmpty() && (random.nextInt(100) >= 55);
+			if (!exit) {
+				int free = allocator.getFreeSize();
+				int largest = allocator.getLargestFreeBlock();
+				stats[0]++;
+				stats[2] += (free == 0) ? 0 : 100L * (free - largest) / free;
+
+				int size = progSizes[random.nextInt(progSizes.length)];
+				int addr = allocator.alloc(size);
+				if (addr != -1) {
+					live.add(new int[] { addr, size });
+					requested += size;
+					stats[3] += allocator.getAllocatedSize();
+					stats[4] += requested;
+				} else {
+					stats[1]++;
+					exit = !live.isEmpty();
+				}
+			}
+
+			if (exit) {
+				// Swap a random block to the end so it can be removed quickly
+				int j = random.nextInt(live.size());
+				int[] block = live.get(j);
+				live.set(j, live.get(live.size() - 1));
+				live.remove(live.size() - 1);
+				allocator.free(block[0], block[1]);
+				requested -= block[1];
+			}
+		}// for
+	}// runAllocatorRequests
+
+	/**
+	 * runDeviceBenchmark
+	 * 
+	 * measures how the two ways of running devices scale with the number of
+	 * devices. Every device is a keyboard with a 500-1000ns latency and the
+	 * main thread plays the CPU: it drains interrupts and immediately issues
+	 * another read to the device that raised each one until every device has
+	 * completed the same number of reads. This is done with a thread per
+	 * device and with a shared scheduler, for 10, 100 and 1000 devices.
+	 */
+	public static void runDeviceBenchmark() {
+		final int READS_PER_DEVICE = 100;
+		final int POOL_THREADS = 2;
+		int counts[] = { 10, 100, 1000 };
+
+		System.out.println("devices\tmode\t\tthreads\treads/sec");
+		for (int numDevices : counts) {
+			for (int pooled = 0; pooled < 2; pooled++) {
+				int threadsBefore = Thread.activeCount();
+				InterruptController ic = new InterruptController(numDevices);
+				KeyboardDevice devices[] = new KeyboardDevice[numDevices];
+				Thread threads[] = new Thread[numDevices];
+				ExecutorScheduler scheduler = null;
+				if (pooled == 1) {
+					scheduler = new ExecutorScheduler(POOL_THREADS);
+				}
+				for (int i = 0; i < numDevices; i++) {
+					devices[i] = new KeyboardDevice(ic, 500, 1000);
+					devices[i].setId(i);
+					if (scheduler != null) {
+						devices[i].setScheduler(scheduler);
+					} else {
+						threads[i] = new Thread(devices[i]);
+						threads[i].setDaemon(true);
+						threads[i].start();
+					}
+				}
+				// Keep every device busy until each has done its reads
+				long startTime = System.nanoTime();
+				int done[] = new int[numDevices];
+				for (int i = 0; i < numDevices; i++) {
+					devices[i].read(i);
+				}
+				long total = (long) numDevices * READS_PER_DEVICE;
+				long completed = 0;
+				int buf[] = new int[CPU.MAX_INT_BATCH
+				        * InterruptController.INT_SIZE];
+				while (completed < total) {
+					int count = ic.drain(buf, CPU.MAX_INT_BATCH);
+					if (count == 0) {
+						Thread.yield();
+					}
+					for (int i = 0; i < count; i++) {
+						int dev = buf[i * InterruptController.INT_SIZE + 1];
+						completed++;
+						if (++done[dev] < READS_PER_DEVICE) {
+							devices[dev].read(dev);
+						}
+					}
+				}// while
+				long elapsed = System.nanoTime() - startTime;
+				int deviceThreads = Thread.activeCount() - threadsBefore;
+
+				System.out.println(numDevices + "\t"
+				        + ((pooled == 1) ? "shared pool" : "thread/device")
+				        + "\t" + deviceThreads + "\t"
+				        + (total * 1000000000L / elapsed));
+
+				// Parked device threads are daemons; just drop them
+				if (scheduler != null) {
+					scheduler.shutdown();
+				}
+			}// for
+		}// for
+	}// runDeviceBenchmark
+
+	/**
+	 * exitAfterSimulations
+	 * 
+	 * exits from a developer check that ran simulations with the ExitCatcher
+	 * installed. The main thread may only exit once another thread has tried
+	 * to (see ExitCatcher).
+	 */
+	private static void exitAfterSimulations(int status) {
+		if (!m_EC.isExitCaught()) {
+			try {
+				System.exit(-42);
+			} catch (SecurityException se) {
+			}
+		}
+		System.exit(status);
+	}// exitAfterSimulations
+
 	/**
 	 * main
 	 * 
@@ -189,6 +1157,123 @@ public class Sim {
 	 * 
 	 */
 	public static void main(String[] args) {
+		// Developer checks that don't run the full simulation
+		if ((args.length > 0) && args[0].equals("-fetchalloc")) {
+			System.exit(runFetchAllocCheck() ? 0 : 1);
+		}
+		if ((args.length > 0) && args[0].equals("-latencycheck")) {
+			System.exit(runLatencyCheck() ? 0 : 1);
+		}
+		if ((args.length > 0) && args[0].equals("-iocheck")) {
+			exitAfterSimulations(runIOCheck() ? 0 : 1);
+		}
+		if ((args.length > 0) && args[0].equals("-corebench")) {
+			runCoreBenchmark();
+			exitAfterSimulations(0);
+		}
+		if ((args.length > 0) && args[0].equals("-devicebench")) {
+			runDeviceBenchmark();
+			System.exit(0);
+		}
+		if ((args.length > 0) && args[0].equals("-schedbench")) {
+			runSchedulerBenchmark();
+			System.exit(0);
+		}
+		if ((args.length > 0) && args[0].equals("-switchbench")) {
+			runContextSwitchBenchmark();
+			System.exit(0);
+		}
+		if ((args.length > 0) && args[0].equals("-allocbench")) {
+			runAllocatorBenchmark();
+			System.exit(0);
+		}
+
+		// Simulation options
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-translate")) {
+				m_translate = true;
+			} else if (arg.equals("-offheap")) {
+				m_ramStorage = RAM.STORAGE_DIRECT;
+			} else if (arg.equals("-latency") && (i + 1 < args.length)) {
+				// RAM latency charged to a simulated clock
+				m_ramLatency = Integer.parseInt(args[++i]);
+				m_latencyMode = RAM.LATENCY_SIMULATED;
+			} else if (arg.equals("-snapshot") && (i + 2 < args.length)) {
+				// Save a snapshot at the given clock interrupt
+				m_snapshotClock = Integer.parseInt(args[++i]);
+				m_snapshotName = args[++i];
+			} else if (arg.equals("-events")) {
+				// Deterministic discrete-event simulation
+				m_eventMode = true;
+			} else if (arg.equals("-seed") && (i + 1 < args.length)) {
+				m_seed = Long.parseLong(args[++i]);
+				m_seeded = true;
+			} else if (arg.equals("-record") && (i + 1 < args.length)) {
+				// Record the interrupts to a trace file
+				m_recordName = args[++i];
+			} else if (arg.equals("-replay") && (i + 1 < args.length)) {
+				// Replay the interrupts in a trace file
+				m_replayName = args[++i];
+			} else if (arg.equals("-cores") && (i + 1 < args.length)) {
+				// Run on this many CPUs sharing the RAM
+				m_numCores = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-sched") && (i + 1 < args.length)) {
+				// Scheduling policy
+				String policy = args[++i];
+				m_scheduler = Arrays.asList(SOS.SCHED_NAMES).indexOf(policy);
+				if (m_scheduler < 0) {
+					System.out.println("Unknown scheduler: " + policy);
+					return;
+				}
+			} else if (arg.equals("-alloc") && (i + 1 < args.length)) {
+				// Memory allocation policy
+				String policy = args[++i];
+				m_allocPolicy = Arrays.asList(SOS.ALLOC_NAMES).indexOf(policy);
+				if (m_allocPolicy < 0) {
+					System.out.println("Unknown allocator: " + policy);
+					return;
+				}
+			} else if (arg.equals("-compact") && (i + 1 < args.length)) {
+				// Pages to compact per clock interrupt (0 for all at exit)
+				m_compactPages = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-compactthreshold")
+			        && (i + 1 < args.length)) {
+				// Fragmentation (%) above which memory is compacted
+				m_compactThreshold = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-tickless")) {
+				// Only interrupt at the end of a time slice
+				m_tickless = true;
+			} else if (arg.equals("-quantum") && (i + 1 < args.length)) {
+				// Time slice (in ticks) when tickless
+				m_quantum = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-devicepool") && (i + 1 < args.length)) {
+				// Run the devices on a shared pool of threads
+				m_devicePool = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-resume") && (i + 1 < args.length)) {
+				// Resume from a saved snapshot
+				m_resumeName = args[++i];
+			} else if (arg.equals("-sleeplatency") && (i + 1 < args.length)) {
+				// RAM latency simulated by really sleeping
+				m_ramLatency = Integer.parseInt(args[++i]);
+				m_latencyMode = RAM.LATENCY_SLEEP;
+			} else {
+				System.out.println("Unknown option: " + arg);
+				return;
+			}
+		}// for
+
+		// Discrete-event runs, traces and snapshots follow a single CPU's
+		// clock
+		if ((m_numCores > 1)
+		        && (m_eventMode || (m_snapshotName != null)
+		                || (m_resumeName != null) || (m_recordName != null)
+		                || (m_replayName != null))) {
+			System.out.println("-cores can't be combined with -events, "
+			        + "-snapshot, -resume, -record or -replay");
+			return;
+		}
+
 		// Start catching System.exit
 		System.setSecurityManager(m_EC);
 
@@ -214,6 +1299,16 @@ public class Sim {
 			e.printStackTrace();
 		}
 
+		// Finish any interrupt trace being recorded
+		if (m_recorder != null) {
+			try {
+				m_recorder.close();
+			} catch (IOException e) {
+				System.out.println("ERROR: Could not write interrupt trace "
+				        + m_recordName + ": " + e);
+			}
+		}
+
 		// If System.exit was not called by any thread then bypass that
 		// protection now
 		if (!m_EC.isExitCaught()) {